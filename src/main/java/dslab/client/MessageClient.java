@@ -9,6 +9,7 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -22,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
 
 import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
@@ -30,7 +32,9 @@ import dslab.ComponentFactory;
 import dslab.util.AESParameters;
 import dslab.util.Base64AES;
 import dslab.util.Base64CryptoException;
+import dslab.util.Compressor;
 import dslab.util.Config;
+import dslab.util.DMTPSender;
 import dslab.util.Keys;
 import dslab.util.Message;
 
@@ -50,6 +54,7 @@ public class MessageClient implements IMessageClient, Runnable {
     private Socket transferSocket;
     private Socket mailboxSocket;
     private AESParameters aesParameters;
+    private Compressor compressor;
 
 
     /**
@@ -62,6 +67,7 @@ public class MessageClient implements IMessageClient, Runnable {
      */
     public MessageClient(String ignoredComponentId, Config config, InputStream in, PrintStream out) throws IOException {
         this.config = config;
+        compressor = new Compressor(config);
         shell = new Shell(in, out);
         shell.setPrompt(config.getString("transfer.email") + " >>> ");
         shell.register(this);
@@ -123,7 +129,7 @@ public class MessageClient implements IMessageClient, Runnable {
                     if (line.startsWith("error")) throw new IOException();
                     if (line.equals("ok")) continue;
 
-                    shell.out().println(line);
+                    shell.out().println(inflateData(line));
                 }
                 shell.out().println();
             }
@@ -197,6 +203,7 @@ public class MessageClient implements IMessageClient, Runnable {
             for (var line : responseLines) {
                 if (line.startsWith("error")) throw new IOException();
                 if (line.equals("ok")) continue;
+                line = inflateData(line);
 
                 if (line.startsWith("to")) {
                     // The first part of the message needs to be removed
@@ -240,77 +247,21 @@ public class MessageClient implements IMessageClient, Runnable {
             var writer = new PrintWriter(transferSocket.getOutputStream());
             var reader = new BufferedReader(new InputStreamReader(transferSocket.getInputStream()));
 
-            String serverOutput = reader.readLine();
-            if (!serverOutput.equals("ok DMTP2.0")) {
+            var sender = new DMTPSender(writer, reader::readLine);
+            if (!sender.open(true)) {
                 transferSocket.close();
                 shell.err().println("error ok DMTP2.0");
                 return;
             }
 
-            writer.println("begin");
-            writer.flush();
-            serverOutput = reader.readLine();
-            if (!serverOutput.equals("ok")) {
-                transferSocket.close();
-                shell.err().println("error begin");
-                return;
-            }
-
-            writer.println("to " + to);
-            writer.flush();
-            serverOutput = reader.readLine();
-            if (!serverOutput.startsWith("ok")) {
-                transferSocket.close();
-                shell.err().println("error to");
-                return;
-            }
-
-            writer.println("from " + config.getString("transfer.email"));
-            writer.flush();
-            serverOutput = reader.readLine();
-            if (!serverOutput.equals("ok")) {
-                transferSocket.close();
-                shell.err().println("error from");
-                return;
-            }
-
-            writer.println("subject " + subject);
-            writer.flush();
-            serverOutput = reader.readLine();
-            if (!serverOutput.equals("ok")) {
-                transferSocket.close();
-                shell.err().println("error subject");
-                return;
-            }
-
-            writer.println("data " + data);
-            writer.flush();
-            serverOutput = reader.readLine();
-            if (!serverOutput.equals("ok")) {
-                transferSocket.close();
-                shell.err().println("error data");
-                return;
-            }
-
             String hash = calculateBase64HMAC(to, subject, data);
-
-            writer.println("hash " + hash);
-            writer.flush();
-            serverOutput = reader.readLine();
-            if (!serverOutput.equals("ok")) {
+            var failed = sender.send(new Message(to, config.getString("transfer.email"), subject, data, hash));
+            if (failed.isPresent()) {
                 transferSocket.close();
-                shell.err().println("error hash");
+                shell.err().println("error " + failed.get());
                 return;
             }
 
-            writer.println("send");
-            writer.flush();
-            serverOutput = reader.readLine();
-            if (!serverOutput.equals("ok")) {
-                transferSocket.close();
-                shell.err().println("error send");
-                return;
-            }
             transferSocket.close();
         } catch (IOException | NoSuchAlgorithmException | InvalidKeyException e) {
             shell.err().println("Error transferring message");
@@ -460,6 +411,13 @@ public class MessageClient implements IMessageClient, Runnable {
                 shell.err().println("Invalid credentials");
                 throw new IOException();
             }
+
+            if (Boolean.parseBoolean(config.getString("mailbox.compress", "true"))) {
+                // servers without compression answer with an error and send every body as it is
+                writer.println(Base64AES.encrypt("compress", aesParameters));
+                writer.flush();
+                Base64AES.decrypt(reader.readLine(), aesParameters);
+            }
         } catch (IOException | NoSuchAlgorithmException | NoSuchPaddingException | IllegalBlockSizeException |
                  BadPaddingException | InvalidKeySpecException | InvalidKeyException | InvalidAlgorithmParameterException
                  | Base64CryptoException e) {
@@ -476,6 +434,25 @@ public class MessageClient implements IMessageClient, Runnable {
     }
 
 
+    /**
+     * @return the line, or the data line if it is the "zdata &lt;size&gt; &lt;deflated Base64&gt;" of a compressed
+     * session
+     */
+    private String inflateData(String line) throws IOException {
+        if (!line.startsWith("zdata ")) {
+            return line;
+        }
+
+        var parts = line.split(" ", 3);
+        try {
+            var deflated = ByteBuffer.wrap(Base64.getDecoder().decode(parts[2]));
+            var data = compressor.inflate(deflated, Integer.parseInt(parts[1]));
+            return "data " + StandardCharsets.UTF_8.decode(data);
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException | DataFormatException e) {
+            throw new IOException("Invalid compressed data", e);
+        }
+    }
+
     private String calculateBase64HMAC(String to, String subject, String data) throws NoSuchAlgorithmException, IOException, InvalidKeyException {
         SecretKeySpec temp = Keys.readSecretKey(new File("keys/hmac.key"));
         Mac mac = Mac.getInstance("HmacSHA256");
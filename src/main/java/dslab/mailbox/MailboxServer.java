@@ -27,13 +27,21 @@ import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
 import dslab.mailbox.handler.DMAPListenerFactory;
 import dslab.mailbox.handler.DMTPListenerFactory;
-import dslab.util.handler.DispatchListener;
+import dslab.util.handler.BufferPool;
+import dslab.util.handler.IDispatchListener;
+import dslab.util.handler.ListenerConfig;
+import dslab.util.BodyStore;
+import dslab.util.Compressor;
 import dslab.util.Config;
+import dslab.util.TimingWheel;
 
 public class MailboxServer implements IMailboxServer, Runnable {
 
-    private final DispatchListener dmapDispatcher;
-    private final DispatchListener dmtpDispatcher;
+    private final IDispatchListener dmapDispatcher;
+    private final IDispatchListener dmtpDispatcher;
+    private final TimingWheel timer;
+    private final BufferPool buffers;
+    private final Compressor compressor;
 
     private final Shell shell;
     private final Config config;
@@ -56,8 +64,11 @@ public class MailboxServer implements IMailboxServer, Runnable {
 
         PrivateKey serverPrivateKey = loadRSAKey(componentId);
 
-        dmapDispatcher = new DispatchListener(config.getInt("dmap.tcp.port"), 4, new DMAPListenerFactory(componentId, serverPrivateKey));
-        dmtpDispatcher = new DispatchListener(config.getInt("dmtp.tcp.port"), 4, new DMTPListenerFactory(serverDomain));
+        timer = new TimingWheel(100, 512);
+        buffers = new BufferPool(config);
+        compressor = new Compressor(config);
+        dmapDispatcher = new ListenerConfig(config, "dmap.tcp", 4).newListener(new DMAPListenerFactory(componentId, serverPrivateKey, compressor), timer, buffers);
+        dmtpDispatcher = new ListenerConfig(config, "dmtp.tcp", 4).newListener(new DMTPListenerFactory(serverDomain, new BodyStore(config), compressor), timer, buffers);
 
         shell = new Shell(in, out);
         shell.setPrompt("[Mailbox " + config.getString("domain") + "] >>> ");
@@ -72,11 +83,39 @@ public class MailboxServer implements IMailboxServer, Runnable {
         shell.run();
     }
 
+    @Command
+    public void listeners() {
+        shell.out().println(dmtpDispatcher);
+        shell.out().println(dmapDispatcher);
+        shell.out().println(buffers);
+    }
+
+    @Command
+    public void pools() {
+        for (var pool : dmtpDispatcher.getPools()) {
+            shell.out().println(pool);
+        }
+        for (var pool : dmapDispatcher.getPools()) {
+            shell.out().println(pool);
+        }
+    }
+
+    @Command
+    public void compression() {
+        shell.out().println(compressor);
+    }
+
     @Override
     @Command
     public void shutdown() {
-        dmapDispatcher.stop();
-        dmtpDispatcher.stop();
+        long deadline = System.currentTimeMillis() + config.getInt("shutdown.drain.timeout", 5000);
+
+        // incoming mail first, so no delivery is cut off while users are still reading
+        int closedSessions = dmtpDispatcher.drain(deadline);
+        closedSessions += dmapDispatcher.drain(deadline);
+        timer.stop();
+
+        shell.out().println("drained: " + closedSessions + " sessions closed at deadline");
         throw new StopShellException();
     }
 
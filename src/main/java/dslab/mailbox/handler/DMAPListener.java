@@ -4,8 +4,11 @@ import dslab.mailbox.MessageStore;
 import dslab.util.AESParameters;
 import dslab.util.Base64AES;
 import dslab.util.Base64CryptoException;
+import dslab.util.Compressor;
 import dslab.util.DMAPState;
-import dslab.util.handler.IListener;
+import dslab.util.MessageBody;
+import dslab.util.handler.LineConnection;
+import dslab.util.handler.LineListener;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -14,175 +17,149 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.util.Base64;
-import java.util.Optional;
 
-public class DMAPListener implements Runnable, IListener {
-    private final Socket socket;
+public class DMAPListener extends LineListener {
     private final String componentId;
     private final PrivateKey rsaPrivateKey;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private final Compressor compressor;
+    private final MessageStore store = MessageStore.getInstance();
 
     private DMAPState state = DMAPState.WAITING;
     private String username = null;
-
-    public DMAPListener(Socket socket, String componentId, PrivateKey rsaPrivateKey) {
-        this.socket = socket;
+    private AESParameters aesParameters = null;
+    // set after the server challenge has been sent, until the client confirmed the session key
+    private boolean awaitingConfirmation = false;
+    // set by the compress command, show then sends large bodies deflated
+    private boolean compressing = false;
+
+    public DMAPListener(LineConnection connection, String componentId, PrivateKey rsaPrivateKey,
+                        Compressor compressor) {
+        super(connection);
         this.componentId = componentId;
         this.rsaPrivateKey = rsaPrivateKey;
-        try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream());
-        } catch (IOException e) {
-            System.err.println("Error creating reader/writer for socket!");
-        }
+        this.compressor = compressor;
     }
 
     @Override
-    public void run() {
+    public void onOpen() {
         writer.println("ok DMAP2.0");
-        writer.flush();
-
-        MessageStore store = MessageStore.getInstance();
-
-        AESParameters aesParameters = null;
-
-        while(!socket.isClosed()) {
-            String input;
-
-            try {
-                input = reader.readLine();
-            } catch (IOException e) {
-                System.err.println("Error reading input from socket!");
-                stop();
-                return;
-            }
-
-            if (input == null) {
-                stop();
-                return;
-            }
-
-            input = input.strip();
-
-            if (input.equals("quit")) {
-                writer.println("ok bye");
-                writer.flush();
-                stop();
-                return;
-            }
+    }
 
-            String response;
+    @Override
+    public void onLine(String input) {
+        input = input.strip();
 
-            switch (state) {
-                case WAITING:
-                    response = parseWaitingState(input, store);
+        if (input.equals("quit")) {
+            writer.println("ok bye");
+            writer.flush();
+            stop();
+            return;
+        }
 
-                    writer.println(response);
-                    if (username != null) {
-                        state = DMAPState.LOGGED_IN;
-                    }
-                    break;
+        String response;
 
-                case LOGGED_IN:
-                    response = parseLoggedInState(input, username, store);
+        switch (state) {
+            case WAITING:
+                response = parseWaitingState(input, store);
 
-                    writer.println(response);
-                    if (state == DMAPState.WAITING) {
-                        username = null;
-                    }
-                    break;
+                writer.println(response);
+                if (username != null) {
+                    state = DMAPState.LOGGED_IN;
+                }
+                break;
 
-                case AUTHENTICATING_WAITING:
-                    try {
-                        aesParameters = parseAuthenticatingState(input, rsaPrivateKey);
-                    } catch (IOException ignored) {}
-                    state = DMAPState.AUTHENTICATED_WAITING;
+            case LOGGED_IN:
+                if (input.startsWith("show")) {
+                    // the body goes from its file to the connection, encrypted sessions need it as a string
+                    writeMessage(input, username, store, writer);
+                    writer.println();
                     break;
-
-                case AUTHENTICATING_LOGGED_IN:
-                    try {
-                        aesParameters = parseAuthenticatingState(input, rsaPrivateKey);
-                    } catch (IOException ignored) {}
+                }
+
+                response = parseLoggedInState(input, username, store);
+
+                writer.println(response);
+                if (state == DMAPState.WAITING) {
+                    username = null;
+                }
+                break;
+
+            case AUTHENTICATING_WAITING:
+                aesParameters = parseAuthenticatingState(input, rsaPrivateKey);
+                state = DMAPState.AUTHENTICATED_WAITING;
+                break;
+
+            case AUTHENTICATING_LOGGED_IN:
+                aesParameters = parseAuthenticatingState(input, rsaPrivateKey);
+                state = DMAPState.AUTHENTICATED_LOGGED_IN;
+                break;
+
+            case AUTHENTICATED_WAITING:
+                if (aesParameters == null) {
+                    stop();
+                    return;
+                }
+
+                if (awaitingConfirmation) {
+                    parseConfirmation(input);
+                    return;
+                }
+
+                try {
+                    String decryptedInput = Base64AES.decrypt(input, aesParameters);
+                    response = parseWaitingState(decryptedInput, store);
+                } catch (Base64CryptoException e) {
+                    stop();
+                    return;
+                }
+
+                if (username != null) {
                     state = DMAPState.AUTHENTICATED_LOGGED_IN;
-                    break;
-
-                case AUTHENTICATED_WAITING:
-                    if (aesParameters == null) {
-                        try {
-                            socket.close();
-                        } catch (IOException ignored) {}
-                        continue;
-                    }
-
-                    try {
-                        String decryptedInput = Base64AES.decrypt(input, aesParameters);
-                        response = parseWaitingState(decryptedInput, store);
-                    } catch (Base64CryptoException e) {
-                        stop();
-                        continue;
-                    }
-
-                    if (username != null) {
-                        state = DMAPState.AUTHENTICATED_LOGGED_IN;
-                    }
-
-                    try {
-                        String responseEncrypted = Base64AES.encrypt(response, aesParameters);
-                        writer.println(responseEncrypted);
-                    } catch (Base64CryptoException e) {
-                        stop();
-                        continue;
-                    }
-                    break;
-
-                case AUTHENTICATED_LOGGED_IN:
-                    if (aesParameters == null) {
-                        try {
-                            socket.close();
-                        } catch (IOException ignored) {}
-                        continue;
-                    }
-
-                    try {
-                        String decryptedInput = Base64AES.decrypt(input, aesParameters);
-                        response = parseLoggedInState(decryptedInput, username, store);
-
-                        String responseEncrypted = Base64AES.encrypt(response, aesParameters);
-                        writer.println(responseEncrypted);
-                    } catch (Base64CryptoException e) {
-                        stop();
-                        continue;
-                    }
-
-                    if (state == DMAPState.AUTHENTICATED_WAITING) {
-                        username = null;
-                    }
-                    break;
-            }
-
-            writer.flush();
-        }
-    }
-
-    @Override
-    public synchronized void stop() {
-        try {
-            this.socket.close();
-        } catch (IOException e) {
-            System.err.println("Could not close socket on exit!");
+                }
+
+                try {
+                    String responseEncrypted = Base64AES.encrypt(response, aesParameters);
+                    writer.println(responseEncrypted);
+                } catch (Base64CryptoException e) {
+                    stop();
+                    return;
+                }
+                break;
+
+            case AUTHENTICATED_LOGGED_IN:
+                if (aesParameters == null) {
+                    stop();
+                    return;
+                }
+
+                if (awaitingConfirmation) {
+                    parseConfirmation(input);
+                    return;
+                }
+
+                try {
+                    String decryptedInput = Base64AES.decrypt(input, aesParameters);
+                    response = parseLoggedInState(decryptedInput, username, store);
+
+                    String responseEncrypted = Base64AES.encrypt(response, aesParameters);
+                    writer.println(responseEncrypted);
+                } catch (Base64CryptoException e) {
+                    stop();
+                    return;
+                }
+
+                if (state == DMAPState.AUTHENTICATED_WAITING) {
+                    username = null;
+                }
+                break;
         }
     }
 
@@ -207,6 +184,11 @@ public class DMAPListener implements Runnable, IListener {
             return "ok " + componentId;
         }
 
+        if (input.equals("compress")) {
+            compressing = true;
+            return "ok compress";
+        }
+
         return "error protocol error";
     }
 
@@ -238,10 +220,15 @@ public class DMAPListener implements Runnable, IListener {
             return "ok " + componentId;
         }
 
+        if (input.equals("compress")) {
+            compressing = true;
+            return "ok compress";
+        }
+
         return "error unknown command";
     }
 
-    private AESParameters parseAuthenticatingState(String input, PrivateKey privateKey) throws IOException {
+    private AESParameters parseAuthenticatingState(String input, PrivateKey privateKey) {
         byte[] inputDecoded = Base64.getDecoder().decode(input);
         String decryptedInput;
 
@@ -256,12 +243,12 @@ public class DMAPListener implements Runnable, IListener {
                  | InvalidKeyException
                  | IllegalBlockSizeException
                  | BadPaddingException e) {
-            socket.close();
+            stop();
             return null;
         }
 
         if (!decryptedInput.startsWith("ok")) {
-            socket.close();
+            stop();
             return null;
         }
 
@@ -280,21 +267,27 @@ public class DMAPListener implements Runnable, IListener {
         try {
             String encryptedResponseOptional = Base64AES.encrypt("ok " + challenge, aesParameters);
             writer.println(encryptedResponseOptional);
-            writer.flush();
+        } catch (Base64CryptoException e) {
+            stop();
+            return null;
+        }
+
+        // the client answers the challenge with an encrypted "ok", see parseConfirmation
+        awaitingConfirmation = true;
+        return aesParameters;
+    }
 
-            String response = reader.readLine();
+    private void parseConfirmation(String input) {
+        awaitingConfirmation = false;
 
-            String decryptedResponse = Base64AES.decrypt(response, aesParameters);
+        try {
+            String decryptedResponse = Base64AES.decrypt(input, aesParameters);
             if (!decryptedResponse.equals("ok")) {
                 stop();
-                return null;
             }
         } catch (Base64CryptoException e) {
             stop();
-            return null;
         }
-
-        return new AESParameters(aesKey, aesInitializationVector);
     }
 
     private String parseLogin(String input, MessageStore store) {
@@ -327,36 +320,69 @@ public class DMAPListener implements Runnable, IListener {
     }
 
     private String showMessage(String input, String username, MessageStore store) {
+        var response = new StringWriter();
+        writeMessage(input, username, store, new PrintWriter(response));
+        return response.toString();
+    }
+
+    /**
+     * Writes the response to show without the final line break.
+     */
+    private void writeMessage(String input, String username, MessageStore store, PrintWriter out) {
         var parts = input.split(" ");
         int messageId;
 
         try {
             messageId = Integer.parseInt(parts[1]);
         } catch (NumberFormatException e) {
-            return "error number expected";
+            out.print("error number expected");
+            return;
         }
 
         if (messageId < 0) {
-            return "error invalid id";
+            out.print("error invalid id");
+            return;
         }
 
-        StringBuilder response = new StringBuilder();
         try {
             var message = store.getMessage(username, messageId);
-            // the hash will be omitted if it has not been set
-            var hash = message.getHash() != null ? "\nhash " + message.getHash() : "";
-            response.append("from " + message.getFrom()
+            out.print("from " + message.getFrom()
                     + "\nto " + message.getTo()
-                    + "\nsubject " + message.getSubject()
-                    + "\ndata " + message.getData()
-                    + hash);
+                    + "\nsubject " + message.getSubject());
+            writeData(message.getBody(), out);
+            // the hash will be omitted if it has not been set
+            if (message.getHash() != null) {
+                out.print("\nhash " + message.getHash());
+            }
         } catch (IllegalArgumentException e) {
-            return "error " + e.getMessage();
+            out.print("error " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            System.err.println("Could not read message body: " + e.getMessage());
+            out.print("\nerror cannot read data");
+            return;
         }
 
-        response.append("\nok");
+        out.print("\nok");
+    }
 
-        return response.toString();
+    /**
+     * Writes the data line. After compress, a body that gets smaller even in Base64 is sent as
+     * "zdata &lt;size in bytes&gt; &lt;Base64 of the deflated body&gt;" instead.
+     */
+    private void writeData(MessageBody body, PrintWriter out) throws IOException {
+        if (compressing && !body.isSpilled()) {
+            var raw = body.toString().getBytes(StandardCharsets.UTF_8);
+            // Base64 makes it a third larger again
+            var deflated = compressor.deflate(raw, raw.length / 4 * 3);
+            if (deflated != null) {
+                out.print("\nzdata " + raw.length + " " + Base64.getEncoder().encodeToString(deflated));
+                return;
+            }
+        }
+
+        out.print("\ndata ");
+        body.writeTo(out);
     }
 
     private String deleteMessage(String input, String username, MessageStore store) {
@@ -1,34 +1,44 @@
 package dslab.mailbox.handler;
 
-import dslab.util.handler.IListener;
+import dslab.util.Compressor;
 import dslab.util.handler.IListenerFactory;
+import dslab.util.handler.LineConnection;
+import dslab.util.handler.LineListener;
+import dslab.util.handler.SessionRegistry;
 
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.security.PrivateKey;
-import java.util.LinkedList;
 
 public class DMAPListenerFactory implements IListenerFactory {
-    private LinkedList<DMAPListener> handlers = new LinkedList<>();
+    private final SessionRegistry handlers = new SessionRegistry();
     private final String componentId;
     private final PrivateKey rsaPrivateKey;
+    private final Compressor compressor;
 
-    public DMAPListenerFactory(String componentId, PrivateKey rsaPrivateKey) {
+    public DMAPListenerFactory(String componentId, PrivateKey rsaPrivateKey, Compressor compressor) {
         this.componentId = componentId;
         this.rsaPrivateKey = rsaPrivateKey;
+        this.compressor = compressor;
     }
 
     @Override
-    public IListener newHandler(Socket socket) {
-        DMAPListener handler = new DMAPListener(socket, componentId, rsaPrivateKey);
+    public LineListener newHandler(LineConnection connection) {
+        DMAPListener handler = new DMAPListener(connection, componentId, rsaPrivateKey, compressor);
         handlers.add(handler);
         return handler;
     }
 
+    @Override
+    public void drainAll() {
+        handlers.drainAll();
+    }
+
     @Override
     public void stopAll() {
-        for (var handler : handlers) {
-            handler.stop();
-        }
+        handlers.stopAll();
+    }
+
+    @Override
+    public int getSessionCount() {
+        return handlers.size();
     }
 }
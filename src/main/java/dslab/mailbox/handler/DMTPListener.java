@@ -1,76 +1,82 @@
 package dslab.mailbox.handler;
 
+import dslab.util.BodyStore;
+import dslab.util.Compressor;
+import dslab.util.DMTPState;
 import dslab.util.Message;
 import dslab.mailbox.MessageStore;
-import dslab.util.handler.IListener;
-import dslab.util.parser.DMTPParser;
+import dslab.util.handler.LineConnection;
+import dslab.util.handler.LineListener;
+import dslab.util.parser.ByteDMTPParser;
+import dslab.util.parser.DMTPFrame;
 import dslab.util.parser.IDMTPParserListener;
 import dslab.util.parser.ParserException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 
-public class DMTPListener implements IListener, IDMTPParserListener {
-    private final Socket socket;
+public class DMTPListener extends LineListener implements IDMTPParserListener {
     private final String serverDomain;
-    private final DMTPParser parser;
+    private final ByteDMTPParser parser;
+    private final BodyStore bodies;
+    private final Compressor compressor;
+    private boolean framed = false;
     private final MessageStore store = MessageStore.getInstance();
-    private BufferedReader reader;
-    private PrintWriter writer;
 
     private Message message = new Message("", "", "", "","");
     private List<String> recipients = new LinkedList<>();
 
 
-    public DMTPListener(Socket socket, String serverDomain) {
-        this.socket = socket;
+    public DMTPListener(LineConnection connection, String serverDomain, BodyStore bodies, Compressor compressor) {
+        super(connection);
         this.serverDomain = serverDomain;
-        this.parser = new DMTPParser(this);
-
-        try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream());
-        } catch (IOException e) {
-            System.err.println("Error creating reader/writer for socket!");
-        }
+        this.parser = new ByteDMTPParser(this);
+        this.bodies = bodies;
+        this.compressor = compressor;
     }
 
     @Override
-    public void run() {
+    public void onOpen() {
+        connection.setMaxLineLength(maxRequestLength());
         writer.println("ok DMTP2.0");
-        writer.flush();
+    }
 
-        while(!socket.isClosed()) {
-            String input = "";
-            try {
-                input = reader.readLine();
-            } catch (IOException e) {
-                System.err.println("Error reading input from socket!");
-                stop();
-            }
+    private int maxRequestLength() {
+        // the longest data command or frame, other requests are far shorter
+        return (int) Math.min(bodies.getMaxSize() + DMTPFrame.MAX_HEAD_LENGTH, Integer.MAX_VALUE);
+    }
 
-            try {
+    @Override
+    public void onLine(String input) {
+        onLine(ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    protected void onLine(ByteBuffer input) {
+        try {
+            if (framed) {
+                parser.parseFrame(input);
+            } else {
                 parser.parse(input);
-            } catch (ParserException e) {
-                writer.println("error protocol error");
             }
-
-            writer.flush();
+        } catch (ParserException e) {
+            writer.println("error protocol error");
+            if (framed) {
+                // the client expects one response per field, there is no way to get back in step
+                writer.flush();
+                stop();
+            }
         }
     }
 
     @Override
-    public synchronized void stop() {
-        try {
-            this.socket.close();
-        } catch (IOException e) {
-            System.err.println("Could not close socket on exit!");
-        }
+    protected boolean isIdle() {
+        // a message that has been begun but not sent yet is finished before the session is drained
+        return parser.getState() == DMTPState.WAITING;
     }
 
     @Override
@@ -80,6 +86,27 @@ public class DMTPListener implements IListener, IDMTPParserListener {
         recipients = new LinkedList<>();
     }
 
+    @Override
+    public void onPipeliningCommand() {
+        // commands are always answered in order, the client may now send a whole message without waiting
+        writer.println("ok pipelining");
+    }
+
+    @Override
+    public void onBinaryCommand() {
+        writer.println("ok binary");
+        // the client waits for this response, so everything after the command is a frame
+        connection.setFramed(maxRequestLength());
+        framed = true;
+    }
+
+    @Override
+    public void onCompressCommand() {
+        writer.println("ok compress");
+        // only frames can carry deflated data, the size it declares is checked before inflating
+        parser.acceptDeflatedData(compressor, bodies.getMaxSize());
+    }
+
     @Override
     public void onQuitCommand() {
         writer.println("ok bye");
@@ -88,11 +115,11 @@ public class DMTPListener implements IListener, IDMTPParserListener {
     }
 
     @Override
-    public void onToCommand(List<String> recipientAddresses) {
+    public void onToCommand(List<CharSequence> recipientAddresses) {
         List<String> recipients = new LinkedList<>();
 
         for (var recipientAddress : recipientAddresses) {
-            String trimmedRecipientAddress = recipientAddress.trim();
+            String trimmedRecipientAddress = recipientAddress.toString().trim();
             String[] addressParts = trimmedRecipientAddress.split("@");
 
             if (addressParts.length != 2) {
@@ -113,41 +140,47 @@ public class DMTPListener implements IListener, IDMTPParserListener {
             recipients.add(addressParts[0]);
         }
 
-        var recipientListJoined = recipientAddresses.stream()
-                .reduce((s1, s2) -> s1 + "," + s2);
-
-        message.setTo(
-                recipientListJoined.orElse("")
-        );
+        message.setTo(String.join(",", recipientAddresses));
         this.recipients = recipients;
         writer.println("ok " + recipients.size());
     }
 
     @Override
-    public void onSubjectCommand(String subject) {
-        this.message.setSubject(subject);
+    public void onSubjectCommand(CharSequence subject) {
+        this.message.setSubject(subject.toString());
         writer.println("ok");
     }
 
     @Override
-    public void onFromCommand(String from) {
-        if (!from.contains("@")) {
+    public void onFromCommand(CharSequence from) {
+        if (!from.toString().contains("@")) {
             writer.println("error invalid address");
             return;
         }
-        this.message.setFrom(from);
+        this.message.setFrom(from.toString());
         writer.println("ok");
     }
 
     @Override
-    public void onDataCommand(String data) {
-        this.message.setData(data);
+    public void onDataCommand(CharSequence data) {
+        if (bodies.isTooLarge(data)) {
+            writer.println("error message too large");
+            return;
+        }
+
+        try {
+            this.message.setBody(bodies.create(data));
+        } catch (IOException e) {
+            System.err.println("Could not store message body: " + e.getMessage());
+            writer.println("error cannot store data");
+            return;
+        }
         writer.println("ok");
     }
 
     @Override
-    public void onHashCommand(String hash) {
-        this.message.setHash(hash);
+    public void onHashCommand(CharSequence hash) {
+        this.message.setHash(hash.toString());
         writer.println("ok");
     }
 
@@ -163,7 +196,8 @@ public class DMTPListener implements IListener, IDMTPParserListener {
             return false;
         }
 
-        for (var recipient : recipients) {
+        // a user named twice gets the message once
+        for (var recipient : new LinkedHashSet<>(recipients)) {
             store.putMessage(recipient, message);
         }
 
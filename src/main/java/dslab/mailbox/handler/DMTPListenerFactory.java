@@ -1,31 +1,45 @@
 package dslab.mailbox.handler;
 
-import dslab.util.handler.IListener;
+import dslab.util.BodyStore;
+import dslab.util.Compressor;
 import dslab.util.handler.IListenerFactory;
+import dslab.util.handler.LineConnection;
+import dslab.util.handler.LineListener;
+import dslab.util.handler.SessionRegistry;
 
-import java.net.Socket;
-import java.util.LinkedList;
 
 public class DMTPListenerFactory implements IListenerFactory {
 
     private final String serverDomain;
-    private final LinkedList<DMTPListener> handlers = new LinkedList<>();
+    private final BodyStore bodies;
+    private final Compressor compressor;
+    private final SessionRegistry handlers = new SessionRegistry();
 
-    public DMTPListenerFactory(String serverDomain) {
+    public DMTPListenerFactory(String serverDomain, BodyStore bodies, Compressor compressor) {
         this.serverDomain = serverDomain;
+        this.bodies = bodies;
+        this.compressor = compressor;
     }
 
     @Override
-    public IListener newHandler(Socket socket) {
-        DMTPListener handler = new DMTPListener(socket, serverDomain);
+    public LineListener newHandler(LineConnection connection) {
+        DMTPListener handler = new DMTPListener(connection, serverDomain, bodies, compressor);
         handlers.add(handler);
         return handler;
     }
 
+    @Override
+    public void drainAll() {
+        handlers.drainAll();
+    }
+
     @Override
     public void stopAll() {
-        for (var handler : handlers) {
-            handler.stop();
-        }
+        handlers.stopAll();
+    }
+
+    @Override
+    public int getSessionCount() {
+        return handlers.size();
     }
 }
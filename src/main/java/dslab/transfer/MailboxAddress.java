@@ -1,5 +1,7 @@
 package dslab.transfer;
 
+import java.util.Objects;
+
 public class MailboxAddress {
     private String domain;
     private int port;
@@ -24,4 +26,22 @@ public class MailboxAddress {
     public void setDomain(String domain) {
         this.domain = domain;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MailboxAddress that = (MailboxAddress) o;
+        return port == that.port && domain.equals(that.domain);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(domain, port);
+    }
+
+    @Override
+    public String toString() {
+        return domain + ":" + port;
+    }
 }
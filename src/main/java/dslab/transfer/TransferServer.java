@@ -4,25 +4,43 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.List;
 
 import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
+import dslab.transfer.handler.CircuitBreaker;
 import dslab.transfer.handler.ClientListenerFactory;
+import dslab.transfer.handler.FairQueue;
+import dslab.transfer.handler.MailboxConnectionPool;
 import dslab.transfer.handler.MailboxListener;
+import dslab.transfer.handler.RetryScheduler;
+import dslab.transfer.handler.Spool;
+import dslab.util.BodyStore;
+import dslab.util.Compressor;
 import dslab.util.Config;
-import dslab.util.Message;
-import dslab.util.handler.DispatchListener;
+import dslab.util.IMessage;
+import dslab.util.RingBuffer;
+import dslab.util.TimingWheel;
+import dslab.util.handler.BufferPool;
+import dslab.util.handler.IDispatchListener;
+import dslab.util.handler.ListenerConfig;
 
 public class TransferServer implements ITransferServer, Runnable {
 
-    private final DispatchListener dispatcher;
+    private final IDispatchListener dispatcher;
     private final MailboxListener mailboxListener;
     private final Shell shell;
-    private final BlockingDeque<Message> commandQueue;
+    private final RingBuffer<IMessage> commandQueue;
+    private final List<IMessage> spooled;
+    private final TimingWheel timer;
+    private final BufferPool buffers;
+    private final MailboxConnectionPool connections;
+    private final Compressor compressor;
+    private final Spool spool;
+    private final RetryScheduler<MailboxListener.Attempt> retries;
+    private final long drainTimeout;
 
 
     /**
@@ -34,13 +52,57 @@ public class TransferServer implements ITransferServer, Runnable {
      * @param out the output stream to write console output to
      */
     public TransferServer(String componentId, Config config, InputStream in, PrintStream out) throws IOException {
-        commandQueue = new LinkedBlockingDeque<>();
-        dispatcher = new DispatchListener(config.getInt("tcp.port"), 8, new ClientListenerFactory(commandQueue));
+        commandQueue = new RingBuffer<>(config.getInt("delivery.queue.size", 65536),
+                RingBuffer.WaitStrategy.of(config.getString("delivery.queue.wait", RingBuffer.WAIT_BLOCKING)));
+        timer = new TimingWheel(100, 512);
+        buffers = new BufferPool(config);
+        drainTimeout = config.getInt("shutdown.drain.timeout", 5000);
+        compressor = new Compressor(config);
+        var bodies = new BodyStore(config);
+        var spoolDir = config.getString("spool.dir", "");
+        spool = spoolDir.isEmpty() ? Spool.NONE : new Spool(spoolDir, bodies,
+                config.getInt("spool.segment.size", 16 * 1024 * 1024),
+                config.getInt("spool.compact.interval", 1000));
+        spooled = spool.open();
+        var clients = new ClientListenerFactory(commandQueue, bodies, compressor,
+                Boolean.parseBoolean(config.getString("delivery.relay", "true")), spool,
+                config.getInt("delivery.queue.timeout", 5000));
+        dispatcher = new ListenerConfig(config, "tcp", 8).newListener(clients, timer, buffers);
 
+        connections = new MailboxConnectionPool(buffers,
+                config.getInt("delivery.pool.size", 4),
+                config.getInt("delivery.pool.idle", 60000),
+                config.getInt("delivery.pool.lifetime", 600000),
+                Boolean.parseBoolean(config.getString("delivery.binary", "true")),
+                Boolean.parseBoolean(config.getString("delivery.compress", "true")) ? compressor : null,
+                timer,
+                config.getInt("delivery.timeout.connect", 5000),
+                config.getInt("delivery.timeout.read", 30000));
+        retries = new RetryScheduler<>(config.getInt("delivery.retry.delay", 1000),
+                config.getInt("delivery.retry.delay.max", 300000),
+                Double.parseDouble(config.getString("delivery.retry.jitter", "0.2")),
+                config.getInt("delivery.retry.attempts", 10),
+                config.getInt("delivery.retry.age", 3600000));
         var usageServerAddress = new MailboxAddress(config.getString("monitoring.host"), config.getInt("monitoring.port"));
         mailboxListener = new MailboxListener(commandQueue,
                 usageServerAddress,
-                new MailboxAddress(InetAddress.getLocalHost().getHostAddress(), config.getInt("tcp.port")));
+                new MailboxAddress(InetAddress.getLocalHost().getHostAddress(), config.getInt("tcp.port")),
+                connections,
+                spool,
+                retries,
+                () -> new CircuitBreaker(config.getInt("delivery.breaker.failures", 3),
+                        config.getInt("delivery.breaker.open", 5000),
+                        config.getInt("delivery.breaker.open.max", 60000)),
+                () -> new FairQueue<>(new int[]{
+                        config.getInt("delivery.fair.weight.bounce", 2),
+                        config.getInt("delivery.fair.weight.retry", 1),
+                        config.getInt("delivery.fair.weight.normal", 4)},
+                        config.getInt("delivery.fair.quantum", 1)),
+                config.getString("delivery.fair.key", "sender").equals("domain"),
+                config.getInt("delivery.batch.size", 32),
+                config.getInt("delivery.batch.linger", 20),
+                config.getInt("delivery.threads", 8),
+                config.getInt("delivery.lane.threads", 2));
 
         shell = new Shell(in, out);
         shell.setPrompt("[Transfer] >>> ");
@@ -52,16 +114,64 @@ public class TransferServer implements ITransferServer, Runnable {
         DomainRegistry.getInstance().init();
 
         new Thread(mailboxListener).start();
+        // the messages accepted before a crash or shutdown are delivered first, there may be more than fit at once
+        try {
+            for (var message : spooled) {
+                commandQueue.put(message);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
         new Thread(dispatcher).start();
         shell.run();
     }
 
+    @Command
+    public void listeners() {
+        shell.out().println(dispatcher);
+        shell.out().println(buffers);
+    }
+
+    @Command
+    public void deliveries() {
+        shell.out().println(mailboxListener);
+        shell.out().println(retries);
+        shell.out().println(connections);
+        shell.out().println(spool);
+    }
+
+    @Command
+    public void breakers() {
+        for (var breaker : mailboxListener.getBreakers()) {
+            shell.out().println(breaker);
+        }
+    }
+
+    @Command
+    public void compression() {
+        shell.out().println(compressor);
+    }
+
+    @Command
+    public void pools() {
+        for (var pool : dispatcher.getPools()) {
+            shell.out().println(pool);
+        }
+    }
+
     @Override
     @Command
     public void shutdown() {
-        dispatcher.stop();
-        mailboxListener.stop();
-        commandQueue.push(new Message(null, null, null, null,null));
+        long deadline = System.currentTimeMillis() + drainTimeout;
+
+        // stop accepting first, open sessions may still hand in messages until they are drained
+        int closedSessions = dispatcher.drain(deadline);
+        var report = mailboxListener.drain(deadline);
+        spool.close();
+        timer.stop();
+
+        shell.out().println("drained: " + closedSessions + " sessions closed at deadline, " + report);
         throw new StopShellException();
     }
 
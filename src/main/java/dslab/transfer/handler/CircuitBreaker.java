@@ -0,0 +1,133 @@
+package dslab.transfer.handler;
+
+/**
+ * Decides whether deliveries to one mailbox server are attempted. After a number of failures in a row the breaker
+ * opens and the deliveries are parked without connecting; once the open time has passed, a single probe delivery is
+ * let through. If it succeeds the breaker closes and the parked deliveries go out, otherwise it opens again for
+ * twice the time, up to a maximum. Not thread-safe, the lane of the server guards it.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    private final int failureThreshold;
+    private final long initialOpenTime;
+    private final long maxOpenTime;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openTime;
+    private long openUntil;
+    private boolean probing = false;
+    private long trips = 0;
+
+    /**
+     * @param failureThreshold the number of failures in a row that open the breaker (0 = never open)
+     * @param openTime         the time in milliseconds the breaker stays open at first
+     * @param maxOpenTime      the longest time in milliseconds the breaker stays open
+     */
+    public CircuitBreaker(int failureThreshold, long openTime, long maxOpenTime) {
+        this.failureThreshold = failureThreshold;
+        this.initialOpenTime = Math.max(openTime, 1);
+        this.maxOpenTime = Math.max(maxOpenTime, this.initialOpenTime);
+        this.openTime = this.initialOpenTime;
+    }
+
+    /**
+     * Takes the permission for the next deliveries. An open breaker whose time has passed becomes half-open and
+     * permits one probe, no more until its outcome is known.
+     *
+     * @param wanted the number of deliveries that are waiting
+     * @param now    the current time in milliseconds
+     * @return the number of deliveries that may be attempted
+     */
+    public int permits(int wanted, long now) {
+        if (state == State.OPEN && now >= openUntil) {
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+
+        switch (state) {
+            case CLOSED:
+                return wanted;
+            case HALF_OPEN:
+                if (probing || wanted == 0) {
+                    return 0;
+                }
+                probing = true;
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return whether deliveries are held back, i.e. the breaker is not closed
+     */
+    public boolean isParking() {
+        return state != State.CLOSED;
+    }
+
+    /**
+     * @return whether a probe can be started, i.e. the open time has passed and no probe is in progress
+     */
+    public boolean isDue(long now) {
+        return (state == State.OPEN && now >= openUntil) || (state == State.HALF_OPEN && !probing);
+    }
+
+    /**
+     * The server has answered a delivery, even if it rejected the message.
+     */
+    public void success() {
+        state = State.CLOSED;
+        failures = 0;
+        openTime = initialOpenTime;
+        probing = false;
+    }
+
+    /**
+     * The server could not be reached or did not answer.
+     *
+     * @return true if this failure has opened the breaker
+     */
+    public boolean failure(long now) {
+        if (state == State.HALF_OPEN) {
+            // the probe has failed, the server gets more time
+            openTime = Math.min(openTime * 2, maxOpenTime);
+            open(now);
+            return true;
+        }
+        if (state == State.CLOSED && failureThreshold > 0 && ++failures >= failureThreshold) {
+            open(now);
+            return true;
+        }
+        return false;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openUntil = now + openTime;
+        probing = false;
+        trips++;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        var result = String.format("%s failures %d trips %d", state, failures, trips);
+        if (state == State.OPEN) {
+            result += String.format(" probe in %dms", Math.max(openUntil - System.currentTimeMillis(), 0));
+        }
+        return result;
+    }
+}
@@ -2,88 +2,137 @@ package dslab.transfer.handler;
 
 import dslab.transfer.DomainRegistry;
 import dslab.transfer.MailboxAddress;
+import dslab.util.BodyStore;
+import dslab.util.Compressor;
+import dslab.util.DMTPState;
+import dslab.util.IMessage;
 import dslab.util.Message;
-import dslab.util.handler.IListener;
-import dslab.util.parser.DMTPParser;
+import dslab.util.RelayedMessage;
+import dslab.util.RingBuffer;
+import dslab.util.handler.LineConnection;
+import dslab.util.handler.LineListener;
+import dslab.util.parser.ByteDMTPParser;
+import dslab.util.parser.DMTPFrame;
 import dslab.util.parser.IDMTPParserListener;
 import dslab.util.parser.ParserException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.BlockingDeque;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
-public class ClientListener implements IListener, IDMTPParserListener {
+public class ClientListener extends LineListener implements IDMTPParserListener {
 
-    private final Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
-    private final DMTPParser parser;
-    private final BlockingDeque<Message> commandQueue;
+    private final ByteDMTPParser parser;
+    private final BodyStore bodies;
+    private final Compressor compressor;
+    private final boolean relay;
+    private boolean framed = false;
+    // the frame being parsed, if it is forwarded as it is
+    private ByteBuffer relayedFrame;
+    private final RingBuffer<IMessage> commandQueue;
+    private final Spool spool;
+    private final long queueTimeout;
 
     private Message message;
-    private List<MailboxAddress> messageDestinations = new LinkedList<>();
+    // one entry per mailbox server, however many of its users are recipients
+    private Set<MailboxAddress> messageDestinations = new LinkedHashSet<>();
 
 
-    public ClientListener(Socket socket, BlockingDeque<Message> commandQueue) {
-        this.socket = socket;
-        this.parser = new DMTPParser(this);
+    /**
+     * @param relay whether messages received as frames are forwarded as they are, unless their body would be spilled
+     * @param spool the log a message is written to before it is acknowledged
+     * @param queueTimeout the time in milliseconds to wait for room in a full queue before the message is rejected,
+     *                     sessions on an event loop reject it right away
+     */
+    public ClientListener(LineConnection connection, RingBuffer<IMessage> commandQueue, BodyStore bodies,
+                          Compressor compressor, boolean relay, Spool spool, long queueTimeout) {
+        super(connection);
+        this.parser = new ByteDMTPParser(this);
         this.commandQueue = commandQueue;
-
-        try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream());
-        } catch (IOException e) {
-            System.err.println("Error creating reader/writer for socket!");
-        }
+        this.bodies = bodies;
+        this.compressor = compressor;
+        this.relay = relay;
+        this.spool = spool;
+        this.queueTimeout = queueTimeout;
     }
 
     @Override
-    public void run() {
+    public void onOpen() {
+        connection.setMaxLineLength(maxRequestLength());
         writer.println("ok DMTP2.0");
-        writer.flush();
+    }
 
-        while(!socket.isClosed()) {
-            String input = "";
-            try {
-                input = reader.readLine();
-            } catch (IOException e) {
-                System.err.println("Error reading input from socket!");
-                stop();
-            }
+    private int maxRequestLength() {
+        // the longest data command or frame, other requests are far shorter
+        return (int) Math.min(bodies.getMaxSize() + DMTPFrame.MAX_HEAD_LENGTH, Integer.MAX_VALUE);
+    }
 
-            try {
+    @Override
+    public void onLine(String input) {
+        onLine(ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    protected void onLine(ByteBuffer input) {
+        try {
+            if (framed) {
+                relayedFrame = relay && input.remaining() <= bodies.getSpillThreshold() ? input : null;
+                parser.parseFrame(input);
+            } else {
                 parser.parse(input);
-            } catch (ParserException e) {
-                writer.println("error protocol error");
             }
-
-            writer.flush();
+        } catch (ParserException e) {
+            writer.println("error protocol error");
+            if (framed) {
+                // the client expects one response per field, there is no way to get back in step
+                writer.flush();
+                stop();
+            }
+        } finally {
+            relayedFrame = null;
         }
-
-        stop();
     }
 
     @Override
-    public synchronized void stop() {
-        try {
-            this.socket.close();
-        } catch (IOException e) {
-            System.err.println("Could not close socket on exit!");
-        }
+    protected boolean isIdle() {
+        // a message that has been begun but not sent yet is finished before the session is drained
+        return parser.getState() == DMTPState.WAITING;
     }
 
     @Override
     public void onBeginCommand() {
         message = new Message("", "", "", "","");
-        messageDestinations = new LinkedList<>();
+        messageDestinations = new LinkedHashSet<>();
         writer.println("ok");
     }
 
+    @Override
+    public void onPipeliningCommand() {
+        // commands are always answered in order, the client may now send a whole message without waiting
+        writer.println("ok pipelining");
+    }
+
+    @Override
+    public void onBinaryCommand() {
+        writer.println("ok binary");
+        // the client waits for this response, so everything after the command is a frame
+        connection.setFramed(maxRequestLength());
+        framed = true;
+    }
+
+    @Override
+    public void onCompressCommand() {
+        writer.println("ok compress");
+        // only frames can carry deflated data, the size it declares is checked before inflating
+        parser.acceptDeflatedData(compressor, bodies.getMaxSize());
+    }
+
     @Override
     public void onQuitCommand() {
         writer.println("ok bye");
@@ -92,9 +141,13 @@ public class ClientListener implements IListener, IDMTPParserListener {
     }
 
     @Override
-    public void onToCommand(List<String> recipientAddresses) {
-        for (String recipient : recipientAddresses) {
-            var domainParts = recipient.split("@");
+    public void onToCommand(List<CharSequence> recipientAddresses) {
+        for (CharSequence recipient : recipientAddresses) {
+            var domainParts = recipient.toString().split("@");
+            if (domainParts.length != 2) {
+                writer.println("error wrong address format");
+                return;
+            }
             if (!DomainRegistry.getInstance().hasAddress(domainParts[1])) {
                 writer.println("error unknown address");
                 return;
@@ -102,44 +155,59 @@ public class ClientListener implements IListener, IDMTPParserListener {
             messageDestinations.add(DomainRegistry.getInstance().getAddress(domainParts[1]));
         }
 
-        var recipientListJoined = recipientAddresses.stream()
-                .reduce((s1, s2) -> s1 + "," + s2);
-
-        if (recipientListJoined.isEmpty()) {
+        if (recipientAddresses.isEmpty()) {
             writer.println("error no recipients");
             return;
         }
 
-        message.setTo(recipientListJoined.get());
+        message.setTo(String.join(",", recipientAddresses));
 
         writer.println("ok " + recipientAddresses.size());
     }
 
     @Override
-    public void onSubjectCommand(String subject) {
-        message.setSubject(subject);
+    public void onSubjectCommand(CharSequence subject) {
+        if (relayedFrame == null) {
+            message.setSubject(subject.toString());
+        }
         writer.println("ok");
     }
 
     @Override
-    public void onFromCommand(String from) {
-        if (!from.contains("@")) {
+    public void onFromCommand(CharSequence from) {
+        if (!from.toString().contains("@")) {
             writer.println("error wrong address format");
             return;
         }
-        message.setFrom(from);
+        message.setFrom(from.toString());
         writer.println("ok");
     }
 
     @Override
-    public void onDataCommand(String data) {
-        message.setData(data);
+    public void onDataCommand(CharSequence data) {
+        if (bodies.isTooLarge(data)) {
+            writer.println("error message too large");
+            return;
+        }
+        if (relayedFrame != null) {
+            // only the frame is kept, the data is not decoded
+            writer.println("ok");
+            return;
+        }
+
+        try {
+            message.setBody(bodies.create(data));
+        } catch (IOException e) {
+            System.err.println("Could not store message body: " + e.getMessage());
+            writer.println("error cannot store data");
+            return;
+        }
         writer.println("ok");
     }
 
     @Override
-    public void onHashCommand(String hash) {
-        message.setHash(hash);
+    public void onHashCommand(CharSequence hash) {
+        message.setHash(hash.toString());
         writer.println("ok");
     }
 
@@ -155,9 +223,67 @@ public class ClientListener implements IListener, IDMTPParserListener {
             return false;
         }
 
-        commandQueue.add(message);
+        var accepted = relayedFrame != null ? relay(message, relayedFrame) : message;
+        // the client may forget the message once it has the ok, so the ok waits until the message is stored
+        var stored = spool.append(accepted);
+        if (stored.isDone()) {
+            return queue(accepted, stored);
+        }
+
+        // the sync must not hold up the other sessions of an event loop, the requests after this one wait instead.
+        // if the message cannot be queued after all, the client is told so and sends it again from begin
+        suspend();
+        stored.whenComplete((ignored, error) -> resume(() -> queue(accepted, stored)));
+        return true;
+    }
+
+    /**
+     * Hands the stored message to the delivery and answers the client.
+     *
+     * @return whether the message has been accepted
+     */
+    private boolean queue(IMessage accepted, CompletableFuture<Void> stored) {
+        try {
+            stored.join();
+        } catch (CompletionException e) {
+            System.err.println("Could not spool message: " + e.getCause().getMessage());
+            writer.println("error cannot store message");
+            return false;
+        }
+
+        boolean queued;
+        if (!hasOwnThread()) {
+            // waiting for a slot would hold up every session of the event loop
+            queued = commandQueue.offer(accepted);
+        } else {
+            try {
+                queued = commandQueue.offer(accepted, queueTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        }
+        if (!queued) {
+            // the delivery is behind, the client has to try again later
+            spool.done(accepted);
+            writer.println("error server busy");
+            return false;
+        }
         writer.println("ok");
 
         return true;
     }
+
+    /**
+     * Copies the frame out of the receive buffer, which is reused for the next request.
+     */
+    private static IMessage relay(Message message, ByteBuffer payload) {
+        var frame = ByteBuffer.allocate(Integer.BYTES + payload.remaining())
+                .putInt(payload.remaining())
+                .put(payload.duplicate())
+                .flip();
+        // the mailbox server only answers the hash if the frame has one, the message starts with an empty hash
+        var hash = DMTPFrame.hasField(payload, DMTPFrame.HASH) ? message.getHash() : null;
+        return new RelayedMessage(message.getTo(), message.getFrom(), hash, frame);
+    }
 }
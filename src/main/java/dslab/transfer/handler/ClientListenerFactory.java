@@ -1,33 +1,54 @@
 package dslab.transfer.handler;
 
-import dslab.util.Message;
-import dslab.util.handler.IListener;
+import dslab.util.BodyStore;
+import dslab.util.Compressor;
+import dslab.util.IMessage;
+import dslab.util.RingBuffer;
 import dslab.util.handler.IListenerFactory;
-
-import java.net.Socket;
-import java.util.LinkedList;
-import java.util.concurrent.BlockingDeque;
+import dslab.util.handler.LineConnection;
+import dslab.util.handler.LineListener;
+import dslab.util.handler.SessionRegistry;
 
 public class ClientListenerFactory implements IListenerFactory {
 
-    private final LinkedList<ClientListener> handlers = new LinkedList<>();
-    private final BlockingDeque<Message> commandQueue;
+    private final SessionRegistry handlers = new SessionRegistry();
+    private final RingBuffer<IMessage> commandQueue;
+    private final BodyStore bodies;
+    private final Compressor compressor;
+    private final boolean relay;
+    private final Spool spool;
+    private final long queueTimeout;
 
-    public ClientListenerFactory(BlockingDeque<Message> commandQueue) {
+    public ClientListenerFactory(RingBuffer<IMessage> commandQueue, BodyStore bodies, Compressor compressor,
+                                 boolean relay, Spool spool, long queueTimeout) {
         this.commandQueue = commandQueue;
+        this.spool = spool;
+        this.queueTimeout = queueTimeout;
+        this.bodies = bodies;
+        this.compressor = compressor;
+        this.relay = relay;
     }
 
     @Override
-    public IListener newHandler(Socket socket) {
-        ClientListener handler = new ClientListener(socket, commandQueue);
+    public LineListener newHandler(LineConnection connection) {
+        ClientListener handler = new ClientListener(connection, commandQueue, bodies, compressor, relay, spool,
+                queueTimeout);
         handlers.add(handler);
         return handler;
     }
 
+    @Override
+    public void drainAll() {
+        handlers.drainAll();
+    }
+
     @Override
     public void stopAll() {
-        for (var handler : handlers) {
-            handler.stop();
-        }
+        handlers.stopAll();
+    }
+
+    @Override
+    public int getSessionCount() {
+        return handlers.size();
     }
 }
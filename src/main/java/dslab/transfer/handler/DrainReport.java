@@ -0,0 +1,39 @@
+package dslab.transfer.handler;
+
+/**
+ * Outcome of draining the delivery queue during shutdown.
+ */
+public class DrainReport {
+    private final long delivered;
+    private final long bounced;
+    private final long spooled;
+    private final long abandoned;
+
+    public DrainReport(long delivered, long bounced, long spooled, long abandoned) {
+        this.delivered = delivered;
+        this.bounced = bounced;
+        this.spooled = spooled;
+        this.abandoned = abandoned;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public long getBounced() {
+        return bounced;
+    }
+
+    public long getSpooled() {
+        return spooled;
+    }
+
+    public long getAbandoned() {
+        return abandoned;
+    }
+
+    @Override
+    public String toString() {
+        return "delivered " + delivered + " bounced " + bounced + " spooled " + spooled + " abandoned " + abandoned;
+    }
+}
@@ -0,0 +1,213 @@
+package dslab.transfer.handler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Orders the deliveries waiting for one mailbox server, so that a sender with a large backlog does not hold up the
+ * others. The deliveries are kept in one class per priority, bounces, retries and normal mail. The classes take
+ * turns, each taking up to its weight of deliveries per turn, so bounces and retries neither starve nor are starved
+ * by first attempts. Within a class every sender (or sender domain, depending on the key) has its own FIFO queue, and
+ * the senders with deliveries waiting take turns of the quantum each.
+ * <p/>
+ * Not thread-safe, the lane of the server guards it.
+ *
+ * @param <T> the deliveries
+ */
+public class FairQueue<T> {
+
+    public enum Priority {
+        BOUNCE, RETRY, NORMAL;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final List<Senders> classes = new ArrayList<>();
+    private int current = 0;
+    private int credit;
+    private int size = 0;
+
+    /**
+     * @param weights the number of deliveries each priority, in the order of {@link Priority}, takes per turn
+     * @param quantum the number of deliveries a sender takes per turn within its class
+     */
+    public FairQueue(int[] weights, int quantum) {
+        var priorities = Priority.values();
+        if (weights.length != priorities.length) {
+            throw new IllegalArgumentException("Expected " + priorities.length + " weights");
+        }
+
+        for (int i = 0; i < priorities.length; i++) {
+            // a class without weight would never get a turn
+            classes.add(new Senders(priorities[i], Math.max(weights[i], 1), Math.max(quantum, 1)));
+        }
+        credit = classes.get(0).weight;
+    }
+
+    /**
+     * @param key the sender the delivery is accounted to
+     */
+    public void add(T delivery, Priority priority, String key) {
+        classes.get(priority.ordinal()).add(delivery, key);
+        size++;
+    }
+
+    /**
+     * @return the next delivery, or null if there is none
+     */
+    public T poll() {
+        if (size == 0) {
+            return null;
+        }
+
+        while (true) {
+            var senders = classes.get(current);
+            if (credit > 0 && senders.depth > 0) {
+                credit--;
+                size--;
+                return senders.poll();
+            }
+            // the class has used its turn or has nothing waiting, the next one gets its weight
+            current = (current + 1) % classes.size();
+            credit = classes.get(current).weight;
+        }
+    }
+
+    /**
+     * Removes the deliveries that match, e.g. the ones that have run out of time.
+     */
+    public void removeIf(Predicate<T> filter) {
+        for (var senders : classes) {
+            size -= senders.removeIf(filter);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getDepth(Priority priority) {
+        return classes.get(priority.ordinal()).depth;
+    }
+
+    /**
+     * @return one line per priority with the deliveries waiting and how long the taken ones had waited
+     */
+    @Override
+    public String toString() {
+        var result = new StringBuilder();
+        for (var senders : classes) {
+            if (result.length() > 0) {
+                result.append(String.format("%n"));
+            }
+            result.append(senders);
+        }
+        return result.toString();
+    }
+
+    private static class Entry<T> {
+        private final T delivery;
+        private final long since = System.nanoTime();
+
+        private Entry(T delivery) {
+            this.delivery = delivery;
+        }
+    }
+
+    /**
+     * The deliveries of one priority, a FIFO queue per sender and the senders taking turns.
+     */
+    private class Senders {
+        private final Priority priority;
+        private final int weight;
+        private final int quantum;
+        private final Map<String, Deque<Entry<T>>> queues = new HashMap<>();
+        // the senders with deliveries waiting, the first one has the turn
+        private final Deque<String> turns = new ArrayDeque<>();
+        private int credit;
+        private int depth = 0;
+
+        private long taken = 0;
+        private long waitedNanos = 0;
+        private long maxWaitedNanos = 0;
+
+        private Senders(Priority priority, int weight, int quantum) {
+            this.priority = priority;
+            this.weight = weight;
+            this.quantum = quantum;
+            this.credit = quantum;
+        }
+
+        private void add(T delivery, String key) {
+            var queue = queues.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(key, queue);
+                turns.addLast(key);
+            }
+            queue.addLast(new Entry<>(delivery));
+            depth++;
+        }
+
+        private T poll() {
+            var key = turns.peekFirst();
+            var queue = queues.get(key);
+            var entry = queue.pollFirst();
+            depth--;
+
+            if (queue.isEmpty()) {
+                queues.remove(key);
+                turns.pollFirst();
+                credit = quantum;
+            } else if (--credit == 0) {
+                turns.addLast(turns.pollFirst());
+                credit = quantum;
+            }
+
+            long waited = System.nanoTime() - entry.since;
+            taken++;
+            waitedNanos += waited;
+            maxWaitedNanos = Math.max(maxWaitedNanos, waited);
+            return entry.delivery;
+        }
+
+        private int removeIf(Predicate<T> filter) {
+            int removed = 0;
+            var iterator = queues.entrySet().iterator();
+            while (iterator.hasNext()) {
+                var queue = iterator.next();
+                int before = queue.getValue().size();
+                queue.getValue().removeIf(entry -> filter.test(entry.delivery));
+                removed += before - queue.getValue().size();
+                if (queue.getValue().isEmpty()) {
+                    turns.remove(queue.getKey());
+                    iterator.remove();
+                }
+            }
+            if (removed > 0) {
+                // the sender that had the turn may be gone
+                credit = quantum;
+            }
+            depth -= removed;
+            return removed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s depth %d senders %d taken %d waited avg %.1fms max %dms", priority, depth,
+                    queues.size(), taken, taken == 0 ? 0.0 : waitedNanos / 1e6 / taken, maxWaitedNanos / 1000000);
+        }
+    }
+}
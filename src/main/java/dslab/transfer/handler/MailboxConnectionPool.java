@@ -0,0 +1,295 @@
+package dslab.transfer.handler;
+
+import dslab.transfer.MailboxAddress;
+import dslab.util.Compressor;
+import dslab.util.DMTPSender;
+import dslab.util.IMessage;
+import dslab.util.TimingWheel;
+import dslab.util.handler.BufferPool;
+import dslab.util.handler.SocketConnection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps DMTP sessions to the mailbox servers open between deliveries, so steady-state delivery pays neither the
+ * TCP handshake nor the greeting. Idle sessions are checked before they are reused and closed once they have been
+ * idle or open for too long. Connecting is bounded by the connect timeout, and a server that does not answer a
+ * transaction within the read timeout gets its session closed, so a dead server cannot hold a delivery thread.
+ */
+public class MailboxConnectionPool {
+
+    private final BufferPool buffers;
+    private final int maxIdle;
+    private final long idleTimeout;
+    private final long maxLifetime;
+    private final boolean binary;
+    private final Compressor compressor;
+    private final TimingWheel timer;
+    private final int connectTimeout;
+    private final long readTimeout;
+    private final Map<MailboxAddress, Domain> domains = new LinkedHashMap<>();
+
+    /**
+     * @param buffers     the pool to borrow the I/O buffers from
+     * @param maxIdle     the number of idle sessions kept per mailbox server
+     * @param idleTimeout the time in milliseconds after which an idle session is closed
+     * @param maxLifetime the time in milliseconds after which a session is closed instead of reused (0 = unlimited)
+     * @param binary      whether new sessions try to switch to binary framing
+     * @param compressor  the compressor of binary sessions that accept compressed data, null to not ask for it
+     * @param timer       the timing wheel enforcing the read timeout
+     * @param connectTimeout the time in milliseconds to wait for a connection (0 = the OS default)
+     * @param readTimeout the time in milliseconds a server has to answer the greeting or a transaction (0 = unlimited)
+     */
+    public MailboxConnectionPool(BufferPool buffers, int maxIdle, long idleTimeout, long maxLifetime,
+                                 boolean binary, Compressor compressor,
+                                 TimingWheel timer, int connectTimeout, long readTimeout) {
+        this.buffers = buffers;
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+        this.binary = binary;
+        this.compressor = compressor;
+        this.timer = timer;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Returns an idle session to the server, or opens a new one if none of them is usable.
+     *
+     * @throws ProtocolException if the server did not greet with DMTP
+     * @throws IOException       if the server cannot be reached
+     */
+    public Session acquire(MailboxAddress address) throws IOException {
+        var domain = domain(address);
+        long now = System.currentTimeMillis();
+
+        while (true) {
+            Session session;
+            synchronized (this) {
+                session = domain.idle.pollFirst();
+            }
+            if (session == null) {
+                break;
+            }
+
+            // the server may have timed out or closed the session in the meantime
+            boolean usable = !isExpired(session, now) && session.connection.isIdle();
+            synchronized (this) {
+                if (usable) {
+                    domain.hits++;
+                } else {
+                    domain.evicted++;
+                }
+            }
+            if (usable) {
+                return session;
+            }
+            session.close();
+        }
+
+        long start = System.nanoTime();
+        var session = open(address);
+        synchronized (this) {
+            domain.misses++;
+            domain.connectNanos += System.nanoTime() - start;
+        }
+        return session;
+    }
+
+    private Session open(MailboxAddress address) throws IOException {
+        var channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(address.getDomain(), address.getPort()), connectTimeout);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        // the greeting and negotiation are lock-step, Nagle would hold every request back until the previous ack
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        var connection = new SocketConnection(channel, buffers);
+        var sender = new DMTPSender(connection.getWriter(), connection::readLine, connection::writeFrame,
+                compressor);
+
+        try {
+            if (!withReadTimeout(address, connection, () -> sender.open(true, binary))) {
+                throw new ProtocolException("No DMTP server at " + address);
+            }
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        return new Session(address, connection, sender);
+    }
+
+    /**
+     * Runs a request and the reading of its responses, closing the connection if the server takes longer than the
+     * read timeout. Reads on a socket channel ignore SO_TIMEOUT, closing it is what wakes the blocked thread.
+     *
+     * @throws SocketTimeoutException if the server did not answer in time
+     */
+    private <T> T withReadTimeout(MailboxAddress address, SocketConnection connection, Request<T> request)
+            throws IOException {
+        if (readTimeout <= 0) {
+            return request.run();
+        }
+
+        var timeout = timer.schedule(connection::close, readTimeout, TimeUnit.MILLISECONDS);
+        try {
+            return request.run();
+        } catch (IOException e) {
+            if (connection.isClosed() && !(e instanceof ClosedByInterruptException)) {
+                throw new SocketTimeoutException("No response from " + address + " within " + readTimeout + "ms");
+            }
+            throw e;
+        } finally {
+            timeout.cancel();
+        }
+    }
+
+    private interface Request<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Gives back a session after a completed transaction, it is kept if there is room and it is young enough.
+     */
+    public void release(Session session) {
+        var domain = domain(session.address);
+        long now = System.currentTimeMillis();
+        session.lastUsed = now;
+
+        synchronized (this) {
+            if (domain.idle.size() < maxIdle && !isExpired(session, now)) {
+                // most recently used first, the others run into the idle timeout when there is little traffic
+                domain.idle.addFirst(session);
+                return;
+            }
+            domain.evicted++;
+        }
+        session.close();
+    }
+
+    /**
+     * Closes a session that is in an unknown state, e.g. after a failed transaction or an I/O error.
+     */
+    public void discard(Session session) {
+        session.connection.close();
+    }
+
+    /**
+     * Closes the sessions that have been idle for longer than the idle timeout.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        var expired = new ArrayDeque<Session>();
+        synchronized (this) {
+            for (var domain : domains.values()) {
+                domain.idle.removeIf(session -> {
+                    if (!isExpired(session, now)) return false;
+                    domain.evicted++;
+                    expired.add(session);
+                    return true;
+                });
+            }
+        }
+        expired.forEach(Session::close);
+    }
+
+    /**
+     * Closes all idle sessions.
+     */
+    public void close() {
+        var sessions = new ArrayDeque<Session>();
+        synchronized (this) {
+            for (var domain : domains.values()) {
+                sessions.addAll(domain.idle);
+                domain.idle.clear();
+            }
+        }
+        sessions.forEach(Session::close);
+    }
+
+    /**
+     * @return the number of sessions that have been opened
+     */
+    public synchronized long getConnects() {
+        return domains.values().stream().mapToLong(domain -> domain.misses).sum();
+    }
+
+    private boolean isExpired(Session session, long now) {
+        return now - session.lastUsed > idleTimeout || (maxLifetime > 0 && now - session.created > maxLifetime);
+    }
+
+    private synchronized Domain domain(MailboxAddress address) {
+        return domains.computeIfAbsent(address, key -> new Domain());
+    }
+
+    @Override
+    public synchronized String toString() {
+        var result = new StringBuilder("mailbox connections");
+        domains.forEach((address, domain) -> {
+            long acquired = domain.hits + domain.misses;
+            result.append(String.format("%n  %s idle %d hits %d misses %d hit rate %.2f connect avg %.1fms evicted %d",
+                    address, domain.idle.size(), domain.hits, domain.misses,
+                    acquired == 0 ? 0.0 : (double) domain.hits / acquired,
+                    domain.misses == 0 ? 0.0 : domain.connectNanos / 1e6 / domain.misses,
+                    domain.evicted));
+        });
+        return result.toString();
+    }
+
+    /**
+     * An open DMTP session between transactions, it is only used by one thread at a time.
+     */
+    public class Session {
+
+        private final MailboxAddress address;
+        private final SocketConnection connection;
+        private final DMTPSender sender;
+        private final long created = System.currentTimeMillis();
+        private long lastUsed = created;
+
+        private Session(MailboxAddress address, SocketConnection connection, DMTPSender sender) {
+            this.address = address;
+            this.connection = connection;
+            this.sender = sender;
+        }
+
+        public DMTPSender getSender() {
+            return sender;
+        }
+
+        /**
+         * Sends a message like {@link DMTPSender#send(IMessage)}, within the read timeout of the pool.
+         */
+        public Optional<String> send(IMessage message) throws IOException {
+            return withReadTimeout(address, connection, () -> sender.send(message));
+        }
+
+        private void close() {
+            sender.quit();
+            connection.close();
+        }
+    }
+
+    private static class Domain {
+        private final Deque<Session> idle = new ArrayDeque<>();
+        private long hits;
+        private long misses;
+        private long evicted;
+        private long connectNanos;
+    }
+}
@@ -2,145 +2,414 @@ package dslab.transfer.handler;
 
 import dslab.transfer.DomainRegistry;
 import dslab.transfer.MailboxAddress;
+import dslab.util.IMessage;
 import dslab.util.Message;
+import dslab.util.RelayedMessage;
+import dslab.util.RingBuffer;
 import dslab.util.handler.IListener;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Optional;
-import java.util.concurrent.BlockingDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+/**
+ * Takes the accepted messages from the queue and hands them to one delivery lane per destination mailbox server.
+ * The lanes run on a shared pool of delivery threads, each of them with at most a few threads at a time, so a slow
+ * or unreachable server only holds up its own lane while the others keep delivering. Bounces are delivered through
+ * the lane of the sender's server as well. Within a lane the deliveries are ordered by a {@link FairQueue}, so one
+ * sender cannot hold up the others and bounces and retries are not stuck behind first attempts.
+ */
 public class MailboxListener implements IListener {
 
-    private final BlockingDeque<Message> queue;
+    private final RingBuffer<IMessage> queue;
     private final MailboxAddress usageServerAddress;
     private final MailboxAddress transferServerAddress;
-
-    public MailboxListener(BlockingDeque<Message> queue,
+    private final MailboxConnectionPool connections;
+    private final Spool spool;
+    private final RetryScheduler<Attempt> retries;
+    private final Supplier<CircuitBreaker> breakers;
+    private final Supplier<FairQueue<Attempt>> fairQueues;
+    private final boolean fairByDomain;
+    private final int batchSize;
+    private final long batchLinger;
+    private final ExecutorService workers;
+    private final int laneConcurrency;
+    private final Map<MailboxAddress, Lane> lanes = new ConcurrentHashMap<>();
+
+    private volatile boolean draining = false;
+    private volatile long drainDeadline = Long.MAX_VALUE;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong bounced = new AtomicLong();
+    private final AtomicLong relayed = new AtomicLong();
+    private final AtomicLong recipients = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+
+    /**
+     * @param spool           the log the delivered and bounced messages are marked done in
+     * @param retries         holds back the deliveries that failed for a reason that may go away
+     * @param breakers        creates the circuit breaker of every mailbox server
+     * @param fairQueues      creates the queue that orders the deliveries of every mailbox server
+     * @param fairByDomain    whether the senders sharing a domain share their turns, instead of every address
+     * @param threads         the number of delivery threads shared by all lanes
+     * @param laneConcurrency the number of threads one lane may use at a time, kept below the number of threads so
+     *                        that a stuck server always leaves a thread to the others
+     */
+    public MailboxListener(RingBuffer<IMessage> queue,
                            MailboxAddress usageServerAddress,
-                           MailboxAddress transferServerAddress) {
+                           MailboxAddress transferServerAddress,
+                           MailboxConnectionPool connections,
+                           Spool spool,
+                           RetryScheduler<Attempt> retries,
+                           Supplier<CircuitBreaker> breakers,
+                           Supplier<FairQueue<Attempt>> fairQueues,
+                           boolean fairByDomain,
+                           int batchSize,
+                           long batchLinger,
+                           int threads,
+                           int laneConcurrency) {
         this.queue = queue;
         this.usageServerAddress = usageServerAddress;
         this.transferServerAddress = transferServerAddress;
+        this.connections = connections;
+        this.spool = spool;
+        this.retries = retries;
+        this.breakers = breakers;
+        this.fairQueues = fairQueues;
+        this.fairByDomain = fairByDomain;
+        this.batchSize = Math.max(batchSize, 1);
+        this.batchLinger = batchLinger;
+        threads = Math.max(threads, 1);
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.laneConcurrency = Math.max(1, threads > 1 ? Math.min(laneConcurrency, threads - 1) : 1);
     }
 
     @Override
     public void run() {
-        while(true) {
-            Message message = null;
+        retries.start(attempt -> lane(attempt.address).submit(List.of(attempt)));
+        try {
+            while (System.currentTimeMillis() < drainDeadline) {
+                IMessage message;
+                try {
+                    message = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                // lanes whose breaker has been open long enough probe their server
+                lanes.values().forEach(Lane::resume);
+
+                if (message == null) {
+                    connections.evictIdle();
+                    // the queue has been emptied, no new messages arrive once the listeners are drained
+                    if (draining) break;
+                    continue;
+                }
+
+                var batch = new ArrayList<IMessage>();
+                batch.add(message);
+                collectBatch(batch);
+                dispatch(batch);
+            }
+        } finally {
+            // the lanes stop taking deliveries at the deadline, the ones in progress are allowed to finish
             try {
-                message = queue.take();
-            } catch (InterruptedException ignored) {}
+                awaitLanes();
+                workers.shutdown();
+                if (!workers.awaitTermination(Math.max(drainDeadline - System.currentTimeMillis(), 0) + 1000,
+                        TimeUnit.MILLISECONDS)) {
+                    // closes the channels of deliveries that are still waiting for a server
+                    workers.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                workers.shutdown();
+            }
+            retries.stop();
+            connections.close();
+            finished.countDown();
+        }
+    }
 
-            // A message with null strings means, that we should stop executing
-            if (message != null && message.equals(new Message(null, null, null, null,null))) {
-                return;
+    /**
+     * Adds the queued messages to the batch, waiting up to the linger time for more to arrive.
+     */
+    private void collectBatch(List<IMessage> batch) {
+        long lingerEnd = System.currentTimeMillis() + batchLinger;
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+
+            long remaining = lingerEnd - System.currentTimeMillis();
+            if (batch.size() >= batchSize || remaining <= 0 || draining) {
+                break;
             }
 
-            var addresses = getMailboxAddresses(message);
+            try {
+                var message = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                if (message == null) {
+                    break;
+                }
+                batch.add(message);
+            } catch (InterruptedException e) {
+                // the collected messages are still delivered, the next poll ends the loop
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
 
+    /**
+     * Hands the messages to the lanes of their mailbox servers, without waiting for any of them to be delivered.
+     */
+    private void dispatch(List<IMessage> batch) {
+        var byServer = new LinkedHashMap<MailboxAddress, List<Attempt>>();
+
+        for (var message : batch) {
+            var addresses = getMailboxAddresses(message);
             if (addresses == null) {
+                bounced.incrementAndGet();
                 sendErrorMessage("mailbox not known", message);
+                spool.done(message);
                 continue;
             }
 
-            for (MailboxAddress address : addresses) {
-                try (var socket = new Socket(address.getDomain(), address.getPort());
-                     var writer = new PrintWriter(socket.getOutputStream());
-                     var reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            recipients.addAndGet(message.getTo().split(",").length);
+            // every server gets the message once with all recipients and stores it for those of its domain
+            var delivery = new Delivery(message, addresses.size(), false);
+            for (var address : addresses) {
+                byServer.computeIfAbsent(address, key -> new ArrayList<>()).add(new Attempt(address, delivery, 1));
+            }
+        }
 
-                    var error = sendMessage(writer, reader, message);
+        byServer.forEach((address, deliveries) -> lane(address).submit(deliveries));
+    }
 
-                    writer.println("quit");
-                    writer.flush();
+    /**
+     * Waits until no lane has a delivery left or the deadline has passed, failed deliveries may still add bounces.
+     */
+    private void awaitLanes() throws InterruptedException {
+        synchronized (lanes) {
+            long remaining;
+            while (lanes.values().stream().anyMatch(Lane::isBusy)
+                    && (remaining = drainDeadline - System.currentTimeMillis()) > 0) {
+                lanes.wait(remaining);
+            }
+        }
+    }
 
-                    if (error.isPresent())
-                        sendErrorMessage(error.get(), message);
-                    else
-                        sendUsageDatagram(address, message.getFrom());
+    /**
+     * @return the circuit breaker of every mailbox server with the number of deliveries parked by it
+     */
+    public List<String> getBreakers() {
+        var result = new ArrayList<String>();
+        lanes.values().forEach(lane -> result.add(lane.describeBreaker()));
+        return result;
+    }
 
-                } catch (IOException e) {
-                    sendErrorMessage("failed to connect to mailbox", message);
+    private Lane lane(MailboxAddress address) {
+        return lanes.computeIfAbsent(address, Lane::new);
+    }
+
+    /**
+     * Sends the messages to one mailbox server, one transaction after the other in a single session. A failed
+     * transaction leaves the server in the middle of a message, so the remaining messages get a new session.
+     */
+    private void deliver(MailboxAddress address, List<Attempt> attempts) {
+        int next = 0;
+        while (next < attempts.size()) {
+            MailboxConnectionPool.Session session;
+            try {
+                session = connections.acquire(address);
+            } catch (ClosedByInterruptException e) {
+                break;
+            } catch (ProtocolException e) {
+                // something else is listening on the port
+                lane(address).failure();
+                for (; next < attempts.size(); next++) {
+                    fail(attempts.get(next), "domain lookup error", false);
+                }
+                break;
+            } catch (IOException e) {
+                lane(address).failure();
+                for (; next < attempts.size(); next++) {
+                    fail(attempts.get(next), "failed to connect to mailbox", true);
+                }
+                break;
+            }
+
+            boolean reusable = true;
+            try {
+                while (next < attempts.size()) {
+                    var attempt = attempts.get(next);
+                    var message = attempt.delivery.message;
+                    var error = session.send(message);
+                    next++;
+                    transactions.incrementAndGet();
+
+                    if (error.isPresent()) {
+                        // only a rejected begin is about the server rather than the message
+                        boolean serverError = error.get().equals("begin");
+                        if (serverError) {
+                            lane(address).failure();
+                        } else {
+                            lane(address).success();
+                        }
+                        fail(attempt, errorFor(error.get()), serverError);
+                        reusable = false;
+                        break;
+                    }
+                    lane(address).success();
+                    sendUsageDatagram(address, message.getFrom());
+                    complete(attempt.delivery, null);
+                }
+            } catch (ClosedByInterruptException e) {
+                // stopped on shutdown, the messages are neither delivered nor bounced
+                reusable = false;
+                break;
+            } catch (IOException e) {
+                reusable = false;
+                lane(address).failure();
+                // the message in progress and all after it
+                for (; next < attempts.size(); next++) {
+                    fail(attempts.get(next), "failed to connect to mailbox", true);
+                }
+            } finally {
+                if (reusable) {
+                    connections.release(session);
+                } else {
+                    connections.discard(session);
                 }
             }
         }
     }
 
-    @Override
-    public void stop() {}
-
-    private Optional<String> sendMessage(PrintWriter writer, BufferedReader reader, Message message) throws IOException {
-        String serverOutput = reader.readLine();
-        if (!serverOutput.equals("ok DMTP2.0")) {
-            return Optional.of("domain lookup error");
+    /**
+     * Schedules another attempt if the failure is transient and the delivery has attempts and time left, and gives
+     * the delivery to this server up otherwise.
+     *
+     * @param temporary whether the failure may go away, e.g. a server that is restarting
+     */
+    private void fail(Attempt attempt, String error, boolean temporary) {
+        // without a spool, a retry that is not due before the shutdown would lose the message
+        if (temporary && (!draining || spool.isEnabled())) {
+            // an open breaker keeps the delivery without using up an attempt
+            if (lane(attempt.address).park(attempt)
+                    || retries.schedule(attempt.next(), attempt.number, attempt.delivery.firstAttempt)) {
+                return;
+            }
         }
+        complete(attempt.delivery, error);
+    }
 
-        writer.println("begin");
-        writer.flush();
-        serverOutput = reader.readLine();
-        if (!serverOutput.equals("ok")) {
-            return Optional.of("mailbox server error");
+    /**
+     * Records the outcome of a delivery to one of the message's servers, every failed server sends a bounce.
+     *
+     * @param error the cause of the failure, null if the server has accepted the message
+     */
+    private void complete(Delivery delivery, String error) {
+        if (delivery.bounce) {
+            // if we can't send the bounce just give up
+            return;
         }
 
-        writer.println("to " + message.getTo());
-        writer.flush();
-        serverOutput = reader.readLine();
-        if (!serverOutput.startsWith("ok")) {
-            return Optional.of("unknown recipient");
+        if (error != null) {
+            delivery.failed = true;
+            sendErrorMessage(error, delivery.message);
         }
-
-        writer.println("from " + message.getFrom());
-        writer.flush();
-        serverOutput = reader.readLine();
-        if (!serverOutput.equals("ok")) {
-            return Optional.of("invalid from section");
+        if (delivery.pending.decrementAndGet() > 0) {
+            return;
         }
 
-        writer.println("subject " + message.getSubject());
-        writer.flush();
-        serverOutput = reader.readLine();
-        if (!serverOutput.equals("ok")) {
-            return Optional.of("invalid subject");
+        spool.done(delivery.message);
+        if (delivery.failed) {
+            bounced.incrementAndGet();
+        } else {
+            delivered.incrementAndGet();
+            if (delivery.message instanceof RelayedMessage) {
+                relayed.incrementAndGet();
+            }
         }
+    }
 
-        writer.println("data " + message.getData());
-        writer.flush();
-        serverOutput = reader.readLine();
-        if (!serverOutput.equals("ok")) {
-            return Optional.of("invalid data");
-        }
+    @Override
+    public void stop() {
+        drain(System.currentTimeMillis());
+    }
 
-        if (message.getHash() != null) {
-            writer.println("hash " + message.getHash());
-            writer.flush();
-            serverOutput = reader.readLine();
-            if (!serverOutput.equals("ok")) {
-                return Optional.of("invalid hash");
+    /**
+     * Delivers the queued messages until the queue is empty or the deadline has passed. The listeners accepting
+     * new messages must have been drained before.
+     *
+     * @param deadline the time in milliseconds until which queued messages are delivered
+     * @return the number of messages delivered and bounced during the drain, and the messages left behind
+     */
+    public DrainReport drain(long deadline) {
+        long deliveredBefore = delivered.get();
+        long bouncedBefore = bounced.get();
+
+        drainDeadline = deadline;
+        draining = true;
+
+        try {
+            // a delivery that is in progress at the deadline is allowed to finish
+            if (!finished.await(Math.max(deadline - System.currentTimeMillis(), 0) + 2000, TimeUnit.MILLISECONDS)) {
+                System.err.println("Delivery did not finish in time");
             }
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted while draining deliveries: " + e.getMessage());
         }
 
-        writer.println("send");
-        writer.flush();
-        serverOutput = reader.readLine();
-        if (!serverOutput.equals("ok")) {
-            return Optional.of("missing data");
+        // retries that are not due yet are not waited for
+        long left = queue.size() + lanes.values().stream().mapToLong(Lane::getPending).sum() + retries.getWaiting();
+        if (spool.isEnabled()) {
+            // including the ones stopped in the middle of their delivery, they are delivered after the next start
+            return new DrainReport(delivered.get() - deliveredBefore, bounced.get() - bouncedBefore,
+                    spool.getPending(), 0);
         }
+        return new DrainReport(delivered.get() - deliveredBefore, bounced.get() - bouncedBefore, 0, left);
+    }
 
-        return Optional.empty();
+    private static String errorFor(String command) {
+        switch (command) {
+            case "begin":
+                return "mailbox server error";
+            case "to":
+                return "unknown recipient";
+            case "from":
+                return "invalid from section";
+            case "subject":
+                return "invalid subject";
+            case "data":
+                return "invalid data";
+            case "hash":
+                return "invalid hash";
+            default:
+                return "missing data";
+        }
     }
 
-    private void sendErrorMessage(String error, Message originalMessage) {
+    private void sendErrorMessage(String error, IMessage originalMessage) {
         var address = getSenderAddress(originalMessage);
         // if we can't send the message just give up
         if (address == null)
@@ -151,16 +420,7 @@ public class MailboxListener implements IListener {
                 "error transmitting message " + originalMessage.getSubject(),
                 "Cause: " + error,null);
 
-        try (var socket = new Socket(address.getDomain(), address.getPort());
-             var writer = new PrintWriter(socket.getOutputStream());
-             var reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-            var sendError = sendMessage(writer, reader, message);
-
-            if (sendError.isEmpty()) {
-                sendUsageDatagram(address, "mailer@" + transferServerAddress.getDomain());
-            }
-        } catch (IOException ignored) {}
+        lane(address).submit(List.of(new Attempt(address, new Delivery(message, 1, true), 1)));
     }
 
     private void sendUsageDatagram(MailboxAddress address, String sender) {
@@ -182,14 +442,28 @@ public class MailboxListener implements IListener {
 
     }
 
-    private List<MailboxAddress> getMailboxAddresses(Message message) {
+    @Override
+    public String toString() {
+        long opened = connections.getConnects();
+        var result = new StringBuilder(String.format("deliveries delivered %d bounced %d relayed %d recipients %d"
+                        + " connections %d messages %d per connection %.2f",
+                delivered.get(), bounced.get(), relayed.get(), recipients.get(), opened, transactions.get(),
+                opened == 0 ? 0.0 : (double) transactions.get() / opened));
+        lanes.values().forEach(lane -> result.append(String.format("%n  ")).append(lane));
+        return result.toString();
+    }
+
+    /**
+     * @return the mailbox servers of the recipients, each of them once, or null if a domain is not known
+     */
+    private Set<MailboxAddress> getMailboxAddresses(IMessage message) {
         var toSection = message.getTo();
         var addresses = toSection.split(",");
         var hostnames = Arrays.stream(addresses)
                 .map(address -> address.split("@")[1])
                 .collect(Collectors.toList());
 
-        var result = new ArrayList<MailboxAddress>();
+        var result = new LinkedHashSet<MailboxAddress>();
 
         for (String hostname : hostnames) {
             if (!DomainRegistry.getInstance().hasAddress(hostname)) {
@@ -202,7 +476,18 @@ public class MailboxListener implements IListener {
         return result;
     }
 
-    private MailboxAddress getSenderAddress(Message message) {
+    /**
+     * @return the sender whose turn a delivery of the message takes within its class
+     */
+    private String fairnessKey(IMessage message) {
+        var sender = message.getFrom();
+        if (sender == null || !fairByDomain) {
+            return String.valueOf(sender);
+        }
+        return sender.substring(sender.indexOf('@') + 1);
+    }
+
+    private MailboxAddress getSenderAddress(IMessage message) {
         var fromSection = message.getFrom();
         var hostname = fromSection.split("@")[1];
 
@@ -211,4 +496,176 @@ public class MailboxListener implements IListener {
 
         return DomainRegistry.getInstance().getAddress(hostname);
     }
+
+    /**
+     * A message on its way to its mailbox servers, it is delivered or bounced once all of them are done.
+     */
+    private static class Delivery {
+        private final IMessage message;
+        private final long firstAttempt = System.currentTimeMillis();
+        private final AtomicInteger pending;
+        // bounces are not bounced again
+        private final boolean bounce;
+        private volatile boolean failed = false;
+
+        private Delivery(IMessage message, int servers, boolean bounce) {
+            this.message = message;
+            this.pending = new AtomicInteger(servers);
+            this.bounce = bounce;
+        }
+    }
+
+    /**
+     * The delivery of a message to one of its mailbox servers, counting the attempts made so far.
+     */
+    public static class Attempt {
+        private final MailboxAddress address;
+        private final Delivery delivery;
+        private final int number;
+
+        private Attempt(MailboxAddress address, Delivery delivery, int number) {
+            this.address = address;
+            this.delivery = delivery;
+            this.number = number;
+        }
+
+        private Attempt next() {
+            return new Attempt(address, delivery, number + 1);
+        }
+    }
+
+    /**
+     * The deliveries waiting for one mailbox server. Up to the lane concurrency of threads take batches from it,
+     * a new one is only started while the running ones leave at least a full batch behind. While the breaker of
+     * the server is not closed, the deliveries stay parked here.
+     */
+    private class Lane {
+        private final MailboxAddress address;
+        private final CircuitBreaker breaker = breakers.get();
+        private final FairQueue<Attempt> pending = fairQueues.get();
+        private int running = 0;
+        private long sent = 0;
+
+        private Lane(MailboxAddress address) {
+            this.address = address;
+        }
+
+        synchronized void submit(List<Attempt> attempts) {
+            for (var attempt : attempts) {
+                var priority = attempt.delivery.bounce ? FairQueue.Priority.BOUNCE
+                        : attempt.number > 1 ? FairQueue.Priority.RETRY : FairQueue.Priority.NORMAL;
+                pending.add(attempt, priority, fairnessKey(attempt.delivery.message));
+            }
+            startWorkers();
+        }
+
+        /**
+         * Starts a probe if the breaker has been open long enough.
+         */
+        synchronized void resume() {
+            if (!pending.isEmpty() && breaker.isDue(System.currentTimeMillis())) {
+                startWorkers();
+            }
+        }
+
+        /**
+         * Keeps a failed delivery if the breaker is not closed, it goes out with the others once it closes.
+         *
+         * @return false if the breaker is closed
+         */
+        synchronized boolean park(Attempt attempt) {
+            if (!breaker.isParking()) {
+                return false;
+            }
+            pending.add(attempt, attempt.delivery.bounce ? FairQueue.Priority.BOUNCE : FairQueue.Priority.RETRY,
+                    fairnessKey(attempt.delivery.message));
+            return true;
+        }
+
+        synchronized void success() {
+            boolean parking = breaker.isParking();
+            breaker.success();
+            if (parking) {
+                // the parked deliveries go out
+                startWorkers();
+            }
+        }
+
+        void failure() {
+            var expired = new ArrayList<Attempt>();
+            synchronized (this) {
+                if (!breaker.failure(System.currentTimeMillis())) {
+                    return;
+                }
+                // parked deliveries are given up after the same time as retried ones
+                pending.removeIf(attempt -> {
+                    if (!retries.isExpired(attempt.delivery.firstAttempt)) return false;
+                    expired.add(attempt);
+                    return true;
+                });
+            }
+            expired.forEach(attempt -> complete(attempt.delivery, "failed to connect to mailbox"));
+        }
+
+        private void startWorkers() {
+            int wanted = Math.min(laneConcurrency, (pending.size() + batchSize - 1) / batchSize);
+            if (breaker.isParking()) {
+                // at most the probe, and only once it is due
+                wanted = breaker.isDue(System.currentTimeMillis()) ? Math.min(wanted, 1) : 0;
+            }
+            for (; running < wanted; running++) {
+                try {
+                    workers.execute(this::work);
+                } catch (RejectedExecutionException e) {
+                    // shut down after the deadline, the deliveries are left behind
+                    break;
+                }
+            }
+        }
+
+        private void work() {
+            while (true) {
+                var batch = new ArrayList<Attempt>();
+                synchronized (this) {
+                    int permits = breaker.permits(Math.min(batchSize, pending.size()), System.currentTimeMillis());
+                    while (batch.size() < permits && System.currentTimeMillis() < drainDeadline) {
+                        batch.add(pending.poll());
+                    }
+                    if (batch.isEmpty()) {
+                        running--;
+                        break;
+                    }
+                    sent += batch.size();
+                }
+                deliver(address, batch);
+            }
+
+            synchronized (lanes) {
+                lanes.notifyAll();
+            }
+        }
+
+        synchronized boolean isBusy() {
+            // parked deliveries are not waited for
+            return running > 0 || (!pending.isEmpty() && !breaker.isParking());
+        }
+
+        synchronized String describeBreaker() {
+            return String.format("%s %s parked %d", address, breaker, breaker.isParking() ? pending.size() : 0);
+        }
+
+        synchronized long getPending() {
+            return pending.size();
+        }
+
+        @Override
+        public synchronized String toString() {
+            var result = new StringBuilder(String.format("lane %s pending %d threads %d taken %d",
+                    address, pending.size(), running, sent));
+            for (var line : pending.toString().split(String.format("%n"))) {
+                result.append(String.format("%n    ")).append(line);
+            }
+            return result.toString();
+        }
+    }
 }
@@ -0,0 +1,149 @@
+package dslab.transfer.handler;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Holds failed deliveries back until their next attempt is due. The delay doubles with every attempt up to a
+ * maximum and is spread by a random jitter, so the deliveries that failed together while a server was restarting
+ * do not all come back at the same moment. Waiting deliveries sit in a delay queue; a single thread takes them out
+ * when they are due and hands them back, so they do not keep a delivery thread busy in the meantime.
+ *
+ * @param <T> the deliveries
+ */
+public class RetryScheduler<T> {
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double jitter;
+    private final int maxAttempts;
+    private final long maxAge;
+    private final DelayQueue<Scheduled<T>> waiting = new DelayQueue<>();
+
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private volatile Thread thread;
+
+    /**
+     * @param initialDelay the time in milliseconds before the second attempt
+     * @param maxDelay     the longest time in milliseconds between two attempts
+     * @param jitter       the fraction of the delay it is randomly shortened or lengthened by, e.g. 0.2
+     * @param maxAttempts  the number of attempts after which a delivery is given up
+     * @param maxAge       the time in milliseconds since the first attempt after which a delivery is given up
+     */
+    public RetryScheduler(long initialDelay, long maxDelay, double jitter, int maxAttempts, long maxAge) {
+        this.initialDelay = Math.max(initialDelay, 1);
+        this.maxDelay = Math.max(maxDelay, this.initialDelay);
+        this.jitter = Math.min(Math.max(jitter, 0), 1);
+        this.maxAttempts = maxAttempts;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Schedules the next attempt of a delivery, unless it has run out of attempts or time.
+     *
+     * @param delivery     the delivery
+     * @param attempts     the number of attempts made so far
+     * @param firstAttempt the time in milliseconds of the first attempt
+     * @return false if the delivery has to be given up
+     */
+    public boolean schedule(T delivery, int attempts, long firstAttempt) {
+        long delay = delay(attempts);
+        if (attempts >= maxAttempts || System.currentTimeMillis() + delay - firstAttempt > maxAge) {
+            expired.incrementAndGet();
+            return false;
+        }
+
+        scheduled.incrementAndGet();
+        waiting.add(new Scheduled<>(delivery, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)));
+        return true;
+    }
+
+    /**
+     * @param firstAttempt the time in milliseconds of the first attempt of a delivery
+     * @return whether the delivery is too old for another attempt
+     */
+    public boolean isExpired(long firstAttempt) {
+        return System.currentTimeMillis() - firstAttempt > maxAge;
+    }
+
+    /**
+     * @return the delay in milliseconds after the given number of failed attempts, jitter included
+     */
+    long delay(int attempts) {
+        // the shift is capped well before the delay could overflow
+        long delay = Math.min(initialDelay << Math.min(Math.max(attempts - 1, 0), 30), maxDelay);
+        double spread = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max((long) (delay * spread), 1);
+    }
+
+    /**
+     * Starts the thread handing back the deliveries.
+     *
+     * @param due called with every delivery whose next attempt is due
+     */
+    public void start(Consumer<T> due) {
+        thread = new Thread(() -> {
+            while (true) {
+                Scheduled<T> next;
+                try {
+                    next = waiting.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                resumed.incrementAndGet();
+                due.accept(next.delivery);
+            }
+        }, "delivery-retries");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops handing back deliveries, the ones still waiting are left in the queue.
+     */
+    public void stop() {
+        var thread = this.thread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return the number of deliveries waiting for their next attempt
+     */
+    public int getWaiting() {
+        return waiting.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("retries waiting %d scheduled %d resumed %d expired %d",
+                waiting.size(), scheduled.get(), resumed.get(), expired.get());
+    }
+
+    private static class Scheduled<T> implements Delayed {
+        private final T delivery;
+        private final long dueNanos;
+
+        private Scheduled(T delivery, long dueNanos) {
+            this.delivery = delivery;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((Scheduled<?>) other).dueNanos);
+        }
+    }
+}
@@ -0,0 +1,852 @@
+package dslab.transfer.handler;
+
+import dslab.util.BodyStore;
+import dslab.util.IMessage;
+import dslab.util.Message;
+import dslab.util.MessageBody;
+import dslab.util.RelayedMessage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the accepted messages of a transfer server. A message is appended before the client gets its
+ * {@code ok} and marked done once it has been delivered or bounced; the messages without a mark are queued again
+ * when the server starts.
+ * <p/>
+ * The log is a sequence of segment files. A single writer thread appends the records and forces them to disk, and
+ * everything that arrives while it is forcing goes into the next write (group commit), so concurrent sessions share
+ * the cost of a sync. A full segment is sealed and a new one started. The compactor copies the messages that are
+ * still pending out of the oldest sealed segment into the current one and then deletes it.
+ * <p/>
+ * Records are {@code [int length][int crc][byte type][long id][payload]}; a torn record at the end of a segment is
+ * cut off when the log is read. A spilled body is streamed into the log after the rest of its record, and records
+ * are read back and compacted from the segment files in chunks, so large bodies never end up on the heap as a whole.
+ */
+public class Spool {
+
+    /**
+     * A spool that keeps nothing, messages only live in memory.
+     */
+    public static final Spool NONE = new Spool();
+
+    private static final byte ACCEPTED = 1;
+    private static final byte DONE = 2;
+    private static final byte PLAIN = 0;
+    private static final byte RELAYED = 1;
+    private static final int HEADER = 2 * Integer.BYTES;
+    private static final int CHUNK = 64 * 1024;
+    private static final String SUFFIX = ".spool";
+
+    private final Path directory;
+    private final BodyStore bodies;
+    private final long segmentSize;
+    private final long compactInterval;
+
+    // guarded by this
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<Long, Entry> live = new TreeMap<>();
+    private final Map<IMessage, Entry> byMessage = new IdentityHashMap<>();
+    private List<Record> buffered = new ArrayList<>();
+    private long nextId = 1;
+    private long appendedSeq = 0;
+    private long durableSeq = 0;
+    private IOException failure;
+    private boolean closed = false;
+
+    private Segment active;
+    private Thread writerThread;
+    private Thread compactorThread;
+
+    private long commits;
+    private long records;
+    private long compacted;
+
+    private Spool() {
+        this.directory = null;
+        this.bodies = null;
+        this.segmentSize = 0;
+        this.compactInterval = 0;
+    }
+
+    /**
+     * @param directory       the directory of the segment files, created if it does not exist
+     * @param bodies          creates the bodies of the messages read back from the log
+     * @param segmentSize     the size in bytes after which a segment is sealed
+     * @param compactInterval the time in milliseconds between two checks for a sealed segment to compact
+     */
+    public Spool(String directory, BodyStore bodies, long segmentSize, long compactInterval) {
+        this.directory = Paths.get(directory);
+        this.bodies = bodies;
+        this.segmentSize = segmentSize;
+        this.compactInterval = compactInterval;
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Reads the log, starts a new segment and the writer and compactor threads.
+     *
+     * @return the messages that had been accepted but not marked done, in the order they were accepted
+     * @throws IOException if the log cannot be read or the new segment cannot be created
+     */
+    public synchronized List<IMessage> open() throws IOException {
+        if (!isEnabled()) {
+            return List.of();
+        }
+        Files.createDirectories(directory);
+
+        var recovered = new TreeMap<Long, Record>();
+        try (var files = Files.list(directory)) {
+            for (var path : files.filter(Spool::isSegment).collect(Collectors.toList())) {
+                int index = Integer.parseInt(path.getFileName().toString().replace(SUFFIX, ""));
+                segments.put(index, new Segment(index, path));
+            }
+        }
+        for (var segment : segments.values()) {
+            read(segment, recovered);
+        }
+
+        var messages = new ArrayList<IMessage>();
+        for (var record : recovered.values()) {
+            var message = decode(record.source, record.sourceOffset);
+            var entry = new Entry(record.id, message, null);
+            entry.segment = record.source;
+            entry.offset = record.sourceOffset;
+            entry.length = record.length;
+            entry.segment.live++;
+            live.put(entry.id, entry);
+            byMessage.put(message, entry);
+            messages.add(message);
+        }
+
+        active = newSegment();
+        writerThread = new Thread(this::write, "spool-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        compactorThread = new Thread(this::compact, "spool-compactor");
+        compactorThread.setDaemon(true);
+        compactorThread.start();
+        return messages;
+    }
+
+    /**
+     * Appends the message without waiting for the disk, so a thread serving many sessions is not held up by the
+     * sync of one of them.
+     *
+     * @return completed once the message is on disk, or exceptionally with the {@link IOException} if the record
+     *         cannot be written or forced to disk; the completion runs on the writer thread and must not block
+     */
+    public CompletableFuture<Void> append(IMessage message) {
+        var stored = new CompletableFuture<Void>();
+        if (!isEnabled()) {
+            stored.complete(null);
+            return stored;
+        }
+
+        long id;
+        synchronized (this) {
+            id = nextId++;
+        }
+        // a spilled body is streamed into the log by the writer instead of being copied onto the heap
+        var body = message instanceof RelayedMessage || !message.getBody().isSpilled() ? null : message.getBody();
+        // the rest is encoded outside of the lock
+        byte[] bytes;
+        try {
+            bytes = record(ACCEPTED, id, encode(message, body == null), body == null ? 0 : body.getLength());
+        } catch (IOException e) {
+            stored.completeExceptionally(e);
+            return stored;
+        }
+
+        var entry = new Entry(id, message, stored);
+        IOException refused = null;
+        synchronized (this) {
+            if (failure != null || closed) {
+                refused = failure != null ? failure : new IOException("Spool is closed");
+            } else {
+                live.put(id, entry);
+                byMessage.put(message, entry);
+                enqueue(new Record(id, bytes, body, entry));
+            }
+        }
+        if (refused != null) {
+            stored.completeExceptionally(refused);
+        }
+        return stored;
+    }
+
+    /**
+     * Marks a message as delivered or bounced. The mark is written with the next commit, without waiting for it;
+     * a message whose mark is lost is delivered again after a restart.
+     */
+    public void done(IMessage message) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (this) {
+            var entry = byMessage.remove(message);
+            if (entry == null) {
+                return;
+            }
+            live.remove(entry.id);
+            if (entry.segment != null) {
+                entry.segment.live--;
+            }
+            enqueue(new Record(entry.id, record(DONE, entry.id, new byte[0], 0), null, null));
+        }
+    }
+
+    /**
+     * @return the number of accepted messages that have not been marked done
+     */
+    public synchronized int getPending() {
+        return live.size();
+    }
+
+    /**
+     * Writes the buffered records and stops the threads. Messages that are still pending stay in the log.
+     */
+    public void close() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (this) {
+            if (closed || active == null) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        compactorThread.interrupt();
+        try {
+            writerThread.join();
+            compactorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            segments.values().forEach(Segment::close);
+        }
+    }
+
+    private synchronized long enqueue(Record record) {
+        buffered.add(record);
+        notifyAll();
+        return ++appendedSeq;
+    }
+
+    private synchronized void awaitDurable(long seq) throws IOException {
+        try {
+            while (durableSeq < seq && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the spool");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Loop of the writer thread: takes everything buffered, writes it with one call and forces it to disk.
+     */
+    private void write() {
+        while (true) {
+            List<Record> batch;
+            long upTo;
+            synchronized (this) {
+                while (buffered.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (buffered.isEmpty()) {
+                    return;
+                }
+                batch = buffered;
+                buffered = new ArrayList<>();
+                upTo = appendedSeq;
+            }
+
+            try {
+                var segment = active;
+                long position = segment.channel.size();
+                writeBatch(segment.channel, position, batch);
+                segment.channel.force(false);
+
+                synchronized (this) {
+                    for (var record : batch) {
+                        place(record, segment, position);
+                        position += record.length;
+                    }
+                    commits++;
+                    records += batch.size();
+                    durableSeq = upTo;
+                    if (position >= segmentSize) {
+                        // the sealed segment is only read from now on
+                        active = newSegment();
+                    }
+                    notifyAll();
+                }
+                // outside of the lock, the sessions continue from here
+                for (var record : batch) {
+                    record.stored();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not write spool: " + e.getMessage());
+                List<Record> lost;
+                synchronized (this) {
+                    failure = e;
+                    lost = new ArrayList<>(batch);
+                    lost.addAll(buffered);
+                    buffered.clear();
+                    for (var record : lost) {
+                        if (record.isAppend()) {
+                            live.remove(record.id);
+                            byMessage.remove(record.entry.message);
+                        }
+                    }
+                    notifyAll();
+                }
+                for (var record : lost) {
+                    record.failed(e);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the records one after the other from the position on, the ones in memory with as few calls as possible.
+     *
+     * @return the position after the last record
+     */
+    private static long writeBatch(FileChannel channel, long position, List<Record> batch) throws IOException {
+        var buffers = new ArrayList<ByteBuffer>();
+        for (var record : batch) {
+            if (record.body == null && record.source == null) {
+                buffers.add(ByteBuffer.wrap(record.bytes));
+                continue;
+            }
+            position = writeBuffers(channel, position, buffers);
+            buffers.clear();
+            if (record.source != null) {
+                position = record.source.transferRecord(record.sourceOffset, record.length, channel, position);
+            } else {
+                position = writeStreamed(channel, position, record);
+            }
+        }
+        return writeBuffers(channel, position, buffers);
+    }
+
+    private static long writeBuffers(FileChannel channel, long position, List<ByteBuffer> buffers)
+            throws IOException {
+        long end = position;
+        for (var buffer : buffers) {
+            end += buffer.remaining();
+        }
+        var array = buffers.toArray(new ByteBuffer[0]);
+        channel.position(position);
+        while (channel.position() < end) {
+            channel.write(array);
+        }
+        return end;
+    }
+
+    /**
+     * Writes the head of the record and copies the spilled body after it in chunks. The checksum is filled in once
+     * the body has been read.
+     *
+     * @return the position after the record
+     */
+    private static long writeStreamed(FileChannel channel, long position, Record record) throws IOException {
+        var crc = new CRC32();
+        crc.update(record.bytes, HEADER, record.bytes.length - HEADER);
+        long end = writeBuffers(channel, position, List.of(ByteBuffer.wrap(record.bytes)));
+
+        try (var in = record.body.openStream()) {
+            var chunk = new byte[CHUNK];
+            for (long remaining = record.body.getLength(); remaining > 0; ) {
+                int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Spilled body of spool record " + record.id + " is incomplete");
+                }
+                crc.update(chunk, 0, read);
+                var buffer = ByteBuffer.wrap(chunk, 0, read);
+                while (buffer.hasRemaining()) {
+                    end += channel.write(buffer, end);
+                }
+                remaining -= read;
+            }
+        }
+
+        var checksum = ByteBuffer.allocate(Integer.BYTES).putInt(0, (int) crc.getValue());
+        while (checksum.hasRemaining()) {
+            channel.write(checksum, position + Integer.BYTES + checksum.position());
+        }
+        return end;
+    }
+
+    /**
+     * Records where the accepted message is kept now, unless it has been marked done in the meantime.
+     */
+    private void place(Record record, Segment segment, long offset) {
+        var entry = record.entry;
+        if (entry == null || live.get(entry.id) != entry) {
+            return;
+        }
+        if (entry.segment != null) {
+            entry.segment.live--;
+        }
+        entry.segment = segment;
+        entry.offset = offset;
+        entry.length = record.length;
+        segment.live++;
+    }
+
+    /**
+     * Loop of the compactor thread.
+     */
+    private void compact() {
+        while (true) {
+            try {
+                Thread.sleep(compactInterval);
+                while (compactOldest()) {
+                    // the next segment may be sealed as well
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Could not compact spool: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Copies the pending messages of the oldest sealed segment to the active one and deletes it. Only the oldest
+     * segment may go, as the marks in it may refer to messages in an older one.
+     *
+     * @return false if there is no sealed segment
+     */
+    private boolean compactOldest() throws IOException, InterruptedException {
+        Segment oldest;
+        var copies = new ArrayList<Record>();
+        synchronized (this) {
+            oldest = segments.firstEntry().getValue();
+            if (oldest == active || closed) {
+                return false;
+            }
+            for (var entry : live.values()) {
+                if (entry.segment == oldest) {
+                    // the writer copies the record from file to file
+                    copies.add(new Record(entry.id, oldest, entry.offset, entry.length, entry));
+                }
+            }
+        }
+
+        long seq = 0;
+        synchronized (this) {
+            for (var copy : copies) {
+                // a message marked done in the meantime must not be brought back by its copy
+                if (live.get(copy.id) == copy.entry) {
+                    seq = enqueue(copy);
+                }
+            }
+        }
+        try {
+            awaitDurable(seq);
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException(e.getMessage());
+        }
+
+        synchronized (this) {
+            if (oldest.live > 0) {
+                return false;
+            }
+            segments.remove(oldest.index);
+            compacted++;
+        }
+        oldest.close();
+        Files.deleteIfExists(oldest.path);
+        return true;
+    }
+
+    private Segment newSegment() throws IOException {
+        int index = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        var segment = new Segment(index, directory.resolve(String.format("%08d%s", index, SUFFIX)));
+        segment.channel = FileChannel.open(segment.path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(index, segment);
+        return segment;
+    }
+
+    private static boolean isSegment(Path path) {
+        return path.getFileName().toString().matches("\\d+\\" + SUFFIX);
+    }
+
+    /**
+     * Applies the records of a segment, cutting it off at the first record that is torn or damaged.
+     */
+    private void read(Segment segment, Map<Long, Record> pending) throws IOException {
+        try (var channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long position = 0;
+            var header = ByteBuffer.allocate(HEADER);
+            var start = ByteBuffer.allocate(1 + Long.BYTES);
+            var chunk = ByteBuffer.allocate(CHUNK);
+
+            while (position + HEADER <= size) {
+                header.clear();
+                channel.read(header, position);
+                header.flip();
+                int length = header.getInt();
+                int crc = header.getInt();
+                if (length < 1 + Long.BYTES || position + HEADER + length > size) {
+                    break;
+                }
+
+                if (checksum(channel, position + HEADER, length, chunk) != crc) {
+                    break;
+                }
+
+                start.clear();
+                channel.read(start, position + HEADER);
+                start.flip();
+                byte type = start.get();
+                long id = start.getLong();
+                nextId = Math.max(nextId, id + 1);
+                if (type == ACCEPTED) {
+                    // the message is decoded once it is known to be pending
+                    pending.put(id, new Record(id, segment, position, HEADER + length, null));
+                } else {
+                    pending.remove(id);
+                }
+                position += HEADER + length;
+            }
+
+            if (position < size) {
+                System.err.println("Cutting off damaged spool records at " + segment.path + ":" + position);
+                channel.truncate(position);
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * @param streamed the length of a body the writer streams after the payload, it also fills in the checksum then
+     */
+    private static byte[] record(byte type, long id, byte[] payload, long streamed) {
+        var bytes = ByteBuffer.allocate(HEADER + 1 + Long.BYTES + payload.length);
+        bytes.putInt((int) (1 + Long.BYTES + payload.length + streamed)).putInt(0).put(type).putLong(id).put(payload);
+        var array = bytes.array();
+        if (streamed == 0) {
+            ByteBuffer.wrap(array).putInt(Integer.BYTES, checksum(array, HEADER));
+        }
+        return array;
+    }
+
+    private static int checksum(byte[] bytes, int offset) {
+        var crc = new CRC32();
+        crc.update(bytes, offset, bytes.length - offset);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the checksum of the bytes at the position, read in chunks
+     */
+    private static int checksum(FileChannel channel, long position, long length, ByteBuffer chunk)
+            throws IOException {
+        var crc = new CRC32();
+        for (long done = 0; done < length; ) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), length - done));
+            int read = channel.read(chunk, position + done);
+            if (read < 0) {
+                throw new EOFException("Spool record ends before its length");
+            }
+            chunk.flip();
+            crc.update(chunk);
+            done += read;
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @param withBody whether the body is part of the payload, otherwise only its length is and the body is streamed
+     *                 after it
+     */
+    private static byte[] encode(IMessage message, boolean withBody) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        if (message instanceof RelayedMessage) {
+            out.writeByte(RELAYED);
+            writeString(out, message.getTo());
+            writeString(out, message.getFrom());
+            writeString(out, message.getHash());
+            // the frame is a read-only view
+            var frame = ((RelayedMessage) message).getFrame();
+            var copy = new byte[frame.remaining()];
+            frame.get(copy);
+            out.writeInt(copy.length);
+            out.write(copy);
+        } else {
+            out.writeByte(PLAIN);
+            writeString(out, message.getTo());
+            writeString(out, message.getFrom());
+            writeString(out, message.getSubject());
+            writeString(out, message.getHash());
+            out.writeInt((int) message.getBody().getLength());
+            if (withBody) {
+                try (var body = message.getBody().openStream()) {
+                    body.transferTo(out);
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the message of the accepted record at the offset, a large body goes from the log straight to its file.
+     */
+    private IMessage decode(Segment segment, long offset) throws IOException {
+        var in = new DataInputStream(new BufferedInputStream(segment.openStream(offset + HEADER + 1 + Long.BYTES)));
+        byte kind = in.readByte();
+        if (kind == RELAYED) {
+            var to = readString(in);
+            var from = readString(in);
+            var hash = readString(in);
+            var frame = new byte[in.readInt()];
+            in.readFully(frame);
+            return new RelayedMessage(to, from, hash, ByteBuffer.wrap(frame));
+        }
+
+        var message = new Message(readString(in), readString(in), readString(in), "", readString(in));
+        message.setBody(bodies.read(in, in.readInt()));
+        return message;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (!isEnabled()) {
+            return "spool disabled";
+        }
+        return String.format("spool pending %d segments %d commits %d records %d per commit %.2f compacted %d",
+                live.size(), segments.size(), commits, records, commits == 0 ? 0.0 : (double) records / commits,
+                compacted);
+    }
+
+    /**
+     * An accepted message that has not been marked done, and the segment and offset of its latest record.
+     */
+    private static class Entry {
+        private final long id;
+        private final IMessage message;
+        // completed once the message is on disk for the first time, null for messages read from the log
+        private final CompletableFuture<Void> stored;
+        private Segment segment;
+        private long offset;
+        private long length;
+
+        private Entry(long id, IMessage message, CompletableFuture<Void> stored) {
+            this.id = id;
+            this.message = message;
+            this.stored = stored;
+        }
+    }
+
+    /**
+     * A record waiting for the writer, or an accepted one read from the log.
+     */
+    private static class Record {
+        private final long id;
+        // the whole record, or only its head if a spilled body is streamed after it; null if it is in a segment
+        private final byte[] bytes;
+        private final MessageBody body;
+        // the segment of a record read from the log or copied by the compactor
+        private final Segment source;
+        private final long sourceOffset;
+        // the size of the whole record in bytes
+        private final long length;
+        // the message an accepted record is for, null for marks
+        private final Entry entry;
+
+        private Record(long id, byte[] bytes, MessageBody body, Entry entry) {
+            this.id = id;
+            this.bytes = bytes;
+            this.body = body;
+            this.source = null;
+            this.sourceOffset = 0;
+            this.length = bytes.length + (body == null ? 0 : body.getLength());
+            this.entry = entry;
+        }
+
+        private Record(long id, Segment source, long sourceOffset, long length, Entry entry) {
+            this.id = id;
+            this.bytes = null;
+            this.body = null;
+            this.source = source;
+            this.sourceOffset = sourceOffset;
+            this.length = length;
+            this.entry = entry;
+        }
+
+        /**
+         * @return whether this is the first record of an appended message, rather than a mark or a compacted copy
+         */
+        private boolean isAppend() {
+            return entry != null && entry.stored != null && !entry.stored.isDone();
+        }
+
+        private void stored() {
+            if (isAppend()) {
+                entry.stored.complete(null);
+            }
+        }
+
+        private void failed(IOException e) {
+            if (isAppend()) {
+                entry.stored.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class Segment {
+        private final int index;
+        private final Path path;
+        // open while it is the active segment or a record is read from it
+        private FileChannel channel;
+        private int live;
+
+        private Segment(int index, Path path) {
+            this.index = index;
+            this.path = path;
+        }
+
+        private synchronized FileChannel channel() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            return channel;
+        }
+
+        /**
+         * @return the bytes from the offset on, the channel is shared and must not be closed by the caller
+         */
+        private InputStream openStream(long offset) throws IOException {
+            return new ChannelInputStream(channel(), offset);
+        }
+
+        /**
+         * Copies the record at the offset to the position of the target, from file to file.
+         *
+         * @return the position after the copy
+         */
+        private synchronized long transferRecord(long offset, long length, FileChannel target, long position)
+                throws IOException {
+            var source = channel();
+            target.position(position);
+            for (long copied = 0; copied < length; ) {
+                long transferred = source.transferTo(offset + copied, length - copied, target);
+                if (transferred <= 0) {
+                    throw new IOException("Spool record at " + path + ":" + offset + " is incomplete");
+                }
+                copied += transferred;
+            }
+            return position + length;
+        }
+
+        private synchronized void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Could not close spool segment " + path + ": " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Reads a file channel from a position on with positional reads, so the readers of a segment do not move each
+     * other's position.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        private ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int read = channel.read(ByteBuffer.wrap(bytes, offset, length), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+}
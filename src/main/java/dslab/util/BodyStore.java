@@ -0,0 +1,147 @@
+package dslab.util;
+
+import dslab.util.parser.ByteSlice;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Creates the bodies of received messages. Bodies larger than the spill threshold are written to a temporary file
+ * straight from the received bytes, so queued and stored messages only keep small bodies on the heap.
+ */
+public class BodyStore {
+
+    private static final int CHUNK = 64 * 1024;
+
+    private final long maxSize;
+    private final long spillThreshold;
+    private final Path directory;
+
+    /**
+     * Reads {@code messages.size.max}, {@code messages.spill.threshold} and {@code messages.spill.dir}.
+     */
+    public BodyStore(Config config) {
+        this(config.getInt("messages.size.max", 10 * 1024 * 1024),
+                config.getInt("messages.spill.threshold", 64 * 1024),
+                config.getString("messages.spill.dir", ""));
+    }
+
+    /**
+     * @param maxSize        the largest accepted body in bytes
+     * @param spillThreshold the size in bytes above which bodies are kept in a file
+     * @param directory      the directory of the files, empty for the system's temporary directory
+     */
+    public BodyStore(long maxSize, long spillThreshold, String directory) {
+        this.maxSize = maxSize;
+        this.spillThreshold = spillThreshold;
+        this.directory = directory.isEmpty() ? null : Paths.get(directory);
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public boolean isTooLarge(CharSequence data) {
+        if (data instanceof ByteSlice) {
+            return ((ByteSlice) data).bytes().remaining() > maxSize;
+        }
+        // a char takes one to three bytes in UTF-8, only data in between has to be encoded
+        if (data.length() > maxSize) {
+            return true;
+        }
+        return data.length() * 3L > maxSize && bytes(data).remaining() > maxSize;
+    }
+
+    /**
+     * @param data the received data, only read during the call
+     * @throws IOException if a large body cannot be written to its file
+     */
+    public MessageBody create(CharSequence data) throws IOException {
+        var bytes = bytes(data);
+        if (bytes.remaining() <= spillThreshold) {
+            return MessageBody.of(data.toString());
+        }
+
+        boolean lineBreak = false;
+        for (int i = bytes.position(); i < bytes.limit() && !lineBreak; i++) {
+            lineBreak = bytes.get(i) == '\n' || bytes.get(i) == '\r';
+        }
+
+        var file = newFile();
+        long length = bytes.remaining();
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return MessageBody.spilled(file, length, lineBreak);
+    }
+
+    /**
+     * Reads a body of the given length, e.g. from a log. A body above the spill threshold is copied to its file in
+     * chunks, so it is never held in memory as a whole.
+     *
+     * @param in     the UTF-8 encoded body, the bytes after it are left in the stream
+     * @param length the size of the body in bytes
+     * @throws IOException if the stream ends before the body or the file cannot be written
+     */
+    public MessageBody read(InputStream in, long length) throws IOException {
+        if (length <= spillThreshold) {
+            var bytes = in.readNBytes((int) length);
+            if (bytes.length < length) {
+                throw new EOFException("Body ends after " + bytes.length + " of " + length + " bytes");
+            }
+            return MessageBody.of(new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        boolean lineBreak = false;
+        var file = newFile();
+        try (var out = Files.newOutputStream(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var chunk = new byte[CHUNK];
+            for (long remaining = length; remaining > 0; ) {
+                int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Body ends after " + (length - remaining) + " of " + length + " bytes");
+                }
+                for (int i = 0; i < read && !lineBreak; i++) {
+                    lineBreak = chunk[i] == '\n' || chunk[i] == '\r';
+                }
+                out.write(chunk, 0, read);
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return MessageBody.spilled(file, length, lineBreak);
+    }
+
+    private Path newFile() throws IOException {
+        return directory != null
+                ? Files.createTempFile(directory, "body", ".tmp")
+                : Files.createTempFile("body", ".tmp");
+    }
+
+    private static ByteBuffer bytes(CharSequence data) {
+        if (data instanceof ByteSlice) {
+            return ((ByteSlice) data).bytes();
+        }
+        return StandardCharsets.UTF_8.encode(CharBuffer.wrap(data));
+    }
+}
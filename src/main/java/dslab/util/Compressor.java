@@ -0,0 +1,136 @@
+package dslab.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of message bodies, used after a session has switched with the {@code compress} command of
+ * DMTP or DMAP. Bodies below the threshold and bodies that deflate does not make smaller are sent as they are.
+ * Counts the bytes saved and the time spent on both directions, see {@link #toString()}. Thread safe.
+ */
+public class Compressor {
+
+    private final int threshold;
+    private final int level;
+
+    private final AtomicLong deflated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong deflatedBytes = new AtomicLong();
+    private final AtomicLong deflateNanos = new AtomicLong();
+    private final AtomicLong inflated = new AtomicLong();
+    private final AtomicLong inflateNanos = new AtomicLong();
+
+    /**
+     * Reads {@code compression.threshold} and {@code compression.level}.
+     */
+    public Compressor(Config config) {
+        this(config.getInt("compression.threshold", 1024), config.getInt("compression.level", 6));
+    }
+
+    /**
+     * @param threshold the size in bytes below which bodies are not compressed
+     * @param level     the deflate level, 1 (fastest) to 9 (smallest)
+     */
+    public Compressor(int threshold, int level) {
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    /**
+     * @param raw the UTF-8 encoded body
+     * @return the deflated body, or null if the body is to be sent as it is
+     */
+    public byte[] deflate(byte[] raw) {
+        return deflate(raw, raw.length);
+    }
+
+    /**
+     * Like {@link #deflate(byte[])}, for encodings that make the deflated body larger again.
+     *
+     * @param limit the size the deflated body has to stay below to be worth sending
+     */
+    public byte[] deflate(byte[] raw, int limit) {
+        if (raw.length < threshold) {
+            skipped.incrementAndGet();
+            return null;
+        }
+
+        long start = System.nanoTime();
+        var deflater = new Deflater(level);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            var output = new byte[limit];
+            int length = 0;
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+
+            if (!deflater.finished() || length >= limit) {
+                skipped.incrementAndGet();
+                return null;
+            }
+            deflated.incrementAndGet();
+            rawBytes.addAndGet(raw.length);
+            deflatedBytes.addAndGet(length);
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.end();
+            deflateNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param input     the deflated body between its position and limit, the position is not changed
+     * @param rawLength the size of the body that the sender has declared
+     * @return the UTF-8 encoded body
+     * @throws DataFormatException if the input is not a deflate stream of exactly that size
+     */
+    public ByteBuffer inflate(ByteBuffer input, int rawLength) throws DataFormatException {
+        // deflate cannot shrink data by more than about 1:1032, a larger size is not allocated
+        if (rawLength < 0 || rawLength == Integer.MAX_VALUE || rawLength > input.remaining() * 1032L + 64) {
+            throw new DataFormatException("Declared size " + rawLength + " cannot be inflated from "
+                    + input.remaining() + " bytes");
+        }
+
+        long start = System.nanoTime();
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(input.duplicate());
+            // one byte more than expected shows a stream that is too long
+            var output = new byte[rawLength + 1];
+            int length = 0;
+            while (!inflater.finished()) {
+                int read = inflater.inflate(output, length, output.length - length);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary() || length == output.length)) {
+                    break;
+                }
+                length += read;
+            }
+
+            if (!inflater.finished() || length != rawLength) {
+                throw new DataFormatException("Deflated body does not have the declared length " + rawLength);
+            }
+            inflated.incrementAndGet();
+            return ByteBuffer.wrap(output, 0, length);
+        } finally {
+            inflater.end();
+            inflateNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long raw = rawBytes.get();
+        long saved = raw - deflatedBytes.get();
+        return String.format("compression deflated %d skipped %d bytes %d saved %d (%.1f%%) deflate %.1fms"
+                        + " inflated %d inflate %.1fms",
+                deflated.get(), skipped.get(), raw, saved, raw == 0 ? 0.0 : 100.0 * saved / raw,
+                deflateNanos.get() / 1e6, inflated.get(), inflateNanos.get() / 1e6);
+    }
+}
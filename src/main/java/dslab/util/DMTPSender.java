@@ -0,0 +1,300 @@
+package dslab.util;
+
+import dslab.util.parser.DMTPFrame;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Client side of a DMTP session, used by the transfer server to deliver messages and by the message client. If the
+ * server accepts the {@code pipelining} command, all commands of a message are written at once and the responses
+ * are read afterwards, which takes one round trip per message instead of one per command. With a frame writer the
+ * sender can also switch the session to binary {@link DMTPFrame}s, which need no line scanning on the server and
+ * allow line breaks in the message. With a compressor as well, it asks for the {@code compress} command first and
+ * then sends bodies above the compressor's threshold deflated.
+ */
+public class DMTPSender {
+
+    public static final String GREETING = "ok DMTP2.0";
+
+    /**
+     * Source of the server's responses, e.g. {@code BufferedReader::readLine}.
+     */
+    public interface ResponseReader {
+        String readLine() throws IOException;
+    }
+
+    /**
+     * Sink of encoded frames, written out with the next flush of the writer.
+     */
+    public interface FrameWriter {
+        void write(ByteBuffer frame);
+    }
+
+    private final PrintWriter writer;
+    private final ResponseReader reader;
+    private final FrameWriter frames;
+    private final Compressor compressor;
+    private boolean pipelining = false;
+    private boolean binary = false;
+    private boolean compressing = false;
+
+    public DMTPSender(PrintWriter writer, ResponseReader reader) {
+        this(writer, reader, null);
+    }
+
+    public DMTPSender(PrintWriter writer, ResponseReader reader, FrameWriter frames) {
+        this(writer, reader, frames, null);
+    }
+
+    public DMTPSender(PrintWriter writer, ResponseReader reader, FrameWriter frames, Compressor compressor) {
+        this.writer = writer;
+        this.reader = reader;
+        this.frames = frames;
+        this.compressor = compressor;
+    }
+
+    /**
+     * Reads the greeting and, if requested, negotiates pipelining. Servers that do not know the command answer
+     * with an error and are talked to one command at a time.
+     *
+     * @param pipeline whether to ask the server for pipelining
+     * @return false if the peer is not a DMTP server
+     * @throws IOException on connection errors
+     */
+    public boolean open(boolean pipeline) throws IOException {
+        return open(pipeline, false);
+    }
+
+    /**
+     * Like {@link #open(boolean)}, but tries binary framing first if requested and a frame writer is available.
+     * Servers without it are talked to in line mode.
+     */
+    public boolean open(boolean pipeline, boolean framed) throws IOException {
+        if (!readResponse().startsWith(GREETING)) {
+            return false;
+        }
+
+        if (framed && frames != null) {
+            if (compressor != null) {
+                // compressed data only exists in frames, and frames cannot carry the command
+                writer.println("compress");
+                writer.flush();
+                compressing = readResponse().equals("ok compress");
+            }
+
+            writer.println("binary");
+            writer.flush();
+            binary = readResponse().equals("ok binary");
+            compressing &= binary;
+            if (binary) {
+                // a frame is written at once as well
+                pipelining = true;
+                return true;
+            }
+        }
+
+        if (pipeline) {
+            writer.println("pipelining");
+            writer.flush();
+            pipelining = readResponse().equals("ok pipelining");
+        }
+        return true;
+    }
+
+    public boolean isPipelining() {
+        return pipelining;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean isCompressing() {
+        return compressing;
+    }
+
+    /**
+     * Sends a message. Without pipelining the transaction stops at the first command that is not accepted, with
+     * pipelining all responses are read so the session stays usable.
+     *
+     * @param message the message, the hash command is left out if it has no hash
+     * @return the name of the first command that was not accepted (e.g. "to"), empty if the message has been sent
+     * @throws IOException on connection errors
+     */
+    public Optional<String> send(IMessage message) throws IOException {
+        var commands = commands(message);
+
+        if (binary) {
+            if (message instanceof RelayedMessage && (compressing || !((RelayedMessage) message).isDeflated())) {
+                // the frame is forwarded as it was received
+                frames.write(((RelayedMessage) message).getFrame());
+            } else if (!writeDeflated(message)) {
+                frames.write(DMTPFrame.encodeHead(message));
+                writeBody(message.getBody());
+            }
+            writer.flush();
+            return readResponses(commands);
+        }
+
+        for (var command : commands) {
+            // a line break would end the command early and the rest would be taken as another command
+            if (hasLineBreak(command, message)) {
+                return Optional.of(command);
+            }
+        }
+
+        if (!pipelining) {
+            for (var command : commands) {
+                writeCommand(command, message);
+                writer.flush();
+                if (!isAccepted(command, readResponse())) {
+                    return Optional.of(command);
+                }
+            }
+            return Optional.empty();
+        }
+
+        for (var command : commands) {
+            writeCommand(command, message);
+        }
+        writer.flush();
+        return readResponses(commands);
+    }
+
+    private void writeCommand(String command, IMessage message) throws IOException {
+        switch (command) {
+            case "to":
+                writer.println("to " + message.getTo());
+                break;
+            case "from":
+                writer.println("from " + message.getFrom());
+                break;
+            case "subject":
+                writer.println("subject " + message.getSubject());
+                break;
+            case "data":
+                writer.print("data ");
+                message.getBody().writeTo(writer);
+                writer.println();
+                break;
+            case "hash":
+                writer.println("hash " + message.getHash());
+                break;
+            default:
+                writer.println(command);
+        }
+    }
+
+    /**
+     * Writes the frame with deflated data if the session accepts it and deflating makes the body smaller. Spilled
+     * bodies are always sent as they are, since the frame has to declare the deflated size in front.
+     *
+     * @return false if nothing has been written
+     */
+    private boolean writeDeflated(IMessage message) {
+        var body = message.getBody();
+        if (!compressing || body.isSpilled()) {
+            return false;
+        }
+
+        var raw = body.toString().getBytes(StandardCharsets.UTF_8);
+        var deflated = compressor.deflate(raw);
+        if (deflated == null) {
+            return false;
+        }
+        var data = DMTPFrame.deflatedData(raw.length, deflated);
+        frames.write(DMTPFrame.encodeHead(message, DMTPFrame.DEFLATED_DATA, data.remaining()));
+        frames.write(data);
+        return true;
+    }
+
+    /**
+     * Copies a spilled body into frame chunks, writing each of them before the next one is read.
+     */
+    private void writeBody(MessageBody body) throws IOException {
+        if (!body.isSpilled()) {
+            frames.write(ByteBuffer.wrap(body.toString().getBytes(StandardCharsets.UTF_8)));
+            return;
+        }
+
+        try (var in = body.openStream()) {
+            var chunk = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                frames.write(ByteBuffer.wrap(chunk, 0, read));
+                writer.flush();
+            }
+        }
+    }
+
+    private static boolean hasLineBreak(String command, IMessage message) {
+        String value;
+        switch (command) {
+            case "to":
+                value = message.getTo();
+                break;
+            case "from":
+                value = message.getFrom();
+                break;
+            case "subject":
+                value = message.getSubject();
+                break;
+            case "data":
+                return message.getBody().hasLineBreak();
+            case "hash":
+                value = message.getHash();
+                break;
+            default:
+                return false;
+        }
+        return value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+    }
+
+    /**
+     * Reads the responses to commands that have been written at once, all of them to stay in step.
+     */
+    private Optional<String> readResponses(List<String> commands) throws IOException {
+        Optional<String> failed = Optional.empty();
+        for (var command : commands) {
+            var response = readResponse();
+            if (failed.isEmpty() && !isAccepted(command, response)) {
+                failed = Optional.of(command);
+            }
+        }
+        return failed;
+    }
+
+    public void quit() {
+        if (binary) {
+            frames.write(DMTPFrame.quit());
+        } else {
+            writer.println("quit");
+        }
+        writer.flush();
+    }
+
+    private static List<String> commands(IMessage message) {
+        if (message.getHash() == null) {
+            return List.of("begin", "to", "from", "subject", "data", "send");
+        }
+        return List.of("begin", "to", "from", "subject", "data", "hash", "send");
+    }
+
+    private static boolean isAccepted(String command, String response) {
+        // the response to "to" contains the number of recipients
+        return command.equals("to") ? response.startsWith("ok") : response.equals("ok");
+    }
+
+    private String readResponse() throws IOException {
+        var response = reader.readLine();
+        if (response == null) {
+            throw new IOException("Connection closed by DMTP server");
+        }
+        return response;
+    }
+}
@@ -0,0 +1,24 @@
+package dslab.util;
+
+/**
+ * Read-only view of a message, for the code that only passes messages on, e.g. from the transfer server's sessions
+ * through its spool to the mailbox servers. Implemented by the mutable {@link Message} that the parsers fill in and
+ * by the {@link RelayedMessage} that is forwarded exactly as it was received.
+ */
+public interface IMessage {
+
+    String getTo();
+
+    String getFrom();
+
+    String getSubject();
+
+    /**
+     * @return the data as text, a spilled body is read from its file
+     */
+    String getData();
+
+    MessageBody getBody();
+
+    String getHash();
+}
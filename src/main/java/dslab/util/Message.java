@@ -2,21 +2,22 @@ package dslab.util;
 
 import java.util.Objects;
 
-public class Message {
+public class Message implements IMessage {
     private String to;
     private String from;
     private String subject;
-    private String data;
+    private MessageBody data;
     private String hash;
 
     public Message(String to, String from, String subject, String data, String hash) {
         this.to = to;
         this.from = from;
         this.subject = subject;
-        this.data = data;
+        this.data = MessageBody.of(data);
         this.hash = hash;
     }
 
+    @Override
     public String getTo() {
         return to;
     }
@@ -25,6 +26,7 @@ public class Message {
         this.to = to;
     }
 
+    @Override
     public String getFrom() {
         return from;
     }
@@ -33,6 +35,7 @@ public class Message {
         this.from = from;
     }
 
+    @Override
     public String getSubject() {
         return subject;
     }
@@ -41,14 +44,25 @@ public class Message {
         this.subject = subject;
     }
 
+    @Override
     public String getData() {
-        return data;
+        return data.toString();
     }
 
     public void setData(String data) {
-        this.data = data;
+        this.data = MessageBody.of(data);
+    }
+
+    @Override
+    public MessageBody getBody() {
+        return data;
     }
 
+    public void setBody(MessageBody body) {
+        this.data = body;
+    }
+
+    @Override
     public String getHash() {
         return hash;
     }
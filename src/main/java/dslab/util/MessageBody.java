@@ -0,0 +1,131 @@
+package dslab.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.ref.Cleaner;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The data of a message, either held as text or, above the spill threshold of the {@link BodyStore}, in a temporary
+ * file. Bodies are immutable and shared by reference between the copies of a message; the file of a spilled body is
+ * deleted once the body is no longer referenced.
+ */
+public final class MessageBody {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final int CHUNK = 64 * 1024;
+
+    private final String text;
+    private final Path file;
+    private final long length;
+    private final boolean lineBreak;
+
+    private MessageBody(String text, Path file, long length, boolean lineBreak) {
+        this.text = text;
+        this.file = file;
+        this.length = length;
+        this.lineBreak = lineBreak;
+    }
+
+    public static MessageBody of(String text) {
+        boolean lineBreak = text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+        return new MessageBody(text, null, text.getBytes(StandardCharsets.UTF_8).length, lineBreak);
+    }
+
+    /**
+     * Takes ownership of a file holding the UTF-8 encoded body.
+     */
+    static MessageBody spilled(Path file, long length, boolean lineBreak) {
+        var body = new MessageBody(null, file, length, lineBreak);
+        // the action must not reference the body, or it would never become unreachable
+        CLEANER.register(body, () -> {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Could not delete spilled message body " + file + ": " + e.getMessage());
+            }
+        });
+        return body;
+    }
+
+    /**
+     * @return the size of the UTF-8 encoded body in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return whether the body contains a line break, and can therefore only be sent in a binary frame
+     */
+    public boolean hasLineBreak() {
+        return lineBreak;
+    }
+
+    /**
+     * @return the UTF-8 encoded body
+     */
+    public InputStream openStream() throws IOException {
+        if (file != null) {
+            return Files.newInputStream(file);
+        }
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the body to the writer. A spilled body is copied in chunks and the writer is flushed after each of them,
+     * so the text is never held in memory as a whole.
+     */
+    public void writeTo(Writer out) throws IOException {
+        if (file == null) {
+            out.write(text);
+            return;
+        }
+
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            var chunk = new char[CHUNK];
+            int read;
+            while ((read = reader.read(chunk)) >= 0) {
+                out.write(chunk, 0, read);
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * @return the body as text, spilled bodies are read from their file
+     */
+    @Override
+    public String toString() {
+        if (file == null) {
+            return text;
+        }
+        try {
+            return Files.readString(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Spilled message body " + file + " cannot be read", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MessageBody that = (MessageBody) o;
+        return length == that.length && toString().equals(that.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -0,0 +1,106 @@
+package dslab.util;
+
+import dslab.util.parser.DMTPFrame;
+import dslab.util.parser.ParserException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message received as a binary {@link DMTPFrame} that is forwarded exactly as it was received. Only the routing
+ * fields are kept as text; subject and data are decoded from the frame when something other than the relay needs
+ * them, e.g. a bounce or a mailbox server that only speaks DMTP lines. The message has no setters, since the frame
+ * would no longer match it.
+ */
+public class RelayedMessage implements IMessage {
+
+    private final String to;
+    private final String from;
+    private final String hash;
+    private final ByteBuffer frame;
+    private final boolean deflated;
+    // decoded from the frame on first use
+    private Message decoded;
+
+    /**
+     * @param frame the frame including its length prefix, which is taken over and must not be changed afterwards
+     */
+    public RelayedMessage(String to, String from, String hash, ByteBuffer frame) {
+        this.to = to;
+        this.from = from;
+        this.hash = hash;
+        this.frame = frame.asReadOnlyBuffer();
+        this.deflated = DMTPFrame.hasDeflatedData(payload());
+    }
+
+    /**
+     * @return the frame including its length prefix, every caller gets a view of its own
+     */
+    public ByteBuffer getFrame() {
+        return frame.duplicate();
+    }
+
+    /**
+     * @return whether the data is deflated, so the frame can only be relayed to sessions that accept it
+     */
+    public boolean isDeflated() {
+        return deflated;
+    }
+
+    private ByteBuffer payload() {
+        return frame.duplicate().position(Integer.BYTES).slice();
+    }
+
+    @Override
+    public String getTo() {
+        return to;
+    }
+
+    @Override
+    public String getFrom() {
+        return from;
+    }
+
+    @Override
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public String getSubject() {
+        return decode().getSubject();
+    }
+
+    @Override
+    public String getData() {
+        return decode().getData();
+    }
+
+    @Override
+    public MessageBody getBody() {
+        return decode().getBody();
+    }
+
+    private synchronized Message decode() {
+        if (decoded == null) {
+            try {
+                decoded = DMTPFrame.decode(payload());
+            } catch (ParserException e) {
+                // the frame has been parsed when it was received
+                throw new IllegalStateException("Relayed frame cannot be decoded", e);
+            }
+        }
+        return decoded;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return frame.equals(((RelayedMessage) o).frame);
+    }
+
+    @Override
+    public int hashCode() {
+        return frame.hashCode();
+    }
+}
@@ -0,0 +1,320 @@
+package dslab.util;
+
+import java.lang.invoke.VarHandle;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bounded queue for many producers and a single consumer, e.g. the sessions handing accepted messages to the
+ * delivery. The slots are allocated once and every slot carries a sequence number: a producer claims the next
+ * position with a compare-and-set on the tail counter, fills the slot and then publishes it by advancing its
+ * sequence; the consumer takes the slot once its sequence shows it is filled and hands it back by advancing the
+ * sequence by one lap. Neither side takes a lock or allocates a node per element.
+ * <p/>
+ * How a producer waits for a free slot and the consumer for an element is up to the {@link WaitStrategy}.
+ *
+ * @param <E> the elements
+ */
+public class RingBuffer<E> {
+
+    public static final String WAIT_BLOCKING = "blocking";
+    public static final String WAIT_PARKING = "parking";
+    public static final String WAIT_YIELDING = "yielding";
+    public static final String WAIT_SPINNING = "spinning";
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final WaitStrategy waiting;
+    // separate objects, so the producers' counter and the consumer's do not share a cache line
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param waiting  how to wait for a free slot or an element
+     */
+    public RingBuffer(int capacity, WaitStrategy waiting) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.waiting = waiting;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds the element if there is a free slot. May be called by any thread.
+     *
+     * @return false if the buffer is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the slot still holds the element of the previous lap
+                return false;
+            } else {
+                // another producer has claimed the position
+                position = tail.get();
+            }
+        }
+
+        int index = (int) position & mask;
+        slots[index] = element;
+        // the slot is written before the sequence, the consumer reads them in the opposite order
+        sequences.lazySet(index, position + 1);
+        waiting.signal();
+        return true;
+    }
+
+    /**
+     * Adds the element, waiting up to the timeout for a free slot.
+     *
+     * @return false if the buffer was still full at the timeout
+     */
+    public boolean offer(E element, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(element)) {
+            if (!waiting.await(this::hasFreeSlot, deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the element, waiting as long as it takes for a free slot.
+     */
+    public void put(E element) throws InterruptedException {
+        while (!offer(element)) {
+            // far enough ahead to never pass, close enough to not overflow
+            waiting.await(this::hasFreeSlot, System.nanoTime() + TimeUnit.DAYS.toNanos(365));
+        }
+    }
+
+    /**
+     * Takes the oldest element. Only to be called by the consumer.
+     *
+     * @return null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head.get();
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+
+        var element = (E) slots[index];
+        slots[index] = null;
+        // hands the slot to the producers of the next lap
+        sequences.lazySet(index, position + slots.length);
+        head.lazySet(position + 1);
+        waiting.signal();
+        return element;
+    }
+
+    /**
+     * Takes the oldest element, waiting up to the timeout for one. Only to be called by the consumer.
+     *
+     * @return null if the buffer was still empty at the timeout
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            var element = poll();
+            if (element != null) {
+                return element;
+            }
+            if (!waiting.await(this::hasElement, deadline)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Takes up to the given number of elements without waiting. Only to be called by the consumer.
+     *
+     * @return the number of elements added to the collection
+     */
+    public int drainTo(Collection<? super E> target, int max) {
+        int drained = 0;
+        E element;
+        while (drained < max && (element = poll()) != null) {
+            target.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * @return the number of elements, only an estimate while producers or the consumer are active
+     */
+    public int size() {
+        return (int) Math.max(Math.min(tail.get() - head.get(), slots.length), 0);
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    private boolean hasElement() {
+        long position = head.get();
+        return sequences.get((int) position & mask) == position + 1;
+    }
+
+    private boolean hasFreeSlot() {
+        long position = tail.get();
+        return sequences.get((int) position & mask) - position >= 0;
+    }
+
+    /**
+     * Decides how a thread waits until it can go on. Spinning reacts fastest but keeps a core busy, blocking
+     * costs nothing while idle but needs a wake-up for every element.
+     */
+    public interface WaitStrategy {
+
+        /**
+         * Waits until the condition holds or the deadline has passed.
+         *
+         * @param ready         the condition, e.g. that the buffer has an element
+         * @param deadlineNanos the {@link System#nanoTime()} until which to wait
+         * @return false if the deadline has passed
+         */
+        boolean await(BooleanSupplier ready, long deadlineNanos) throws InterruptedException;
+
+        /**
+         * Called after an element has been added or taken.
+         */
+        default void signal() {
+        }
+
+        /**
+         * @param name "blocking", "parking", "yielding" or "spinning"
+         * @throws IllegalArgumentException if the name is not known
+         */
+        static WaitStrategy of(String name) {
+            switch (name) {
+                case WAIT_BLOCKING:
+                    return new Blocking();
+                case WAIT_PARKING:
+                    return new Backoff(100, 100);
+                case WAIT_YIELDING:
+                    return new Backoff(100, Integer.MAX_VALUE);
+                case WAIT_SPINNING:
+                    return new Backoff(Integer.MAX_VALUE, 0);
+                default:
+                    throw new IllegalArgumentException("Unknown wait strategy " + name);
+            }
+        }
+    }
+
+    /**
+     * Spins, then yields, then parks for growing intervals of up to a millisecond. A long spin yields once every
+     * thousand rounds, so it does not starve the thread it waits for when there are fewer cores than threads.
+     */
+    private static class Backoff implements WaitStrategy {
+        private final int spins;
+        private final int yields;
+
+        private Backoff(int spins, int yields) {
+            this.spins = spins;
+            this.yields = yields;
+        }
+
+        @Override
+        public boolean await(BooleanSupplier ready, long deadlineNanos) throws InterruptedException {
+            long park = 1000;
+            for (long round = 0; !ready.getAsBoolean(); round++) {
+                if (System.nanoTime() - deadlineNanos >= 0) {
+                    return false;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                if (round < spins) {
+                    // now and then gives up the core, the other side may be waiting for one to run on
+                    if ((round & 1023) == 1023) {
+                        Thread.yield();
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                } else if (round < (long) spins + yields) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(Math.min(park, deadlineNanos - System.nanoTime()));
+                    park = Math.min(park * 2, TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sleeps on a condition, the other side only takes the lock if somebody is waiting.
+     */
+    private static class Blocking implements WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private volatile int waiters = 0;
+
+        @Override
+        public boolean await(BooleanSupplier ready, long deadlineNanos) throws InterruptedException {
+            lock.lock();
+            try {
+                waiters++;
+                try {
+                    // the condition is checked after announcing the waiter, so a signal cannot get lost
+                    while (!ready.getAsBoolean()) {
+                        long remaining = deadlineNanos - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        changed.awaitNanos(remaining);
+                    }
+                    return true;
+                } finally {
+                    waiters--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signal() {
+            // orders the published sequence before reading the waiters, the waiter does the opposite
+            VarHandle.fullFence();
+            if (waiters == 0) {
+                return;
+            }
+            lock.lock();
+            try {
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
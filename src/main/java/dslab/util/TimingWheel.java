@@ -0,0 +1,136 @@
+package dslab.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel: timeouts are put into one of a fixed number of buckets by their deadline and a single
+ * thread visits one bucket per tick. Scheduling and cancelling are O(1), so thousands of sessions can each keep a
+ * timeout without a thread (or a priority queue operation) per session. Timeouts fire with tick granularity.
+ */
+public class TimingWheel {
+
+    private final long tickMillis;
+    private final List<ArrayDeque<Timeout>> buckets;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime;
+
+    private volatile boolean running = true;
+    private long tick = 0;
+
+    /**
+     * Creates and starts a new timing wheel.
+     *
+     * @param tickMillis the resolution of the wheel in milliseconds
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        mask = size - 1;
+
+        startTime = System.nanoTime();
+        worker = new Thread(this::run, "timing-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Runs the given task once the delay has passed, on the thread of the wheel. Tasks must not block.
+     *
+     * @param task the task to run
+     * @param delay the delay after which the task is run
+     * @param unit the unit of the delay
+     * @return a handle to cancel the timeout
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        var timeout = new Timeout(task, elapsedMillis() + unit.toMillis(delay));
+        added.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    private void run() {
+        while (running) {
+            long sleep = (tick + 1) * tickMillis - elapsedMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            transferAdded();
+            expire(buckets.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) continue;
+
+            // never schedule into the past, an overdue timeout fires on the current tick
+            long deadlineTick = Math.max(timeout.deadline / tickMillis, tick);
+            timeout.rounds = (deadlineTick - tick) / buckets.size();
+            buckets.get((int) (deadlineTick & mask)).add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            var timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if (timeout.rounds <= 0) {
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error running timeout: " + e.getMessage());
+                }
+            } else {
+                timeout.rounds--;
+            }
+        }
+    }
+
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
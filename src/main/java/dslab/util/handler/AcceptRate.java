@@ -0,0 +1,54 @@
+package dslab.util.handler;
+
+/**
+ * Number of connections accepted by one acceptor, in total and per second over a sliding window.
+ */
+class AcceptRate {
+
+    private static final int WINDOW_SECONDS = 10;
+
+    private final long[] perSecond = new long[WINDOW_SECONDS];
+    private long currentSecond = 0;
+    private long total = 0;
+
+    synchronized void record() {
+        advance(System.currentTimeMillis() / 1000);
+        perSecond[(int) (currentSecond % WINDOW_SECONDS)]++;
+        total++;
+    }
+
+    synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the average number of accepted connections per second over the last completed seconds of the window
+     */
+    synchronized double getRate() {
+        advance(System.currentTimeMillis() / 1000);
+
+        long sum = 0;
+        for (int i = 1; i < WINDOW_SECONDS; i++) {
+            sum += perSecond[(int) ((currentSecond - i) % WINDOW_SECONDS)];
+        }
+        return sum / (double) (WINDOW_SECONDS - 1);
+    }
+
+    private void advance(long second) {
+        if (currentSecond == 0) {
+            currentSecond = second;
+            return;
+        }
+
+        // clear the buckets of the seconds without any connection
+        for (long s = currentSecond + 1; s <= second && s <= currentSecond + WINDOW_SECONDS; s++) {
+            perSecond[(int) (s % WINDOW_SECONDS)] = 0;
+        }
+        currentSecond = Math.max(currentSecond, second);
+    }
+
+    @Override
+    public String toString() {
+        return "accepted " + getTotal() + " rate " + String.format("%.1f", getRate()) + "/s";
+    }
+}
@@ -0,0 +1,28 @@
+package dslab.util.handler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A line based connection whose lines are read by the thread serving it, e.g. the client side of a protocol or a
+ * session of a blocking listener.
+ */
+public interface BlockingLineConnection extends LineConnection {
+
+    /**
+     * Blocks until the next line arrives.
+     *
+     * @return the line without the line terminator, or null if the peer closed the connection
+     * @throws IOException on read errors
+     */
+    String readLine() throws IOException;
+
+    /**
+     * Like {@link #readLine()}, but returns the undecoded bytes of the line.
+     *
+     * @return a view of the line without the line terminator that is only valid until the next read, or null if
+     *         the peer closed the connection
+     * @throws IOException on read errors
+     */
+    ByteBuffer readLineBytes() throws IOException;
+}
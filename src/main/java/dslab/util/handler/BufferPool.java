@@ -0,0 +1,92 @@
+package dslab.util.handler;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import dslab.util.Config;
+
+/**
+ * Direct byte buffers shared by the connections of a server. Sessions borrow a buffer for reading and for
+ * responses that have not been written yet, so idle sessions hold as few buffers as possible and short-lived
+ * connections do not allocate their own.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> pooled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Reads {@code buffers.size} (bytes per buffer) and {@code buffers.pooled} (buffers kept for reuse) from the
+     * server config.
+     */
+    public BufferPool(Config config) {
+        this(config.getInt("buffers.size", 8192), config.getInt("buffers.pooled", 256));
+    }
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a cleared buffer, which has to be given back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire() {
+        var buffer = pooled.poll();
+        if (buffer != null) {
+            pooledCount.decrementAndGet();
+            hits.increment();
+        } else {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        outstanding.incrementAndGet();
+        return buffer.clear();
+    }
+
+    public void release(ByteBuffer buffer) {
+        outstanding.decrementAndGet();
+        if (pooledCount.incrementAndGet() <= maxPooled) {
+            pooled.add(buffer.clear());
+        } else {
+            // beyond the limit the buffer is left to the garbage collector
+            pooledCount.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public int getPooled() {
+        return pooledCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "buffers hits " + getHits()
+                + " misses " + getMisses()
+                + " outstanding " + getOutstanding()
+                + " pooled " + getPooled();
+    }
+}
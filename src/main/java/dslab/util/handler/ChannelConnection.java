@@ -0,0 +1,288 @@
+package dslab.util.handler;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking connection driven by an {@link EventLoop}. Incoming bytes are split into lines and handed to the
+ * listener on the loop thread, responses are buffered until {@link #flush()} and written without blocking.
+ * An idle connection only holds its (small) partial line, pooled response buffers are given back once written.
+ */
+class ChannelConnection implements LineConnection {
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final SessionTimeouts timeouts;
+    private final ListenerStats stats;
+    private final boolean flushEveryLine;
+    private final LineDecoder decoder = new LineDecoder();
+    private final PrintWriter writer;
+    private final OutputBuffer output;
+
+    private LineListener listener;
+    private SelectionKey key;
+
+    private boolean closed = false;
+    // set while the listener waits for something before it takes the next line
+    private volatile boolean suspended = false;
+    // the input received after the line that suspended the session, only used by the loop thread
+    private ByteBuffer held;
+
+    ChannelConnection(SocketChannel channel, EventLoop loop, ListenerConfig config, SessionTimeouts timeouts,
+                      ListenerStats stats, BufferPool buffers) {
+        this.channel = channel;
+        this.output = new OutputBuffer(buffers);
+        this.loop = loop;
+        this.timeouts = timeouts;
+        this.stats = stats;
+        this.flushEveryLine = config.getFlushPolicy().equals(ListenerConfig.FLUSH_LINE);
+        this.writer = new PrintWriter(new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+                synchronized (ChannelConnection.this) {
+                    output.append(buffer, offset, length);
+                }
+            }
+
+            @Override
+            public void flush() {
+                ChannelConnection.this.flush();
+            }
+
+            @Override
+            public void close() {
+                ChannelConnection.this.close();
+            }
+        });
+    }
+
+    void setListener(LineListener listener) {
+        this.listener = listener;
+    }
+
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        timeouts.start(this);
+        listener.onOpen();
+        flush();
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void setMaxLineLength(int maxLength) {
+        decoder.setMaxLineLength(maxLength);
+    }
+
+    @Override
+    public void setFramed(int maxLength) {
+        decoder.setFramed(maxLength);
+    }
+
+    void onReadable(ByteBuffer readBuffer) {
+        if (suspended) {
+            return;
+        }
+        readBuffer.clear();
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+
+        if (read < 0) {
+            close();
+            return;
+        }
+
+        readBuffer.flip();
+        handleLines(readBuffer);
+
+        // all requests of this read have been handled, their responses go out together
+        flush();
+    }
+
+    /**
+     * Hands the complete lines to the listener, the input after a line that suspends the session is held back.
+     */
+    private void handleLines(ByteBuffer input) {
+        while (input.hasRemaining() && !isClosed()) {
+            if (suspended) {
+                // the read buffer is shared by all connections of the loop
+                held = ByteBuffer.allocate(input.remaining()).put(input).flip();
+                return;
+            }
+
+            ByteBuffer line;
+            try {
+                line = decoder.decodeBytes(input);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (line != null) {
+                timeouts.lineReceived();
+                stats.lineReceived();
+                try {
+                    listener.handleLine(line);
+                } catch (RuntimeException e) {
+                    // only this session is lost, the loop goes on with the others
+                    System.err.println("Error handling request: " + e);
+                    close();
+                    return;
+                }
+                if (flushEveryLine) {
+                    flush();
+                }
+            }
+        }
+        if (decoder.hasPartialLine()) {
+            timeouts.partialLineReceived();
+        }
+    }
+
+    /**
+     * Stops reading from the channel, the peer's further requests wait in the socket buffer.
+     */
+    @Override
+    public void suspend() {
+        suspended = true;
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public void resume(Runnable task) {
+        loop.execute(() -> {
+            suspended = false;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error handling request: " + e);
+                close();
+                return;
+            }
+            if (held != null && !suspended) {
+                var input = held;
+                held = null;
+                handleLines(input);
+            }
+            if (!suspended && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            flush();
+        });
+    }
+
+    private int readInterest() {
+        return suspended ? 0 : SelectionKey.OP_READ;
+    }
+
+    void onWritable() {
+        synchronized (this) {
+            if (!writePending()) {
+                return;
+            }
+        }
+
+        // everything has been written, we are only interested in new requests again
+        if (key.isValid()) {
+            key.interestOps(readInterest());
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (isClosed()) {
+            output.clear();
+            return;
+        }
+
+        output.encode();
+        if (output.isEmpty() || key == null) {
+            return;
+        }
+
+        if (!writePending() && key.isValid()) {
+            // the socket buffer is full, continue once the channel becomes writable
+            key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+            loop.wakeup();
+        }
+    }
+
+    /**
+     * Writes as much pending output as the socket accepts.
+     *
+     * @return true if all pending output has been written
+     */
+    private boolean writePending() {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = output.peek()) != null) {
+                channel.write(buffer);
+                stats.written();
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+                output.written();
+            }
+        } catch (IOException e) {
+            output.clear();
+            close();
+        }
+        return true;
+    }
+
+    /**
+     * Hands the response to the event loop, its writes never block.
+     */
+    @Override
+    public void expire(String response) {
+        loop.execute(() -> {
+            if (isClosed()) return;
+            writer.println(response);
+            flush();
+            close();
+        });
+    }
+
+    @Override
+    public void abort() {
+        close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            output.clear();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close socket on exit!");
+        }
+        timeouts.stop();
+        // lets the listener deregister itself when the peer closed the connection
+        listener.stop();
+        stats.ended();
+    }
+}
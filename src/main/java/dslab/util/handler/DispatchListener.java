@@ -1,61 +1,258 @@
 package dslab.util.handler;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
-public class DispatchListener implements IListener {
+import dslab.util.TimingWheel;
+
+/**
+ * Accepts connections on one or more acceptor threads and runs every session on a thread of the acceptor's pool.
+ * With more than one acceptor all of them bind the port with {@code SO_REUSEPORT}, so the kernel distributes new
+ * connections across the acceptors.
+ */
+public class DispatchListener implements IDispatchListener {
 
     private boolean running = true;
     private final Object runningLock = new Object();
 
-    private final ServerSocket socket;
-    private final ExecutorService pool;
+    private final String name;
+    private final Acceptor[] acceptors;
     private final IListenerFactory factory;
+    private final int maxSessions;
+    private final ListenerStats stats = new ListenerStats();
+    private final ListenerConfig config;
+    private final TimingWheel timer;
+    private final BufferPool buffers;
 
-    public DispatchListener(int port, int threads, IListenerFactory factory) throws IOException {
-        socket = new ServerSocket(port);
-        pool = Executors.newFixedThreadPool(threads);
+    public DispatchListener(ListenerConfig config, IListenerFactory factory, TimingWheel timer, BufferPool buffers)
+            throws IOException {
+        this.config = config;
+        this.timer = timer;
+        this.buffers = buffers;
+        name = config.getName();
+        maxSessions = config.getMaxSessions();
         this.factory = factory;
+
+        int count = config.getAcceptors();
+        if (count > 1 && !supportsReusePort()) {
+            System.err.println("SO_REUSEPORT is not supported, using a single acceptor for port " + config.getPort());
+            count = 1;
+        }
+
+        acceptors = new Acceptor[count];
+        for (int i = 0; i < count; i++) {
+            acceptors[i] = new Acceptor(openSocket(count > 1), count > 1 ? name + " acceptor " + i : name);
+        }
+    }
+
+    private static boolean supportsReusePort() throws IOException {
+        try (var socket = ServerSocketChannel.open()) {
+            return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private ServerSocketChannel openSocket(boolean reusePort) throws IOException {
+        var socket = ServerSocketChannel.open();
+        if (config.getReceiveBufferSize() > 0) {
+            // accepted sockets inherit the receive buffer, larger windows have to be set before binding
+            socket.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if (reusePort) {
+            socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        socket.bind(new InetSocketAddress(config.getPort()));
+        return socket;
     }
 
     @Override
     public void run() {
-        while (true) {
-            synchronized (runningLock) {
-                if (!running) break;
-            }
+        for (int i = 1; i < acceptors.length; i++) {
+            new Thread(acceptors[i], "acceptor-" + config.getPort() + "-" + i).start();
+        }
+        acceptors[0].run();
+    }
 
-            Socket clientSocket;
-            try {
-                clientSocket = socket.accept();
-            } catch (IOException e) {
-                System.err.println("Error while accepting new connection: " + e.getMessage());
-                continue;
+    private boolean isRunning() {
+        synchronized (runningLock) {
+            return running;
+        }
+    }
+
+    private void serve(SocketChannel clientSocket) {
+        stats.started();
+        try {
+            if (!isRunning()) {
+                rejectClosing(clientSocket);
+                return;
             }
 
-            pool.execute(factory.newHandler(clientSocket));
+            config.configure(clientSocket.socket());
+            var timeouts = new SessionTimeouts(timer, config, stats);
+            var connection = new SocketConnection(clientSocket, config, timeouts, stats, buffers);
+            factory.newHandler(connection).serve(connection);
+        } catch (IOException e) {
+            System.err.println("Error creating reader/writer for socket!");
+        } finally {
+            stats.ended();
+        }
+    }
+
+    private void reject(SocketChannel clientSocket) {
+        reject(clientSocket, "error server busy");
+    }
+
+    private void rejectClosing(SocketChannel clientSocket) {
+        reject(clientSocket, "error server shutting down");
+    }
+
+    private void reject(SocketChannel clientSocket, String reason) {
+        try (clientSocket) {
+            clientSocket.write(ByteBuffer.wrap((reason + "\n").getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            System.err.println("Error rejecting connection: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public ListenerStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public int getSessionCount() {
+        return factory.getSessionCount();
+    }
+
+    @Override
+    public List<WorkerPool> getPools() {
+        var pools = new ArrayList<WorkerPool>();
+        for (var acceptor : acceptors) {
+            pools.add(acceptor.pool);
         }
+        return pools;
     }
 
     @Override
-    public synchronized void stop() {
+    public void stop() {
+        drain(System.currentTimeMillis());
+    }
+
+    @Override
+    public synchronized int drain(long deadline) {
         synchronized (runningLock) {
             running = false;
         }
 
+        for (var acceptor : acceptors) {
+            try {
+                acceptor.socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing socket of dispatch listener: " + e.getMessage());
+            }
+            // sessions still waiting in the queue are turned away when they start, see serve()
+            acceptor.pool.shutdown();
+        }
+
+        factory.drainAll();
+        int closed = awaitSessions(factory, deadline);
+        factory.stopAll();
+
         try {
-            socket.close();
-            factory.stopAll();
-            //noinspection ResultOfMethodCallIgnored
-            pool.awaitTermination(2, TimeUnit.SECONDS);
-        } catch (IOException e) {
-            System.err.println("Error closing socket of dispatch listener: " + e.getMessage());
+            for (var acceptor : acceptors) {
+                long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+                // give the threads a moment to leave the closed sockets even if the deadline has passed
+                //noinspection ResultOfMethodCallIgnored
+                acceptor.pool.awaitTermination(Math.max(remaining, 100), TimeUnit.MILLISECONDS);
+            }
         } catch (InterruptedException e) {
             System.err.println("Interrupted during await termination: " + e.getMessage());
         }
+
+        return closed;
+    }
+
+    /**
+     * Waits until all sessions of the factory have ended or the deadline has passed.
+     *
+     * @return the number of sessions still open at the deadline
+     */
+    static int awaitSessions(IListenerFactory factory, long deadline) {
+        while (factory.getSessionCount() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return factory.getSessionCount();
+    }
+
+    @Override
+    public String toString() {
+        var result = new StringBuilder(name + " " + stats + " live " + getSessionCount());
+        if (acceptors.length > 1) {
+            for (int i = 0; i < acceptors.length; i++) {
+                result.append("\n  acceptor ").append(i).append(" ").append(acceptors[i].rate);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Accept loop with its own server socket and worker pool.
+     */
+    private class Acceptor implements Runnable {
+
+        private final ServerSocketChannel socket;
+        private final WorkerPool pool;
+        private final AcceptRate rate = new AcceptRate();
+
+        private Acceptor(ServerSocketChannel socket, String name) {
+            this.socket = socket;
+            this.pool = new WorkerPool(name, config, timer);
+        }
+
+        @Override
+        public void run() {
+            while (isRunning()) {
+                SocketChannel clientSocket;
+                try {
+                    clientSocket = socket.accept();
+                } catch (IOException e) {
+                    if (socket.isOpen()) {
+                        System.err.println("Error while accepting new connection: " + e.getMessage());
+                    }
+                    continue;
+                }
+                rate.record();
+
+                if (!stats.admit(maxSessions)) {
+                    reject(clientSocket);
+                    continue;
+                }
+
+                try {
+                    // the buffers and handler are only taken once a thread picks up the session
+                    pool.execute(() -> serve(clientSocket));
+                } catch (RejectedExecutionException e) {
+                    stats.reject();
+                    reject(clientSocket);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,109 @@
+package dslab.util.handler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread driving any number of non-blocking {@link ChannelConnection}s.
+ */
+class EventLoop implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // shared by all connections of this loop, lines are copied out before the next read
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private volatile boolean running = true;
+
+    EventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    void register(ChannelConnection connection) {
+        execute(() -> {
+            try {
+                connection.register(selector);
+            } catch (IOException e) {
+                System.err.println("Error registering connection: " + e.getMessage());
+                connection.close();
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException | ClosedSelectorException e) {
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error running event loop task: " + e);
+                }
+            }
+
+            var selectedKeys = selector.selectedKeys();
+            for (var key : selectedKeys) {
+                var connection = (ChannelConnection) key.attachment();
+                if (!key.isValid()) {
+                    connection.close();
+                    continue;
+                }
+
+                // an error in one session must not end the loop and with it all other sessions
+                try {
+                    if (key.isWritable()) {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable(readBuffer);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Error serving connection: " + e);
+                    connection.close();
+                }
+            }
+            selectedKeys.clear();
+        }
+
+        closeAll();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        for (var key : selector.keys()) {
+            ((ChannelConnection) key.attachment()).close();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector: " + e.getMessage());
+        }
+    }
+}
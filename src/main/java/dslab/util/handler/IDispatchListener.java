@@ -0,0 +1,27 @@
+package dslab.util.handler;
+
+import java.util.List;
+
+/**
+ * A listener that accepts TCP connections and runs a protocol session for each of them.
+ */
+public interface IDispatchListener extends IListener {
+    String getName();
+    ListenerStats getStats();
+    int getSessionCount();
+
+    /**
+     * @return the thread pools running the sessions, empty if sessions are not run on pool threads
+     */
+    List<WorkerPool> getPools();
+
+    /**
+     * Stops accepting connections and lets the live sessions finish their current command or transaction. Sessions
+     * still open at the deadline are closed, then the threads of the listener are released.
+     *
+     * @param deadline the time in milliseconds (as returned by {@link System#currentTimeMillis()}) until which
+     *                 sessions may finish
+     * @return the number of sessions that had to be closed at the deadline
+     */
+    int drain(long deadline);
+}
@@ -1,8 +1,8 @@
 package dslab.util.handler;
 
-import java.net.Socket;
-
 public interface IListenerFactory {
-    IListener newHandler(Socket socket);
+    LineListener newHandler(LineConnection connection);
+    void drainAll();
     void stopAll();
+    int getSessionCount();
 }
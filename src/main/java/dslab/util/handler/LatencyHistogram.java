@@ -0,0 +1,69 @@
+package dslab.util.handler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with power of two buckets in microseconds, precise enough for percentiles of
+ * queue wait times without keeping the samples.
+ */
+class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros <= 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        counts.incrementAndGet(bucket);
+    }
+
+    long[] snapshot() {
+        var result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the counts recorded between two snapshots
+     */
+    static long[] since(long[] now, long[] before) {
+        var result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = now[i] - before[i];
+        }
+        return result;
+    }
+
+    static long count(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @param counts a snapshot
+     * @param fraction the percentile, e.g. 0.99
+     * @return the upper bound of the bucket containing the percentile in microseconds, 0 if nothing was recorded
+     */
+    static long percentile(long[] counts, double fraction) {
+        long total = count(counts);
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+}
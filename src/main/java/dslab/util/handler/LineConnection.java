@@ -0,0 +1,67 @@
+package dslab.util.handler;
+
+import java.io.PrintWriter;
+
+/**
+ * A line based connection to a single peer. Listeners write their responses to {@link #getWriter()}, the connection
+ * sends them once it waits for the next request (or on {@link #flush()}), so the responses to pipelined requests
+ * leave in a single write. How the lines of the peer arrive is up to the connection: a
+ * {@link BlockingLineConnection} is read by the thread serving the session, a non-blocking connection pushes them
+ * to {@link LineListener#onLine(String)}.
+ */
+public interface LineConnection extends AutoCloseable {
+
+    PrintWriter getWriter();
+
+    /**
+     * Limits the length of the lines the peer may send, a longer line closes the connection.
+     *
+     * @param maxLength the longest accepted line without its terminator, 0 = unlimited
+     */
+    void setMaxLineLength(int maxLength);
+
+    /**
+     * Switches the connection to length-prefixed frames, the next line read (or passed to
+     * {@link LineListener#onLine(ByteBuffer)}) is then the payload of the next frame. Switched by the
+     * protocol once the peer has been told to send frames, so no frame can have arrived as lines before.
+     *
+     * @param maxLength the largest accepted payload, a longer frame closes the connection
+     */
+    void setFramed(int maxLength);
+
+    void flush();
+
+    /**
+     * Stops handing lines to the listener after the current one until {@link #resume(Runnable)}, so the current
+     * request can wait for something slow without the requests after it being answered first. Called by the thread
+     * handling the current line.
+     */
+    void suspend();
+
+    /**
+     * Runs the task on the thread serving the session and then continues with the lines held back. May be called
+     * from any thread, even before the line that suspended the session has been handled completely.
+     *
+     * @param task finishes the request that suspended the session, e.g. writes its response
+     */
+    void resume(Runnable task);
+
+    /**
+     * Ends the session because one of its timeouts has expired. Called on the timer thread shared by all sessions,
+     * so it does not block: the thread serving the session sends the response and closes the connection.
+     *
+     * @param response the line sent to the peer before the connection is closed
+     */
+    void expire(String response);
+
+    /**
+     * Closes the channel without waiting for the thread serving the session, e.g. when it is stuck writing to a
+     * peer that does not read. The session cleans up once its pending read or write fails.
+     */
+    void abort();
+
+    boolean isClosed();
+
+    @Override
+    void close();
+}
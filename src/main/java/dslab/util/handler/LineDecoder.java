@@ -0,0 +1,199 @@
+package dslab.util.handler;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into UTF-8 lines. Lines that arrived completely are decoded (or handed on) straight from the
+ * receive buffer, only the bytes of an unfinished line are copied until its terminator arrives. After
+ * {@link #setFramed(int)} the stream is split into length-prefixed frames instead.
+ */
+class LineDecoder {
+
+    private final CharsetDecoder charset = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(128);
+
+    private byte[] line = new byte[0];
+    private int lineLength = 0;
+
+    // the longest accepted line without its terminator, 0 = unlimited
+    private int maxLineLength = 0;
+    // the maximum payload of a frame, negative in line mode
+    private int maxFrameLength = -1;
+    // the payload length of the current frame once its prefix has been read
+    private int frameLength = -1;
+
+    void setMaxLineLength(int maxLength) {
+        maxLineLength = maxLength;
+    }
+
+    /**
+     * Switches to frames: a 4 byte big-endian payload length followed by the payload.
+     *
+     * @param maxLength the largest accepted payload
+     */
+    void setFramed(int maxLength) {
+        maxFrameLength = maxLength;
+    }
+
+    boolean isFramed() {
+        return maxFrameLength >= 0;
+    }
+
+    /**
+     * Consumes bytes from the buffer up to and including the next line terminator.
+     *
+     * @param buffer the received bytes
+     * @return the decoded line without its terminator, or null if the buffer ended before the line did
+     */
+    String decode(ByteBuffer buffer) throws ProtocolException {
+        var line = decodeBytes(buffer);
+        return line != null ? toString(line) : null;
+    }
+
+    /**
+     * Like {@link #decode(ByteBuffer)}, but returns the undecoded bytes of the line (or the payload of the frame).
+     * The result is a view of the receive buffer or of the partial line, only valid until the next call.
+     *
+     * @throws ProtocolException if a line or frame exceeds the maximum length
+     */
+    ByteBuffer decodeBytes(ByteBuffer buffer) throws ProtocolException {
+        if (isFramed()) {
+            return decodeFrame(buffer);
+        }
+
+        int start = buffer.position();
+        int end = buffer.limit();
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+
+            checkLineLength(lineLength + i - start);
+            buffer.position(i + 1);
+            if (lineLength == 0) {
+                return stripReturn(buffer.duplicate().position(start).limit(i));
+            }
+            append(buffer, start, i);
+            return takeLineBytes();
+        }
+
+        // the rest of a long line is only copied once it is known to fit
+        checkLineLength(lineLength + end - start);
+        append(buffer, start, end);
+        buffer.position(end);
+        return null;
+    }
+
+    private void checkLineLength(long length) throws ProtocolException {
+        // the line may still end with a carriage return that is not part of it
+        if (maxLineLength > 0 && length > maxLineLength + 1L) {
+            throw new ProtocolException("Line exceeds " + maxLineLength + " bytes");
+        }
+    }
+
+    private ByteBuffer decodeFrame(ByteBuffer buffer) throws ProtocolException {
+        if (frameLength < 0) {
+            if (lineLength == 0 && buffer.remaining() >= Integer.BYTES) {
+                frameLength = buffer.getInt();
+            } else {
+                // the prefix is split across reads
+                int take = Math.min(Integer.BYTES - lineLength, buffer.remaining());
+                append(buffer, buffer.position(), buffer.position() + take);
+                buffer.position(buffer.position() + take);
+                if (lineLength < Integer.BYTES) {
+                    return null;
+                }
+                frameLength = ByteBuffer.wrap(line, 0, Integer.BYTES).getInt();
+                lineLength = 0;
+            }
+
+            if (frameLength < 0 || frameLength > maxFrameLength) {
+                throw new ProtocolException("Frame of " + frameLength + " bytes exceeds " + maxFrameLength);
+            }
+        }
+
+        if (lineLength == 0 && buffer.remaining() >= frameLength) {
+            int start = buffer.position();
+            buffer.position(start + frameLength);
+            frameLength = -1;
+            return buffer.duplicate().position(start).limit(buffer.position());
+        }
+
+        int take = Math.min(frameLength - lineLength, buffer.remaining());
+        append(buffer, buffer.position(), buffer.position() + take);
+        buffer.position(buffer.position() + take);
+        if (lineLength < frameLength) {
+            return null;
+        }
+
+        frameLength = -1;
+        var result = ByteBuffer.wrap(line, 0, lineLength);
+        lineLength = 0;
+        if (line.length > 1024) {
+            line = new byte[0];
+        }
+        return result;
+    }
+
+    boolean hasPartialLine() {
+        return lineLength > 0 || frameLength >= 0;
+    }
+
+    /**
+     * Returns the unfinished line, e.g. when the peer closed the connection without a final terminator.
+     */
+    ByteBuffer takeLineBytes() {
+        var result = stripReturn(ByteBuffer.wrap(line, 0, lineLength));
+        lineLength = 0;
+        // give back the memory of unusually long lines, the returned view keeps the old array
+        if (line.length > 1024) {
+            line = new byte[0];
+        }
+        return result;
+    }
+
+    private static ByteBuffer stripReturn(ByteBuffer bytes) {
+        if (bytes.hasRemaining() && bytes.get(bytes.limit() - 1) == '\r') {
+            bytes.limit(bytes.limit() - 1);
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes the bytes of a line without changing the buffer's position.
+     */
+    String toString(ByteBuffer bytes) {
+        bytes = bytes.duplicate();
+        // UTF-8 never needs more chars than bytes
+        if (chars.capacity() < bytes.remaining()) {
+            chars = CharBuffer.allocate(bytes.remaining());
+        }
+        chars.clear();
+        charset.reset();
+        charset.decode(bytes, chars, true);
+        charset.flush(chars);
+
+        var result = chars.flip().toString();
+        if (chars.capacity() > 1024) {
+            chars = CharBuffer.allocate(128);
+        }
+        return result;
+    }
+
+    private void append(ByteBuffer buffer, int from, int to) {
+        int length = to - from;
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.max(Math.max(128, line.length * 2), lineLength + length));
+        }
+        buffer.duplicate().position(from).get(line, lineLength, length);
+        lineLength += length;
+    }
+}
@@ -0,0 +1,180 @@
+package dslab.util.handler;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * Base class of the line based protocol handlers. The protocol logic lives in {@link #onOpen()} and
+ * {@link #onLine(String)}, so the same handler can either be served by a thread reading its blocking connection
+ * or be driven by an event loop of the {@link SelectorListener}.
+ */
+public abstract class LineListener {
+
+    protected final LineConnection connection;
+    protected final PrintWriter writer;
+    private volatile SessionRegistry registry;
+
+    private final Object drainLock = new Object();
+    private boolean handlingLine = false;
+    private boolean suspended = false;
+    private boolean draining = false;
+    private LineDecoder text;
+
+    protected LineListener(LineConnection connection) {
+        this.connection = connection;
+        this.writer = connection.getWriter();
+    }
+
+    /**
+     * Called once before the first line is read, usually to send the greeting.
+     */
+    public abstract void onOpen();
+
+    /**
+     * Called for every line sent by the peer.
+     *
+     * @param input the line without the line terminator
+     */
+    public abstract void onLine(String input);
+
+    /**
+     * Called for every line with its raw UTF-8 bytes. Decodes the line for {@link #onLine(String)} unless a
+     * protocol parses the bytes itself.
+     *
+     * @param input the bytes of the line without the terminator, only valid during the call
+     */
+    protected void onLine(ByteBuffer input) {
+        if (text == null) {
+            text = new LineDecoder();
+        }
+        onLine(text.toString(input));
+    }
+
+    /**
+     * Whether the session is between two transactions and can be closed without losing work of the client.
+     * Protocols with multi-line transactions override this to finish the current transaction during a drain.
+     */
+    protected boolean isIdle() {
+        return true;
+    }
+
+    /**
+     * Whether the session is served by a thread of its own, which may wait for something, rather than by an event
+     * loop that serves other sessions as well.
+     */
+    protected boolean hasOwnThread() {
+        return connection instanceof BlockingLineConnection;
+    }
+
+    /**
+     * Handles a line and closes the session afterwards if it is being drained and has become idle.
+     */
+    void handleLine(ByteBuffer input) {
+        synchronized (drainLock) {
+            handlingLine = true;
+        }
+
+        onLine(input);
+
+        synchronized (drainLock) {
+            handlingLine = false;
+            if (suspended || !draining || !isIdle()) return;
+        }
+        closeDrained();
+    }
+
+    /**
+     * Holds back the lines after the current one until {@link #resume(Runnable)}, so a request can wait for
+     * something slow, e.g. the disk, without blocking an event loop that serves other sessions as well.
+     */
+    protected void suspend() {
+        synchronized (drainLock) {
+            suspended = true;
+        }
+        connection.suspend();
+    }
+
+    /**
+     * Finishes the suspended request on the thread serving the session and continues with the lines held back.
+     * May be called from any thread.
+     *
+     * @param rest the rest of the request, e.g. writing its response
+     */
+    protected void resume(Runnable rest) {
+        connection.resume(() -> {
+            rest.run();
+            synchronized (drainLock) {
+                suspended = false;
+                if (!draining || !isIdle()) return;
+            }
+            closeDrained();
+        });
+    }
+
+    /**
+     * Closes the session as soon as the current command or transaction is finished.
+     */
+    public void drain() {
+        synchronized (drainLock) {
+            draining = true;
+            if (handlingLine || suspended || !isIdle()) return;
+        }
+        closeDrained();
+    }
+
+    private void closeDrained() {
+        if (connection.isClosed()) return;
+
+        writer.println("error server shutting down");
+        connection.flush();
+        stop();
+    }
+
+    /**
+     * Runs the session on the calling thread until the peer or the listener closes the connection.
+     *
+     * @param input the connection the listener was created with
+     */
+    void serve(BlockingLineConnection input) {
+        // an error in the protocol logic must not leave the socket open and the session registered
+        try {
+            onOpen();
+            connection.flush();
+
+            while (!connection.isClosed()) {
+                ByteBuffer line;
+                try {
+                    line = input.readLineBytes();
+                } catch (IOException e) {
+                    if (!connection.isClosed()) {
+                        System.err.println("Error reading input from socket!");
+                    }
+                    break;
+                }
+
+                if (line == null) {
+                    break;
+                }
+
+                // the connection writes the responses before it blocks for the next request
+                handleLine(line);
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    void setRegistry(SessionRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void stop() {
+        connection.close();
+
+        var registry = this.registry;
+        if (registry != null) {
+            registry.remove(this);
+        }
+    }
+}
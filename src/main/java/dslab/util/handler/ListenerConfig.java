@@ -0,0 +1,227 @@
+package dslab.util.handler;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import dslab.util.Config;
+import dslab.util.TimingWheel;
+
+/**
+ * Settings of a single TCP listener, read from the component config. All keys share a common prefix, e.g.
+ * {@code tcp.port} and {@code tcp.io} for the transfer server or {@code dmtp.tcp.port} for the mailbox server.
+ */
+public class ListenerConfig {
+
+    public static final String IO_BLOCKING = "blocking";
+    public static final String IO_SELECTOR = "selector";
+
+    public static final String FLUSH_LINE = "line";
+    public static final String FLUSH_COALESCE = "coalesce";
+
+    public static final String EXECUTOR_POOL = "pool";
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+
+    private final String name;
+    private final int port;
+    private final int threads;
+    private final String io;
+    private final int selectorThreads;
+    private final int acceptors;
+    private final String executor;
+    private final int queue;
+    private final int maxSessions;
+    private final long idleTimeout;
+    private final long readTimeout;
+    private final long sessionTimeout;
+    private final String flushPolicy;
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int maxThreads;
+    private final long waitTarget;
+    private final long adjustInterval;
+
+    /**
+     * @param config the server config
+     * @param prefix the prefix of the listener's keys
+     * @param threads the pool size used if the config does not set {@code <prefix>.threads}
+     */
+    public ListenerConfig(Config config, String prefix, int threads) {
+        this.name = prefix;
+        this.port = config.getInt(prefix + ".port");
+        this.threads = config.getInt(prefix + ".threads", threads);
+        this.maxThreads = Math.max(this.threads, config.getInt(prefix + ".threads.max", this.threads));
+        this.waitTarget = config.getInt(prefix + ".threads.wait.target", 100);
+        this.adjustInterval = config.getInt(prefix + ".threads.interval", 1000);
+        this.io = config.getString(prefix + ".io", IO_BLOCKING);
+        this.selectorThreads = config.getInt(prefix + ".selector.threads", 2);
+        this.acceptors = config.getInt(prefix + ".acceptors", 1);
+        this.executor = config.getString(prefix + ".executor", EXECUTOR_POOL);
+        this.queue = config.getInt(prefix + ".queue", 64);
+        this.maxSessions = config.getInt(prefix + ".sessions.max", 0);
+        this.idleTimeout = config.getInt(prefix + ".timeout.idle", 0);
+        this.readTimeout = config.getInt(prefix + ".timeout.read", 0);
+        this.sessionTimeout = config.getInt(prefix + ".timeout.session", 0);
+        this.flushPolicy = config.getString(prefix + ".flush", FLUSH_COALESCE);
+        this.tcpNoDelay = Boolean.parseBoolean(config.getString(prefix + ".nodelay", "true"));
+        this.sendBufferSize = config.getInt(prefix + ".sndbuf", 0);
+        this.receiveBufferSize = config.getInt(prefix + ".rcvbuf", 0);
+
+        if (!io.equals(IO_BLOCKING) && !io.equals(IO_SELECTOR)) {
+            throw new IllegalArgumentException("Unknown I/O model " + io + " for " + prefix);
+        }
+        if (!flushPolicy.equals(FLUSH_LINE) && !flushPolicy.equals(FLUSH_COALESCE)) {
+            throw new IllegalArgumentException("Unknown flush policy " + flushPolicy + " for " + prefix);
+        }
+        if (!executor.equals(EXECUTOR_POOL) && !executor.equals(EXECUTOR_VIRTUAL)) {
+            throw new IllegalArgumentException("Unknown executor " + executor + " for " + prefix);
+        }
+    }
+
+    /**
+     * Opens the server socket and creates the listener for the configured I/O model.
+     *
+     * @param factory creates the protocol handler of every accepted connection
+     * @param timer the timing wheel enforcing the session timeouts, shared by all listeners of a server
+     * @param buffers the I/O buffers of the sessions, shared by all listeners of a server
+     * @return the listener, which starts accepting connections when it is run
+     * @throws IOException if the server socket could not be opened
+     */
+    public IDispatchListener newListener(IListenerFactory factory, TimingWheel timer, BufferPool buffers)
+            throws IOException {
+        if (io.equals(IO_SELECTOR)) {
+            return new SelectorListener(this, factory, timer, buffers);
+        }
+        return new DispatchListener(this, factory, timer, buffers);
+    }
+
+    /**
+     * Applies the configured socket options to an accepted connection.
+     *
+     * @param socket the client socket
+     * @throws IOException if an option could not be set
+     */
+    void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    /**
+     * Creates the executor running the sessions of a blocking listener. Virtual threads are looked up reflectively,
+     * so the same Java 11 build uses them on a Java 21+ runtime and falls back to the fixed pool on older ones.
+     */
+    ExecutorService newExecutor() {
+        if (executor.equals(EXECUTOR_VIRTUAL)) {
+            try {
+                var factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factoryMethod.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not supported by this runtime, using a pool of "
+                        + threads + " threads for port " + port);
+            }
+        }
+        // sessions beyond the pool size wait in a bounded queue and are rejected once it is full
+        var pending = queue > 0 ? new ArrayBlockingQueue<Runnable>(queue) : new LinkedBlockingQueue<Runnable>();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, pending);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getIo() {
+        return io;
+    }
+
+    public String getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the initial and minimum size of a session pool
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return the size up to which a session pool grows, equal to {@link #getThreads()} for a fixed size
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * @return the queue wait time in milliseconds above which an adaptive pool grows
+     */
+    public long getWaitTarget() {
+        return waitTarget;
+    }
+
+    public long getAdjustInterval() {
+        return adjustInterval;
+    }
+
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    /**
+     * @return the number of accept loops of a blocking listener, each with its own socket and pool
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * @return {@link #FLUSH_LINE} to write the response to every line immediately, or {@link #FLUSH_COALESCE} to
+     *         write responses only once no further request has been received yet
+     */
+    public String getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * @return the time in milliseconds a session may stay without receiving a complete line, 0 if unlimited
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @return the time in milliseconds a started line may take to be completed, 0 if unlimited
+     */
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * @return the maximum duration of a session in milliseconds, 0 if unlimited
+     */
+    public long getSessionTimeout() {
+        return sessionTimeout;
+    }
+}
@@ -0,0 +1,106 @@
+package dslab.util.handler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Session counters of a single listener, used for admission control and printed by the server shells.
+ */
+public class ListenerStats {
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final LongAdder linesReceived = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Counts a newly accepted connection and checks whether it may be admitted.
+     *
+     * @param maxSessions the maximum number of queued and active sessions, 0 for no limit
+     * @return true if the session was admitted and is now queued, false if it has to be rejected
+     */
+    boolean admit(int maxSessions) {
+        accepted.incrementAndGet();
+        if (maxSessions > 0 && queued.get() + active.get() >= maxSessions) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        queued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Takes back an admitted session that could not be queued after all.
+     */
+    void reject() {
+        queued.decrementAndGet();
+        rejected.incrementAndGet();
+    }
+
+    void started() {
+        queued.decrementAndGet();
+        active.incrementAndGet();
+    }
+
+    void ended() {
+        active.decrementAndGet();
+    }
+
+    void timedOut() {
+        timedOut.incrementAndGet();
+    }
+
+    void lineReceived() {
+        linesReceived.increment();
+    }
+
+    /**
+     * Counts a write to a client socket, i.e. a system call and usually a TCP segment.
+     */
+    void written() {
+        writes.increment();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    public long getLinesReceived() {
+        return linesReceived.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    @Override
+    public String toString() {
+        return "accepted " + getAccepted()
+                + " rejected " + getRejected()
+                + " timed-out " + getTimedOut()
+                + " queued " + getQueued()
+                + " active " + getActive()
+                + " lines " + getLinesReceived()
+                + " writes " + getWrites();
+    }
+}
@@ -0,0 +1,97 @@
+package dslab.util.handler;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Responses of a connection that have not been written yet. Text is collected until the connection flushes and
+ * then encoded into buffers borrowed from the {@link BufferPool}, which are given back once they have been written.
+ * Not thread safe, the connections synchronize access.
+ */
+class OutputBuffer {
+
+    private final BufferPool buffers;
+    private final StringBuilder text = new StringBuilder();
+    private final ArrayDeque<ByteBuffer> encoded = new ArrayDeque<>();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    OutputBuffer(BufferPool buffers) {
+        this.buffers = buffers;
+    }
+
+    void append(char[] chars, int offset, int length) {
+        text.append(chars, offset, length);
+    }
+
+    /**
+     * Appends raw bytes behind the text appended so far.
+     */
+    void append(ByteBuffer bytes) {
+        encode();
+        bytes = bytes.duplicate();
+        while (bytes.hasRemaining()) {
+            var buffer = buffers.acquire();
+            int length = Math.min(buffer.remaining(), bytes.remaining());
+            buffer.put(bytes.duplicate().limit(bytes.position() + length));
+            bytes.position(bytes.position() + length);
+            encoded.add(buffer.flip());
+        }
+    }
+
+    /**
+     * Encodes the text appended so far behind the already encoded output.
+     */
+    void encode() {
+        if (text.length() == 0) {
+            return;
+        }
+
+        var input = CharBuffer.wrap(text);
+        var buffer = buffers.acquire();
+        encoder.reset();
+        while (encoder.encode(input, buffer, true).isOverflow()) {
+            encoded.add(buffer.flip());
+            buffer = buffers.acquire();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            encoded.add(buffer.flip());
+            buffer = buffers.acquire();
+        }
+        encoded.add(buffer.flip());
+        text.setLength(0);
+    }
+
+    /**
+     * @return the next encoded buffer to write, or null if everything has been written
+     */
+    ByteBuffer peek() {
+        return encoded.peek();
+    }
+
+    /**
+     * Gives back the buffer returned by {@link #peek()} once it has been written completely.
+     */
+    void written() {
+        buffers.release(encoded.poll());
+    }
+
+    boolean isEmpty() {
+        return text.length() == 0 && encoded.isEmpty();
+    }
+
+    /**
+     * Drops all pending output, e.g. when the connection has been closed.
+     */
+    void clear() {
+        text.setLength(0);
+        while (!encoded.isEmpty()) {
+            written();
+        }
+    }
+}
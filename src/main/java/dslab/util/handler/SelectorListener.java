@@ -0,0 +1,158 @@
+package dslab.util.handler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import dslab.util.TimingWheel;
+
+/**
+ * Alternative to the {@link DispatchListener} that serves all sessions from a small, fixed number of selector
+ * threads instead of dedicating a pool thread to each connection.
+ */
+public class SelectorListener implements IDispatchListener {
+
+    private boolean running = true;
+    private final Object runningLock = new Object();
+
+    private final String name;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final IListenerFactory factory;
+    private final int maxSessions;
+    private final ListenerStats stats = new ListenerStats();
+    private final ListenerConfig config;
+    private final TimingWheel timer;
+    private final BufferPool buffers;
+    private int nextLoop = 0;
+
+    public SelectorListener(ListenerConfig config, IListenerFactory factory, TimingWheel timer, BufferPool buffers)
+            throws IOException {
+        this.config = config;
+        this.timer = timer;
+        this.buffers = buffers;
+        name = config.getName();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.getPort()));
+        maxSessions = config.getMaxSessions();
+
+        int threads = config.getSelectorThreads();
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop();
+        }
+        this.factory = factory;
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "selector-" + serverChannel.socket().getLocalPort() + "-" + i).start();
+        }
+
+        while (true) {
+            synchronized (runningLock) {
+                if (!running) break;
+            }
+
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    System.err.println("Error while accepting new connection: " + e.getMessage());
+                }
+                continue;
+            }
+
+            if (!stats.admit(maxSessions)) {
+                reject(channel);
+                continue;
+            }
+
+            try {
+                channel.configureBlocking(false);
+                config.configure(channel.socket());
+            } catch (IOException e) {
+                System.err.println("Error configuring connection: " + e.getMessage());
+                stats.reject();
+                reject(channel);
+                continue;
+            }
+
+            var loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+
+            stats.started();
+            var timeouts = new SessionTimeouts(timer, config, stats);
+            var connection = new ChannelConnection(channel, loop, config, timeouts, stats, buffers);
+            connection.setListener(factory.newHandler(connection));
+            loop.register(connection);
+        }
+    }
+
+    private void reject(SocketChannel channel) {
+        try (channel) {
+            channel.write(ByteBuffer.wrap("error server busy\n".getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            System.err.println("Error rejecting connection: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public ListenerStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public int getSessionCount() {
+        return factory.getSessionCount();
+    }
+
+    @Override
+    public List<WorkerPool> getPools() {
+        // sessions run on the event loops
+        return List.of();
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + stats + " live " + getSessionCount();
+    }
+
+    @Override
+    public void stop() {
+        drain(System.currentTimeMillis());
+    }
+
+    @Override
+    public synchronized int drain(long deadline) {
+        synchronized (runningLock) {
+            running = false;
+        }
+
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing socket of selector listener: " + e.getMessage());
+        }
+
+        factory.drainAll();
+        int closed = DispatchListener.awaitSessions(factory, deadline);
+        factory.stopAll();
+        for (var loop : loops) {
+            loop.stop();
+        }
+
+        return closed;
+    }
+}
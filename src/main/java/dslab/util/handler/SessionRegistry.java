@@ -0,0 +1,41 @@
+package dslab.util.handler;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The live sessions of a listener. Sessions are added by the listener factory and remove themselves when they are
+ * stopped, so the registry only ever holds open connections.
+ */
+public class SessionRegistry {
+
+    private final Set<LineListener> sessions = ConcurrentHashMap.newKeySet();
+
+    public void add(LineListener session) {
+        sessions.add(session);
+        session.setRegistry(this);
+    }
+
+    void remove(LineListener session) {
+        sessions.remove(session);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Asks all live sessions to close once their current command or transaction is finished.
+     */
+    public void drainAll() {
+        sessions.parallelStream().forEach(LineListener::drain);
+    }
+
+    /**
+     * Stops all live sessions. Closing thousands of sockets one after another noticeably delays the shutdown, so
+     * the sessions are closed in parallel.
+     */
+    public void stopAll() {
+        sessions.parallelStream().forEach(LineListener::stop);
+    }
+}
@@ -0,0 +1,108 @@
+package dslab.util.handler;
+
+import java.util.concurrent.TimeUnit;
+
+import dslab.util.TimingWheel;
+
+/**
+ * Enforces the idle, read and total session timeouts of one connection using the timing wheel shared by all
+ * sessions of a server. Instead of rescheduling on every line, the activity timeout fires periodically and checks
+ * the timestamps recorded by the connection.
+ */
+class SessionTimeouts {
+
+    static final SessionTimeouts NONE = new SessionTimeouts(null, null, null);
+
+    // the time an expired session has to send its response before its channel is closed regardless
+    private static final long ABORT_DELAY = 1000;
+
+    private final TimingWheel wheel;
+    private final ListenerConfig config;
+    private final ListenerStats stats;
+    private LineConnection connection;
+
+    private volatile long lastLineAt;
+    // start of the line that is currently being received, 0 if there is none
+    private volatile long partialSince = 0;
+
+    private TimingWheel.Timeout activityTimeout;
+    private TimingWheel.Timeout sessionTimeout;
+
+    SessionTimeouts(TimingWheel wheel, ListenerConfig config, ListenerStats stats) {
+        this.wheel = wheel;
+        this.config = config;
+        this.stats = stats;
+    }
+
+    synchronized void start(LineConnection connection) {
+        if (wheel == null) return;
+
+        this.connection = connection;
+        lastLineAt = System.currentTimeMillis();
+        if (config.getSessionTimeout() > 0) {
+            sessionTimeout = wheel.schedule(this::expire, config.getSessionTimeout(), TimeUnit.MILLISECONDS);
+        }
+        scheduleActivityCheck(Math.min(positive(config.getIdleTimeout()), positive(config.getReadTimeout())));
+    }
+
+    void lineReceived() {
+        lastLineAt = System.currentTimeMillis();
+        partialSince = 0;
+    }
+
+    void partialLineReceived() {
+        if (partialSince == 0) {
+            partialSince = System.currentTimeMillis();
+        }
+    }
+
+    synchronized void stop() {
+        if (wheel == null) return;
+        if (activityTimeout != null) activityTimeout.cancel();
+        if (sessionTimeout != null) sessionTimeout.cancel();
+    }
+
+    private void checkActivity() {
+        if (connection.isClosed()) return;
+
+        long now = System.currentTimeMillis();
+        long idleLeft = Long.MAX_VALUE;
+        long readLeft = Long.MAX_VALUE;
+
+        if (config.getIdleTimeout() > 0) {
+            idleLeft = lastLineAt + config.getIdleTimeout() - now;
+        }
+        long partial = partialSince;
+        if (config.getReadTimeout() > 0 && partial != 0) {
+            readLeft = partial + config.getReadTimeout() - now;
+        }
+
+        if (idleLeft <= 0 || readLeft <= 0) {
+            expire();
+            return;
+        }
+
+        // a new partial line may start at any time, so never sleep longer than the read timeout
+        scheduleActivityCheck(Math.min(Math.min(idleLeft, readLeft), positive(config.getReadTimeout())));
+    }
+
+    private synchronized void scheduleActivityCheck(long delay) {
+        if (delay == Long.MAX_VALUE || connection.isClosed()) return;
+        activityTimeout = wheel.schedule(this::checkActivity, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void expire() {
+        if (connection.isClosed()) return;
+
+        stats.timedOut();
+        stop();
+        // this runs on the wheel shared by all sessions and must not wait for the session, which may be blocked
+        // writing to a client that does not read; the session responds itself and is cut off if it cannot
+        connection.expire("error timeout");
+        wheel.schedule(connection::abort, ABORT_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private static long positive(long millis) {
+        return millis > 0 ? millis : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,303 @@
+package dslab.util.handler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking connection read by the thread running its session. Received bytes and pending responses live in
+ * buffers borrowed from the server's {@link BufferPool}.
+ */
+public class SocketConnection implements BlockingLineConnection {
+
+    private final SocketChannel channel;
+    private final BufferPool buffers;
+    private final Writer sink;
+    private final PrintWriter writer;
+    private final OutputBuffer output;
+    private final SessionTimeouts timeouts;
+    private final ListenerStats stats;
+    private final boolean flushEveryLine;
+    private final LineDecoder decoder = new LineDecoder();
+    // only used by the reading thread, borrowed while a read is in progress or received bytes are left
+    private ByteBuffer received;
+    private volatile Thread reader;
+    // the response of an expired session, sent by the reading thread instead of the next read
+    private volatile String expiredResponse;
+    private final Object suspension = new Object();
+    // guarded by suspension, the task that ends a suspension once it has been resumed
+    private boolean suspended = false;
+    private Runnable resumption;
+
+    /**
+     * Creates a connection for the client side of a protocol, e.g. to deliver messages. Requests written to the
+     * writer are sent once {@link #readLine()} waits for the response (or on {@link #flush()}).
+     *
+     * @param channel a connected channel in blocking mode
+     * @param buffers the pool to borrow the I/O buffers from
+     */
+    public SocketConnection(SocketChannel channel, BufferPool buffers) {
+        this(channel, null, SessionTimeouts.NONE, new ListenerStats(), buffers);
+    }
+
+    SocketConnection(SocketChannel channel, ListenerConfig config, SessionTimeouts timeouts, ListenerStats stats,
+                     BufferPool buffers) {
+        this.channel = channel;
+        this.buffers = buffers;
+        this.output = new OutputBuffer(buffers);
+        this.timeouts = timeouts;
+        this.stats = stats;
+        this.flushEveryLine = config != null && config.getFlushPolicy().equals(ListenerConfig.FLUSH_LINE);
+        this.sink = new Writer() {
+            @Override
+            public void write(char[] chars, int offset, int length) {
+                output.append(chars, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writePending();
+            }
+
+            @Override
+            public void close() {
+                output.clear();
+            }
+        };
+        this.writer = new PrintWriter(sink);
+        timeouts.start(this);
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        var line = readLineBytes();
+        return line != null ? decoder.toString(line) : null;
+    }
+
+    /**
+     * Reads the next line. Pending output is written first if this call is going to block, so responses to
+     * requests that arrived together are coalesced into a single write.
+     */
+    @Override
+    public ByteBuffer readLineBytes() throws IOException {
+        awaitResumption();
+        if (flushEveryLine) {
+            flush();
+        }
+
+        reader = Thread.currentThread();
+        try {
+            if (expiredResponse != null) {
+                return respondExpired();
+            }
+            while (true) {
+                // the previous line may still have been a view of the buffer until now
+                if (received != null && !received.hasRemaining()) {
+                    releaseReceived();
+                }
+                if (received == null) {
+                    // the peer has to see all responses before it sends more
+                    flush();
+                    received = buffers.acquire();
+                    if (channel.read(received) < 0) {
+                        releaseReceived();
+                        if (expiredResponse != null) {
+                            return respondExpired();
+                        }
+                        // an unfinished frame is incomplete, an unfinished line just lacks its terminator
+                        return decoder.hasPartialLine() && !decoder.isFramed() ? decoder.takeLineBytes() : null;
+                    }
+                    received.flip();
+                }
+
+                var line = decoder.decodeBytes(received);
+                if (line != null) {
+                    timeouts.lineReceived();
+                    stats.lineReceived();
+                    return line;
+                }
+                timeouts.partialLineReceived();
+            }
+        } catch (IOException e) {
+            releaseReceived();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setMaxLineLength(int maxLength) {
+        decoder.setMaxLineLength(maxLength);
+    }
+
+    @Override
+    public void setFramed(int maxLength) {
+        decoder.setFramed(maxLength);
+    }
+
+    /**
+     * Appends a length-prefixed frame to the pending output, it is sent like written text.
+     *
+     * @param frame the prefix and payload of the frame
+     */
+    public void writeFrame(ByteBuffer frame) {
+        synchronized (sink) {
+            output.append(frame);
+        }
+    }
+
+    /**
+     * Checks without blocking that the peer has neither sent anything nor closed the connection, e.g. before an
+     * idle client connection is reused. Received bytes are discarded. Only to be called by the reading thread.
+     *
+     * @return true if the connection can be used for the next request
+     */
+    public boolean isIdle() {
+        if (received != null && !received.hasRemaining()) {
+            releaseReceived();
+        }
+        if (isClosed() || received != null || decoder.hasPartialLine()) {
+            return false;
+        }
+
+        var probe = buffers.acquire();
+        try {
+            channel.configureBlocking(false);
+            int read = channel.read(probe);
+            channel.configureBlocking(true);
+            return read == 0;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            buffers.release(probe);
+        }
+    }
+
+    @Override
+    public void suspend() {
+        synchronized (suspension) {
+            suspended = true;
+        }
+    }
+
+    @Override
+    public void resume(Runnable task) {
+        synchronized (suspension) {
+            resumption = task;
+            suspension.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until a suspended session is resumed and runs its task, before the next line is read.
+     */
+    private void awaitResumption() throws InterruptedIOException {
+        Runnable task;
+        synchronized (suspension) {
+            if (!suspended) {
+                return;
+            }
+            try {
+                while (resumption == null) {
+                    suspension.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while the session was suspended");
+            }
+            task = resumption;
+            resumption = null;
+            suspended = false;
+        }
+        task.run();
+    }
+
+    /**
+     * Sends the response of the expired session, the caller sees the end of the input and closes the connection.
+     */
+    private ByteBuffer respondExpired() {
+        writer.println(expiredResponse);
+        flush();
+        return null;
+    }
+
+    private void releaseReceived() {
+        if (received != null) {
+            buffers.release(received);
+            received = null;
+        }
+    }
+
+    /**
+     * Called with the lock of the writer held.
+     */
+    private void writePending() throws IOException {
+        output.encode();
+        try {
+            ByteBuffer buffer;
+            while ((buffer = output.peek()) != null) {
+                channel.write(buffer);
+                stats.written();
+                output.written();
+            }
+        } catch (IOException e) {
+            output.clear();
+            throw e;
+        }
+    }
+
+    @Override
+    public void flush() {
+        writer.flush();
+    }
+
+    /**
+     * Ends the input, so the reading thread wakes up from a blocking read and sends the response itself.
+     */
+    @Override
+    public void expire(String response) {
+        expiredResponse = response;
+        try {
+            channel.shutdownInput();
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    @Override
+    public void abort() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close socket on exit!");
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public synchronized void close() {
+        timeouts.stop();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close socket on exit!");
+        }
+        // gives back the buffers of responses that can no longer be written
+        writer.close();
+        // other threads only close the channel, the reader gives back its buffer when the read fails
+        if (Thread.currentThread() == reader) {
+            releaseReceived();
+        }
+    }
+}
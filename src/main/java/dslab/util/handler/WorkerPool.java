@@ -0,0 +1,154 @@
+package dslab.util.handler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dslab.util.TimingWheel;
+
+/**
+ * The threads running the sessions of a blocking acceptor. Records how long sessions wait in the queue before a
+ * thread picks them up and, if the configured maximum is above the minimum, resizes the pool periodically: it grows
+ * while sessions wait longer than the target and shrinks while most threads are unused.
+ */
+public class WorkerPool {
+
+    private final String name;
+    private final ExecutorService executor;
+    // null for virtual threads, which are not pooled
+    private final ThreadPoolExecutor pool;
+    private final int minThreads;
+    private final int maxThreads;
+    private final long waitTargetMicros;
+    private final long interval;
+    private final TimingWheel timer;
+
+    private final LatencyHistogram waits = new LatencyHistogram();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private long[] lastWaits;
+    private TimingWheel.Timeout adjustment;
+
+    WorkerPool(String name, ListenerConfig config, TimingWheel timer) {
+        this.name = name;
+        this.executor = config.newExecutor();
+        this.pool = executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor : null;
+        this.minThreads = config.getThreads();
+        this.maxThreads = config.getMaxThreads();
+        this.waitTargetMicros = config.getWaitTarget() * 1000;
+        this.interval = config.getAdjustInterval();
+        this.timer = timer;
+        this.lastWaits = waits.snapshot();
+
+        if (isAdaptive()) {
+            scheduleAdjustment();
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full or the pool has been shut down
+     */
+    void execute(Runnable session) {
+        long queuedAt = System.nanoTime();
+        executor.execute(() -> {
+            waits.record(System.nanoTime() - queuedAt);
+            peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                session.run();
+            } finally {
+                active.decrementAndGet();
+            }
+        });
+    }
+
+    synchronized void shutdown() {
+        if (adjustment != null) {
+            adjustment.cancel();
+            adjustment = null;
+        }
+        executor.shutdown();
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private boolean isAdaptive() {
+        return pool != null && maxThreads > minThreads;
+    }
+
+    private synchronized void scheduleAdjustment() {
+        if (executor.isShutdown()) return;
+        adjustment = timer.schedule(this::adjust, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void adjust() {
+        var now = waits.snapshot();
+        var recent = LatencyHistogram.since(now, lastWaits);
+        lastWaits = now;
+        int peak = peakActive.getAndSet(active.get());
+
+        int size = pool.getCorePoolSize();
+        long p90 = LatencyHistogram.percentile(recent, 0.9);
+        // sessions are long-lived, while all threads are busy the waiting ones are not measured until they start
+        boolean waiting = !pool.getQueue().isEmpty();
+
+        if ((p90 > waitTargetMicros || waiting) && size < maxThreads) {
+            resize(Math.min(maxThreads, size + Math.max(1, size / 2)));
+        } else if (p90 <= waitTargetMicros / 4 && !waiting && peak * 2 < size && size > minThreads) {
+            resize(size - 1);
+        }
+
+        scheduleAdjustment();
+    }
+
+    private void resize(int size) {
+        // the core size may never exceed the maximum size
+        if (size > pool.getCorePoolSize()) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * @return the current number of threads, -1 for virtual threads
+     */
+    public int getSize() {
+        return pool != null ? pool.getCorePoolSize() : -1;
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @param fraction the percentile, e.g. 0.99
+     * @return the queue wait time of that percentile of all sessions in milliseconds (power of two resolution)
+     */
+    public double getWaitPercentile(double fraction) {
+        return LatencyHistogram.percentile(waits.snapshot(), fraction) / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        String threads;
+        if (pool == null) {
+            threads = "virtual threads";
+        } else {
+            threads = "threads " + getSize() + (isAdaptive() ? " (" + minThreads + ".." + maxThreads + ")" : "")
+                    + " queued " + pool.getQueue().size();
+        }
+
+        var snapshot = waits.snapshot();
+        return String.format("%s %s active %d wait p50 %.3fms p90 %.3fms p99 %.3fms",
+                name, threads, getActive(),
+                LatencyHistogram.percentile(snapshot, 0.5) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 0.9) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 0.99) / 1000.0);
+    }
+}
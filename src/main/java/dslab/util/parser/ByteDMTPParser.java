@@ -0,0 +1,308 @@
+package dslab.util.parser;
+
+import dslab.util.Compressor;
+import dslab.util.DMTPState;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * Parses DMTP lines from their raw UTF-8 bytes, with the same results as {@link DMTPParser}. Commands are matched
+ * byte by byte and arguments are handed to the listener as views of the line, so a parsed command allocates
+ * nothing unless the listener copies an argument.
+ */
+public class ByteDMTPParser {
+
+    private static final byte[] QUIT = ascii("quit");
+    private static final byte[] BEGIN = ascii("begin");
+    private static final byte[] PIPELINING = ascii("pipelining");
+    private static final byte[] BINARY = ascii("binary");
+    private static final byte[] COMPRESS = ascii("compress");
+    private static final byte[] TO = ascii("to");
+    private static final byte[] SUBJECT = ascii("subject");
+    private static final byte[] DATA = ascii("data");
+    private static final byte[] FROM = ascii("from");
+    private static final byte[] HASH = ascii("hash");
+    private static final byte[] SEND = ascii("send");
+
+    private final IDMTPParserListener listener;
+    private DMTPState state = DMTPState.WAITING;
+
+    private final ByteSlice argument = new ByteSlice();
+    private final int[] fieldStart = new int[128];
+    private final int[] fieldLength = new int[128];
+    private final List<ByteSlice> recipientSlices = new ArrayList<>();
+    private final List<CharSequence> recipients = new ArrayList<>();
+    private Compressor compressor;
+    private long maxDataLength;
+    private ByteBuffer inflatedData;
+
+    public ByteDMTPParser(IDMTPParserListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Accepts the {@link DMTPFrame#DEFLATED_DATA} field in frames from now on, e.g. once the session has switched
+     * with the {@code compress} command.
+     *
+     * @param maxDataLength the largest declared size of the data, a frame declaring more is rejected unread
+     */
+    public void acceptDeflatedData(Compressor compressor, long maxDataLength) {
+        this.compressor = compressor;
+        this.maxDataLength = maxDataLength;
+    }
+
+    public DMTPState getState() {
+        return state;
+    }
+
+    /**
+     * @param line the bytes of one line between its position and limit, without the line terminator. The
+     *             position of the buffer is not changed.
+     */
+    public void parse(ByteBuffer line) throws ParserException {
+        if (line == null)
+            return;
+
+        int start = trimStart(line, line.position(), line.limit());
+        int end = trimEnd(line, start, line.limit());
+
+        if (equals(line, start, end, QUIT)) {
+            listener.onQuitCommand();
+            return;
+        }
+
+        switch (state) {
+            case WAITING:
+                if (equals(line, start, end, BEGIN)) {
+                    state = DMTPState.RECEIVING_MESSAGE;
+                    listener.onBeginCommand();
+                } else if (equals(line, start, end, PIPELINING)) {
+                    listener.onPipeliningCommand();
+                } else if (equals(line, start, end, BINARY)) {
+                    listener.onBinaryCommand();
+                } else if (equals(line, start, end, COMPRESS)) {
+                    listener.onCompressCommand();
+                } else {
+                    throw new ParserException();
+                }
+                break;
+
+            case RECEIVING_MESSAGE:
+                if (startsWith(line, start, end, TO)) {
+                    listener.onToCommand(parseToCommand(line, start, end));
+
+                } else if (startsWith(line, start, end, SUBJECT)) {
+                    listener.onSubjectCommand(argument(line, start, end, SUBJECT));
+
+                } else if (startsWith(line, start, end, DATA)) {
+                    listener.onDataCommand(argument(line, start, end, DATA));
+
+                } else if (startsWith(line, start, end, FROM)) {
+                    listener.onFromCommand(argument(line, start, end, FROM));
+
+                } else if (startsWith(line, start, end, HASH)) {
+                    listener.onHashCommand(argument(line, start, end, HASH));
+
+                } else if (equals(line, start, end, SEND)) {
+                    if (listener.onSendCommand())
+                        state = DMTPState.WAITING;
+
+                } else {
+                    throw new ParserException();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Parses the payload of a {@link DMTPFrame} and calls the listener as if the commands begin, to, from, subject,
+     * data, hash (only if present) and send had been received. The frame is validated before the first call, and
+     * a frame is always a complete transaction, even if the listener rejects it.
+     *
+     * @param frame the payload between its position and limit, the position of the buffer is not changed
+     * @throws ParserException if the frame is malformed or a transaction has been begun with commands
+     */
+    public void parseFrame(ByteBuffer frame) throws ParserException {
+        if (state != DMTPState.WAITING) {
+            throw new ParserException();
+        }
+        if (!frame.hasRemaining()) {
+            listener.onQuitCommand();
+            return;
+        }
+
+        // the last value of every tag but the recipients counts
+        Arrays.fill(fieldStart, -1);
+        recipients.clear();
+        int position = frame.position();
+        int end = frame.limit();
+        while (position < end) {
+            if (end - position < 1 + Integer.BYTES) {
+                throw new ParserException();
+            }
+            byte tag = frame.get(position);
+            int length = frame.getInt(position + 1);
+            int start = position + 1 + Integer.BYTES;
+            if (length < 0 || length > end - start) {
+                throw new ParserException();
+            }
+
+            if (tag == DMTPFrame.TO) {
+                addRecipient(frame, start, start + length);
+            } else if (tag == DMTPFrame.FROM || tag == DMTPFrame.SUBJECT || tag == DMTPFrame.DATA
+                    || tag == DMTPFrame.HASH || (tag == DMTPFrame.DEFLATED_DATA && compressor != null)) {
+                fieldStart[tag] = start;
+                fieldLength[tag] = length;
+            } else {
+                throw new ParserException();
+            }
+            position = start + length;
+        }
+        inflatedData = fieldStart[DMTPFrame.DEFLATED_DATA] > fieldStart[DMTPFrame.DATA] ? inflate(frame) : null;
+
+        state = DMTPState.RECEIVING_MESSAGE;
+        listener.onBeginCommand();
+        listener.onToCommand(recipients);
+        listener.onFromCommand(field(frame, DMTPFrame.FROM));
+        listener.onSubjectCommand(field(frame, DMTPFrame.SUBJECT));
+        listener.onDataCommand(inflatedData != null
+                ? argument.set(inflatedData, inflatedData.position(), inflatedData.remaining())
+                : field(frame, DMTPFrame.DATA));
+        if (fieldStart[DMTPFrame.HASH] >= 0) {
+            listener.onHashCommand(field(frame, DMTPFrame.HASH));
+        }
+        listener.onSendCommand();
+        state = DMTPState.WAITING;
+        inflatedData = null;
+    }
+
+    private ByteBuffer inflate(ByteBuffer frame) throws ParserException {
+        int start = fieldStart[DMTPFrame.DEFLATED_DATA];
+        int length = fieldLength[DMTPFrame.DEFLATED_DATA];
+        if (length < Integer.BYTES) {
+            throw new ParserException();
+        }
+        int rawLength = frame.getInt(start);
+        if (rawLength < 0 || rawLength > maxDataLength) {
+            throw new ParserException();
+        }
+
+        try {
+            var deflated = frame.duplicate().limit(start + length).position(start + Integer.BYTES);
+            return compressor.inflate(deflated, rawLength);
+        } catch (DataFormatException e) {
+            throw new ParserException();
+        }
+    }
+
+    private CharSequence field(ByteBuffer frame, byte tag) {
+        if (fieldStart[tag] < 0) {
+            return argument.set(frame, frame.position(), 0);
+        }
+        return argument.set(frame, fieldStart[tag], fieldLength[tag]);
+    }
+
+    /**
+     * The argument follows the keyword and the character after it, like {@code substring} in {@link DMTPParser}.
+     */
+    private CharSequence argument(ByteBuffer line, int start, int end, byte[] keyword) {
+        int from = skipCharacter(line, start + keyword.length, end);
+        return argument.set(line, from, end - from);
+    }
+
+    private List<CharSequence> parseToCommand(ByteBuffer line, int start, int end) {
+        recipients.clear();
+        if (end - start < TO.length + 1) {
+            return recipients;
+        }
+
+        int from = skipCharacter(line, start + TO.length, end);
+        if (from == end) {
+            // like String.split, an empty list yields one empty address
+            addRecipient(line, from, from);
+            return recipients;
+        }
+
+        // String.split drops trailing empty fields, but keeps fields that are only empty after trimming
+        while (end > from && line.get(end - 1) == ',') {
+            end--;
+        }
+
+        int fieldStart = from;
+        for (int i = from; i < end; i++) {
+            if (line.get(i) == ',') {
+                addRecipient(line, fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        if (end > from) {
+            addRecipient(line, fieldStart, end);
+        }
+        return recipients;
+    }
+
+    private void addRecipient(ByteBuffer line, int from, int to) {
+        int index = recipients.size();
+        if (index == recipientSlices.size()) {
+            recipientSlices.add(new ByteSlice());
+        }
+
+        int trimmedFrom = trimStart(line, from, to);
+        int trimmedTo = trimEnd(line, trimmedFrom, to);
+        recipients.add(recipientSlices.get(index).set(line, trimmedFrom, trimmedTo - trimmedFrom));
+    }
+
+    /**
+     * Skips one UTF-8 encoded character.
+     */
+    private static int skipCharacter(ByteBuffer line, int position, int end) {
+        if (position >= end) {
+            return end;
+        }
+        position++;
+        while (position < end && (line.get(position) & 0xC0) == 0x80) {
+            position++;
+        }
+        return position;
+    }
+
+    // String.trim removes all characters up to and including the space, which are single bytes in UTF-8
+    private static int trimStart(ByteBuffer line, int start, int end) {
+        while (start < end && (line.get(start) & 0xFF) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(ByteBuffer line, int start, int end) {
+        while (end > start && (line.get(end - 1) & 0xFF) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean startsWith(ByteBuffer line, int start, int end, byte[] keyword) {
+        if (end - start < keyword.length) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length; i++) {
+            if (line.get(start + i) != keyword[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(ByteBuffer line, int start, int end, byte[] keyword) {
+        return end - start == keyword.length && startsWith(line, start, end, keyword);
+    }
+
+    private static byte[] ascii(String keyword) {
+        return keyword.getBytes(StandardCharsets.US_ASCII);
+    }
+}
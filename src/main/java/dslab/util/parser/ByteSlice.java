@@ -0,0 +1,84 @@
+package dslab.util.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A view of UTF-8 bytes as characters. ASCII content, i.e. every DMTP keyword and almost every address, is read
+ * straight from the bytes; a String is only decoded if the content needs it or {@link #toString()} is called.
+ * Instances are reused by the parser, so listeners have to copy what they keep.
+ */
+public final class ByteSlice implements CharSequence {
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+    private String decoded;
+    private Boolean ascii;
+
+    ByteSlice set(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.decoded = null;
+        this.ascii = null;
+        return this;
+    }
+
+    /**
+     * @return a read-only view of the UTF-8 bytes, e.g. to store them without decoding
+     */
+    public ByteBuffer bytes() {
+        return buffer.asReadOnlyBuffer().limit(offset + length).position(offset);
+    }
+
+    private boolean isAscii() {
+        if (ascii == null) {
+            ascii = true;
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(offset + i) < 0) {
+                    ascii = false;
+                    break;
+                }
+            }
+        }
+        return ascii;
+    }
+
+    @Override
+    public int length() {
+        return isAscii() ? length : toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (!isAscii()) {
+            return toString().charAt(index);
+        }
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return (char) buffer.get(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (!isAscii()) {
+            return toString().subSequence(start, end);
+        }
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        return new ByteSlice().set(buffer, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        if (decoded == null) {
+            var bytes = new byte[length];
+            buffer.duplicate().position(offset).get(bytes);
+            decoded = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,229 @@
+package dslab.util.parser;
+
+import dslab.util.Compressor;
+import dslab.util.IMessage;
+import dslab.util.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Binary DMTP framing, used after a session has switched with the {@code binary} command. Every request is one
+ * frame holding a complete message:
+ *
+ * <pre>
+ * frame   = length payload       length: 4 bytes big-endian, the size of the payload
+ * payload = *field               an empty payload ends the session like "quit"
+ * field   = tag length value     tag: 1 byte, length: 4 bytes big-endian, value: UTF-8
+ * </pre>
+ *
+ * The tags are {@link #TO} (once per recipient), {@link #FROM}, {@link #SUBJECT}, {@link #DATA} and {@link #HASH}.
+ * The server answers a frame like the commands begin, to, from, subject, data, hash (only if present) and send,
+ * with one response line each. Values may contain line breaks.
+ * <p/>
+ * If the session has switched with the {@code compress} command before, the data may be sent in a
+ * {@link #DEFLATED_DATA} field instead, whose value is the size of the data (4 bytes big-endian) followed by the
+ * deflate stream.
+ */
+public final class DMTPFrame {
+
+    public static final byte TO = 't';
+    public static final byte FROM = 'f';
+    public static final byte SUBJECT = 's';
+    public static final byte DATA = 'd';
+    public static final byte HASH = 'h';
+    public static final byte DEFLATED_DATA = 'z';
+
+    /**
+     * Room for the fields of a frame other than the data, which is limited by the maximum message size.
+     */
+    public static final int MAX_HEAD_LENGTH = 64 * 1024;
+
+    private static final int FIELD_HEADER = 1 + Integer.BYTES;
+
+    // relayed frames have been checked against the maximum size when they were received
+    private static final Compressor DECOMPRESSOR = new Compressor(0, 6);
+
+    private DMTPFrame() {
+    }
+
+    /**
+     * @return the prefix and payload of a frame holding the message
+     */
+    public static ByteBuffer encode(IMessage message) {
+        var head = encodeHead(message);
+        var data = utf8(message.getData());
+        return ByteBuffer.allocate(head.remaining() + data.length).put(head).put(data).flip();
+    }
+
+    /**
+     * Encodes a frame up to the value of the data field, which is last, so a large body can be sent from its file
+     * right after the head.
+     *
+     * @return the prefix and the payload without the bytes of the data
+     */
+    public static ByteBuffer encodeHead(IMessage message) {
+        return encodeHead(message, DATA, message.getBody().getLength());
+    }
+
+    /**
+     * Like {@link #encodeHead(Message)}, but ends with the header of a data field of the given tag and length.
+     */
+    public static ByteBuffer encodeHead(IMessage message, byte dataTag, long dataLength) {
+        var recipients = message.getTo().split(",");
+        var to = new byte[recipients.length][];
+        for (int i = 0; i < recipients.length; i++) {
+            to[i] = utf8(recipients[i].trim());
+        }
+        var from = utf8(message.getFrom());
+        var subject = utf8(message.getSubject());
+        var hash = message.getHash() != null ? utf8(message.getHash()) : null;
+        long data = dataLength;
+
+        int head = 3 * FIELD_HEADER + from.length + subject.length;
+        for (var recipient : to) {
+            head += FIELD_HEADER + recipient.length;
+        }
+        if (hash != null) {
+            head += FIELD_HEADER + hash.length;
+        }
+        if (head + data > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Message of " + data + " bytes is too large for a frame");
+        }
+
+        var frame = ByteBuffer.allocate(Integer.BYTES + head).putInt(head + (int) data);
+        for (var recipient : to) {
+            putField(frame, TO, recipient);
+        }
+        putField(frame, FROM, from);
+        putField(frame, SUBJECT, subject);
+        if (hash != null) {
+            putField(frame, HASH, hash);
+        }
+        frame.put(dataTag).putInt((int) data);
+        return frame.flip();
+    }
+
+    /**
+     * @return the value of a {@link #DEFLATED_DATA} field
+     */
+    public static ByteBuffer deflatedData(int rawLength, byte[] deflated) {
+        return ByteBuffer.allocate(Integer.BYTES + deflated.length).putInt(rawLength).put(deflated).flip();
+    }
+
+    /**
+     * @return whether the payload has a {@link #DEFLATED_DATA} field, it is not validated
+     */
+    public static boolean hasDeflatedData(ByteBuffer payload) {
+        return hasField(payload, DEFLATED_DATA);
+    }
+
+    /**
+     * @return whether the payload has a field with the tag, it is not validated
+     */
+    public static boolean hasField(ByteBuffer payload, byte tag) {
+        int position = payload.position();
+        while (payload.limit() - position >= FIELD_HEADER) {
+            if (payload.get(position) == tag) {
+                return true;
+            }
+            int length = payload.getInt(position + 1);
+            if (length < 0 || length > payload.limit() - position - FIELD_HEADER) {
+                return false;
+            }
+            position += FIELD_HEADER + length;
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the payload of a frame like the server does, the last value of a field counts. Deflated data is
+     * accepted.
+     *
+     * @param payload the frame without its length prefix
+     * @return the message, with an empty subject or data if the field is missing
+     * @throws ParserException if the payload is empty or malformed
+     */
+    public static Message decode(ByteBuffer payload) throws ParserException {
+        var decoder = new Decoder();
+        var parser = new ByteDMTPParser(decoder);
+        parser.acceptDeflatedData(DECOMPRESSOR, Integer.MAX_VALUE);
+        parser.parseFrame(payload);
+        if (decoder.message == null) {
+            throw new ParserException();
+        }
+        return decoder.message;
+    }
+
+    /**
+     * @return the frame that ends the session
+     */
+    public static ByteBuffer quit() {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0).flip();
+    }
+
+    private static void putField(ByteBuffer frame, byte tag, byte[] value) {
+        frame.put(tag).putInt(value.length).put(value);
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Decoder implements IDMTPParserListener {
+
+        private Message message;
+
+        @Override
+        public void onBeginCommand() {
+            message = new Message("", "", "", "", null);
+        }
+
+        @Override
+        public void onPipeliningCommand() {
+        }
+
+        @Override
+        public void onBinaryCommand() {
+        }
+
+        @Override
+        public void onCompressCommand() {
+        }
+
+        @Override
+        public void onQuitCommand() {
+        }
+
+        @Override
+        public void onToCommand(List<CharSequence> recipients) {
+            message.setTo(String.join(",", recipients));
+        }
+
+        @Override
+        public void onSubjectCommand(CharSequence subject) {
+            message.setSubject(subject.toString());
+        }
+
+        @Override
+        public void onFromCommand(CharSequence from) {
+            message.setFrom(from.toString());
+        }
+
+        @Override
+        public void onDataCommand(CharSequence data) {
+            message.setData(data.toString());
+        }
+
+        @Override
+        public void onHashCommand(CharSequence hash) {
+            message.setHash(hash.toString());
+        }
+
+        @Override
+        public boolean onSendCommand() {
+            return true;
+        }
+    }
+}
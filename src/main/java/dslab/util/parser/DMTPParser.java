@@ -14,6 +14,10 @@ public class DMTPParser {
         this.listener = listener;
     }
 
+    public DMTPState getState() {
+        return state;
+    }
+
     public void parse(String input) throws ParserException {
         if (input == null)
             return;
@@ -30,6 +34,12 @@ public class DMTPParser {
                 if (input.equals("begin")) {
                     state = DMTPState.RECEIVING_MESSAGE;
                     listener.onBeginCommand();
+                } else if (input.equals("pipelining")) {
+                    listener.onPipeliningCommand();
+                } else if (input.equals("binary")) {
+                    listener.onBinaryCommand();
+                } else if (input.equals("compress")) {
+                    listener.onCompressCommand();
                 } else {
                     throw new ParserException();
                 }
@@ -41,33 +51,21 @@ public class DMTPParser {
                     listener.onToCommand(recipients);
 
                 } else if (input.startsWith("subject")) {
-                    if (input.length() < 8)
-                        listener.onSubjectCommand("");
                     // remove "subject " from the line (7 letters plus one space)
-                    var subject = input.substring(8);
-                    listener.onSubjectCommand(subject);
+                    listener.onSubjectCommand(argument(input, 8));
 
                 } else if (input.startsWith("data")) {
-                    if (input.length() < 5)
-                        listener.onDataCommand("");
                     // remove "data " from the line (4 letters plus one space)
-                    var data = input.substring(5);
-                    listener.onDataCommand(data);
+                    listener.onDataCommand(argument(input, 5));
 
                 } else if (input.startsWith("from")) {
-                    if (input.length() < 5)
-                        listener.onFromCommand("");
                     // remove "from " from the line (4 letters plus one space)
-                    var from = input.substring(5);
-                    listener.onFromCommand(from);
+                    listener.onFromCommand(argument(input, 5));
 
                 }
                 else if (input.startsWith("hash")) {
-                    if (input.length() < 5)
-                        listener.onFromCommand("");
                     // remove "hash " from the line (4 letters plus one space)
-                    var hash = input.substring(5);
-                    listener.onHashCommand(hash);
+                    listener.onHashCommand(argument(input, 5));
                 }
                 else if (input.equals("send")) {
                     if (listener.onSendCommand())
@@ -80,11 +78,18 @@ public class DMTPParser {
         }
     }
 
-    private List<String> parseToCommand(String input) {
+    private static String argument(String input, int start) {
+        // a command without argument, e.g. "subject"
+        if (input.length() < start)
+            return "";
+        return input.substring(start);
+    }
+
+    private List<CharSequence> parseToCommand(String input) {
         if (input.length() < 3)
             return List.of();
 
-        List<String> recipientList = new LinkedList<>();
+        List<CharSequence> recipientList = new LinkedList<>();
 
         String addressList = input.substring(3);
 
@@ -2,13 +2,20 @@ package dslab.util.parser;
 
 import java.util.List;
 
+/**
+ * Receives the commands recognised by {@link DMTPParser} or {@link ByteDMTPParser}. Arguments may be views of the
+ * parser's input that are only valid during the call, use {@code toString()} on anything that is kept.
+ */
 public interface IDMTPParserListener {
     void onBeginCommand();
+    void onPipeliningCommand();
+    void onBinaryCommand();
+    void onCompressCommand();
     void onQuitCommand();
-    void onToCommand(List<String> recipients);
-    void onSubjectCommand(String subject);
-    void onFromCommand(String from);
-    void onDataCommand(String data);
-    void onHashCommand(String hash);
+    void onToCommand(List<CharSequence> recipients);
+    void onSubjectCommand(CharSequence subject);
+    void onFromCommand(CharSequence from);
+    void onDataCommand(CharSequence data);
+    void onHashCommand(CharSequence hash);
     boolean onSendCommand();
 }
@@ -0,0 +1,112 @@
+package dslab.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+
+import dslab.Constants;
+import dslab.Sockets;
+import dslab.mailbox.MessageStore;
+import dslab.mailbox.handler.DMTPListenerFactory;
+import dslab.util.BodyStore;
+import dslab.util.Compressor;
+import dslab.util.Config;
+import dslab.util.TimingWheel;
+import dslab.util.handler.BufferPool;
+import dslab.util.handler.IDispatchListener;
+import dslab.util.handler.ListenerConfig;
+
+/**
+ * Compares the socket writes of the DMTP listener per delivered message for the "line" and "coalesce" flush
+ * policies, in both I/O models. The client pipelines the commands of each message like a transfer server with
+ * buffered output does.
+ * <p/>
+ * Run with {@code gradle bench -Pbenchmark=dslab.bench.FlushPolicyBenchmark [-Pmessages=N]}.
+ */
+public class FlushPolicyBenchmark {
+
+    private static final String[] COMMANDS = {
+            "begin",
+            "to bench@earth.planet",
+            "from trillian@earth.planet",
+            "subject flush policy",
+            "data lorem ipsum",
+            "send"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        var users = new HashMap<String, String>();
+        users.put("bench", "bench");
+        MessageStore.getInstance().init(users);
+
+        System.out.printf("%-9s %-9s %10s %10s %12s%n", "io", "flush", "messages", "writes", "writes/msg");
+        for (var io : new String[]{ListenerConfig.IO_BLOCKING, ListenerConfig.IO_SELECTOR}) {
+            for (var flush : new String[]{ListenerConfig.FLUSH_LINE, ListenerConfig.FLUSH_COALESCE}) {
+                run(io, flush, messages);
+            }
+        }
+    }
+
+    private static void run(String io, String flush, int messages) throws Exception {
+        int port;
+        try (var probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        var config = new Config("mailbox-earth-planet");
+        config.setProperty("dmtp.tcp.port", port);
+        config.setProperty("dmtp.tcp.io", io);
+        config.setProperty("dmtp.tcp.flush", flush);
+
+        var timer = new TimingWheel(100, 512);
+        IDispatchListener listener = new ListenerConfig(config, "dmtp.tcp", 4)
+                .newListener(new DMTPListenerFactory("earth.planet", new BodyStore(config), new Compressor(config)), timer, new BufferPool(config));
+        new Thread(listener).start();
+        Sockets.waitForSocket("localhost", port, Constants.COMPONENT_STARTUP_WAIT);
+        // the startup probe opens a session of its own
+        Thread.sleep(200);
+        long writesBefore = listener.getStats().getWrites();
+
+        long start = System.nanoTime();
+        try (var socket = new Socket("localhost", port);
+             var reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             var writer = new PrintWriter(socket.getOutputStream())) {
+            socket.setTcpNoDelay(true);
+            reader.readLine();
+
+            for (int i = 0; i < messages; i++) {
+                for (var command : COMMANDS) {
+                    writer.println(command);
+                }
+                writer.flush();
+                for (int j = 0; j < COMMANDS.length; j++) {
+                    expectOk(reader.readLine());
+                }
+            }
+
+            writer.println("quit");
+            writer.flush();
+            reader.readLine();
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        long writes = listener.getStats().getWrites() - writesBefore;
+
+        listener.stop();
+        timer.stop();
+
+        System.out.printf("%-9s %-9s %10d %10d %12.2f   (%d ms)%n",
+                io, flush, messages, writes, (double) writes / messages, millis);
+    }
+
+    private static void expectOk(String response) throws IOException {
+        if (response == null || !response.startsWith("ok")) {
+            throw new IOException("Unexpected response " + response);
+        }
+    }
+}
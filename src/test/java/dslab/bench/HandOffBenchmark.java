@@ -0,0 +1,151 @@
+package dslab.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import dslab.util.Message;
+import dslab.util.RingBuffer;
+
+/**
+ * Compares the queues that can hand accepted messages from the client sessions to the delivery: the linked blocking
+ * deque the transfer server used before, and the ring buffer with its blocking and parking wait strategies. A number
+ * of producer threads add messages as fast as they can, a single consumer takes them in batches as the dispatcher
+ * does. Reported are the messages per second and the time from adding a message to taking it out.
+ * <p/>
+ * Run with {@code gradle bench -Pbenchmark=dslab.bench.HandOffBenchmark [-Pmessages=N]}.
+ */
+public class HandOffBenchmark {
+
+    private static final int[] PRODUCERS = {1, 8, 32};
+    private static final int ROUNDS = 3;
+    private static final int BATCH = 64;
+    private static final int CAPACITY = 65536;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+        System.out.printf("%-9s %9s %10s %14s %12s %12s%n",
+                "queue", "producers", "messages", "messages/s", "latency p50", "latency p99");
+        for (int producers : PRODUCERS) {
+            for (var queue : new String[]{"linked", RingBuffer.WAIT_BLOCKING, RingBuffer.WAIT_PARKING}) {
+                Result result = null;
+                // the first rounds warm up the JIT, the last one is reported
+                for (int round = 1; round <= ROUNDS; round++) {
+                    result = run(queue, producers, messages);
+                }
+                System.out.printf("%-9s %9d %10d %14.0f %10.1fus %10.1fus%n", queue, producers, messages,
+                        result.throughput, result.p50 / 1e3, result.p99 / 1e3);
+            }
+        }
+    }
+
+    private static Result run(String queue, int producers, int messages) throws Exception {
+        HandOff handOff;
+        if (queue.equals("linked")) {
+            var deque = new LinkedBlockingDeque<Stamped>(CAPACITY);
+            handOff = new HandOff() {
+                public void put(Stamped element) throws InterruptedException {
+                    deque.put(element);
+                }
+
+                public Stamped poll() throws InterruptedException {
+                    return deque.poll(100, TimeUnit.MILLISECONDS);
+                }
+
+                public void drainTo(ArrayList<Stamped> batch) {
+                    deque.drainTo(batch, BATCH - 1);
+                }
+            };
+        } else {
+            var ring = new RingBuffer<Stamped>(CAPACITY, RingBuffer.WaitStrategy.of(queue));
+            handOff = new HandOff() {
+                public void put(Stamped element) throws InterruptedException {
+                    ring.put(element);
+                }
+
+                public Stamped poll() throws InterruptedException {
+                    return ring.poll(100, TimeUnit.MILLISECONDS);
+                }
+
+                public void drainTo(ArrayList<Stamped> batch) {
+                    ring.drainTo(batch, BATCH - 1);
+                }
+            };
+        }
+
+        var template = new Message("arthur@earth.planet", "trillian@earth.planet", "hand-off benchmark", "x", null);
+        var started = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++) {
+            int share = messages / producers + (p < messages % producers ? 1 : 0);
+            new Thread(() -> {
+                try {
+                    started.await();
+                    for (int i = 0; i < share; i++) {
+                        handOff.put(new Stamped(template, System.nanoTime()));
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }).start();
+        }
+
+        // every 64th latency is sampled, enough for the percentiles
+        var latencies = new long[messages / 64 + 1];
+        int sampled = 0;
+        var batch = new ArrayList<Stamped>(BATCH);
+        long start = System.nanoTime();
+        started.countDown();
+        for (int taken = 0; taken < messages; ) {
+            var first = handOff.poll();
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            handOff.drainTo(batch);
+            long now = System.nanoTime();
+            for (var element : batch) {
+                if (taken++ % 64 == 0) {
+                    latencies[sampled++] = now - element.nanos;
+                }
+            }
+            batch.clear();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        var sorted = Arrays.copyOf(latencies, sampled);
+        Arrays.sort(sorted);
+        return new Result(messages / (elapsed / 1e9), sorted[sampled / 2], sorted[sampled * 99 / 100]);
+    }
+
+    private interface HandOff {
+        void put(Stamped element) throws InterruptedException;
+
+        Stamped poll() throws InterruptedException;
+
+        void drainTo(ArrayList<Stamped> batch);
+    }
+
+    private static class Stamped {
+        private final Message message;
+        private final long nanos;
+
+        private Stamped(Message message, long nanos) {
+            this.message = message;
+            this.nanos = nanos;
+        }
+    }
+
+    private static class Result {
+        private final double throughput;
+        private final long p50;
+        private final long p99;
+
+        private Result(double throughput, long p50, long p99) {
+            this.throughput = throughput;
+            this.p50 = p50;
+            this.p99 = p99;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package dslab.bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import dslab.util.Message;
+import dslab.util.RelayedMessage;
+import dslab.util.parser.ByteDMTPParser;
+import dslab.util.parser.DMTPFrame;
+import dslab.util.parser.IDMTPParserListener;
+import dslab.util.parser.ParserException;
+
+/**
+ * Compares the forwarding work of the transfer server per message received as a binary frame: the "parse" path
+ * decodes all fields into a {@link Message} and encodes a new frame for the mailbox server, the "relay" path only
+ * decodes the routing fields and copies the received frame into a {@link RelayedMessage}. Neither includes the
+ * socket I/O, which is the same for both. Allocations are measured per thread with the HotSpot thread MX bean.
+ * <p/>
+ * Run with {@code gradle bench -Pbenchmark=dslab.bench.RelayBenchmark [-Pmessages=N]}.
+ */
+public class RelayBenchmark {
+
+    private static final int[] DATA_SIZES = {100, 4 * 1024, 60 * 1024};
+    private static final int ROUNDS = 5;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        System.out.printf("%-6s %10s %10s %12s %14s%n", "path", "data", "messages", "ns/msg", "bytes/msg");
+        for (int size : DATA_SIZES) {
+            var message = new Message("trillian@earth.planet,arthur@earth.planet", "zaphod@univer.ze",
+                    "relay benchmark", "x".repeat(size), "aGFzaA==");
+            var frame = DMTPFrame.encode(message);
+            var payload = frame.position(Integer.BYTES).slice();
+
+            // the first rounds warm up the JIT, the last one is reported
+            for (int round = 1; round <= ROUNDS; round++) {
+                boolean report = round == ROUNDS;
+                run("parse", size, messages, report, () -> parse(payload));
+                run("relay", size, messages, report, new Relay(payload));
+            }
+        }
+    }
+
+    private interface Path {
+        void forward() throws ParserException;
+    }
+
+    private static void run(String name, int size, int messages, boolean report, Path path) throws ParserException {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            path.forward();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        if (report) {
+            System.out.printf("%-6s %10d %10d %12.1f %14d%n", name, size, messages,
+                    (double) elapsed / messages, allocated / messages);
+        }
+    }
+
+    private static void parse(ByteBuffer payload) throws ParserException {
+        var message = DMTPFrame.decode(payload);
+        sink = DMTPFrame.encode(message);
+    }
+
+    /**
+     * Keeps what the client listener keeps when relaying.
+     */
+    private static class Relay implements IDMTPParserListener, Path {
+
+        private final ByteBuffer payload;
+        private final ByteDMTPParser parser = new ByteDMTPParser(this);
+        private String to;
+        private String from;
+        private String hash;
+
+        Relay(ByteBuffer payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        public void forward() throws ParserException {
+            parser.parseFrame(payload);
+        }
+
+        @Override
+        public void onBeginCommand() {
+            hash = null;
+        }
+
+        @Override
+        public void onPipeliningCommand() {
+        }
+
+        @Override
+        public void onBinaryCommand() {
+        }
+
+        @Override
+        public void onCompressCommand() {
+        }
+
+        @Override
+        public void onQuitCommand() {
+        }
+
+        @Override
+        public void onToCommand(List<CharSequence> recipients) {
+            to = String.join(",", recipients);
+        }
+
+        @Override
+        public void onSubjectCommand(CharSequence subject) {
+        }
+
+        @Override
+        public void onFromCommand(CharSequence from) {
+            this.from = from.toString();
+        }
+
+        @Override
+        public void onDataCommand(CharSequence data) {
+        }
+
+        @Override
+        public void onHashCommand(CharSequence hash) {
+            this.hash = hash.toString();
+        }
+
+        @Override
+        public boolean onSendCommand() {
+            var frame = ByteBuffer.allocate(Integer.BYTES + payload.remaining())
+                    .putInt(payload.remaining())
+                    .put(payload.duplicate())
+                    .flip();
+            sink = new RelayedMessage(to, from, hash, frame);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package dslab.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.stream.Collectors;
+
+import dslab.transfer.handler.Spool;
+import dslab.util.BodyStore;
+import dslab.util.Message;
+
+/**
+ * Compares accepting messages with and without the spool: the "memory" path only adds them to the hand-off queue,
+ * the "blocking" path has a thread per session that appends every message to the log and waits until it is on disk
+ * first, and the "selector" path has a single loop thread serving all sessions, which hands the next message of a
+ * session to the spool only once the previous one is stored, as the client listener does on an event loop. The
+ * delivery side marks every message done, so the log is compacted while the benchmark runs. With more concurrent
+ * sessions more appends share one sync, which is what keeps the spool within a small factor of the memory path.
+ * <p/>
+ * Run with {@code gradle bench -Pbenchmark=dslab.bench.SpoolBenchmark [-Pmessages=N]}, in a directory on the disk
+ * the spool would live on (the log is written to a temporary directory below the working directory).
+ */
+public class SpoolBenchmark {
+
+    private static final int[] SESSIONS = {1, 8, 32};
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        var message = new Message("arthur@earth.planet", "trillian@earth.planet", "spool benchmark",
+                "x".repeat(1024), null);
+
+        System.out.printf("%-8s %8s %10s %14s %10s%n", "path", "sessions", "messages", "messages/s", "factor");
+        for (int sessions : SESSIONS) {
+            double memory = 0;
+            double blocking = 0;
+            double selector = 0;
+            // the first rounds warm up the JIT, the last one is reported
+            for (int round = 1; round <= ROUNDS; round++) {
+                memory = run(sessions, messages, null, message);
+                blocking = spooled(sessions, messages, false, message);
+                selector = spooled(sessions, messages, true, message);
+            }
+            System.out.printf("%-8s %8d %10d %14.0f %10s%n", "memory", sessions, messages, memory, "");
+            System.out.printf("%-8s %8d %10d %14.0f %10.2f%n", "blocking", sessions, messages, blocking,
+                    memory / blocking);
+            System.out.printf("%-8s %8d %10d %14.0f %10.2f%n", "selector", sessions, messages, selector,
+                    memory / selector);
+        }
+    }
+
+    private static double spooled(int sessions, int messages, boolean selector, Message template) throws Exception {
+        var directory = Files.createTempDirectory(Path.of("."), "spool-bench");
+        var spool = new Spool(directory.toString(), new BodyStore(1024 * 1024, 64 * 1024, ""),
+                16 * 1024 * 1024, 1000);
+        spool.open();
+        try {
+            return selector ? runLoop(sessions, messages, spool, template) : run(sessions, messages, spool, template);
+        } finally {
+            spool.close();
+            delete(directory);
+        }
+    }
+
+    /**
+     * A thread per session, waiting for every append.
+     *
+     * @return the accepted messages per second
+     */
+    private static double run(int sessions, int messages, Spool spool, Message template) throws Exception {
+        var queue = new LinkedBlockingDeque<Message>();
+        var done = new CountDownLatch(sessions);
+        var failed = new Exception[1];
+        var delivery = deliver(queue, messages, spool);
+
+        long start = System.nanoTime();
+        for (int s = 0; s < sessions; s++) {
+            int share = messages / sessions + (s < messages % sessions ? 1 : 0);
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < share; i++) {
+                        var message = copy(template);
+                        if (spool != null) {
+                            spool.append(message).get();
+                        }
+                        queue.add(message);
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    failed[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        delivery.join();
+
+        if (failed[0] != null) {
+            throw failed[0];
+        }
+        return messages / (elapsed / 1e9);
+    }
+
+    /**
+     * A single loop thread for all sessions, the completed appends hand the session back to the loop.
+     *
+     * @return the accepted messages per second
+     */
+    private static double runLoop(int sessions, int messages, Spool spool, Message template) throws Exception {
+        var queue = new LinkedBlockingDeque<Message>();
+        var tasks = new LinkedBlockingDeque<Runnable>();
+        var done = new CountDownLatch(sessions);
+        var failed = new Throwable[1];
+        var delivery = deliver(queue, messages, spool);
+
+        var loop = new Thread(() -> {
+            try {
+                while (done.getCount() > 0) {
+                    tasks.take().run();
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        long start = System.nanoTime();
+        for (int s = 0; s < sessions; s++) {
+            int share = messages / sessions + (s < messages % sessions ? 1 : 0);
+            if (share == 0) {
+                done.countDown();
+                continue;
+            }
+            tasks.add(new Runnable() {
+                private int sent = 0;
+
+                @Override
+                public void run() {
+                    var message = copy(template);
+                    spool.append(message).whenComplete((ignored, error) -> tasks.add(() -> {
+                        if (error != null) {
+                            failed[0] = error;
+                        }
+                        queue.add(message);
+                        if (++sent == share || error != null) {
+                            done.countDown();
+                        } else {
+                            run();
+                        }
+                    }));
+                }
+            });
+        }
+        loop.start();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        loop.interrupt();
+
+        if (failed[0] != null) {
+            delivery.interrupt();
+            throw new IOException("Append failed", failed[0]);
+        }
+        delivery.join();
+        return messages / (elapsed / 1e9);
+    }
+
+    private static Thread deliver(LinkedBlockingDeque<Message> queue, int messages, Spool spool) {
+        var delivery = new Thread(() -> {
+            try {
+                for (int i = 0; i < messages; i++) {
+                    var message = queue.take();
+                    if (spool != null) {
+                        spool.done(message);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        delivery.start();
+        return delivery;
+    }
+
+    private static Message copy(Message template) {
+        return new Message(template.getTo(), template.getFrom(), template.getSubject(), template.getData(), null);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (var files = Files.walk(directory)) {
+            for (var path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+}
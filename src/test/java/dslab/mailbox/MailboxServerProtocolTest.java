@@ -1,6 +1,18 @@
 package dslab.mailbox;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Optional;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -13,7 +25,12 @@ import dslab.Constants;
 import dslab.JunitSocketClient;
 import dslab.Sockets;
 import dslab.TestBase;
+import dslab.util.Compressor;
 import dslab.util.Config;
+import dslab.util.DMTPSender;
+import dslab.util.Message;
+import dslab.util.handler.BufferPool;
+import dslab.util.handler.SocketConnection;
 
 public class MailboxServerProtocolTest extends TestBase {
 
@@ -105,4 +122,116 @@ public class MailboxServerProtocolTest extends TestBase {
         }
     }
 
+    @Test(timeout = 15000)
+    public void pipelinedMessage_isAcceptedInOneBlock() throws Exception {
+        try (Socket socket = new Socket("localhost", dmtpServerPort)) {
+            var writer = new PrintWriter(socket.getOutputStream());
+            var reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            var sender = new DMTPSender(writer, reader::readLine);
+
+            err.checkThat(sender.open(true), is(true));
+            err.checkThat(sender.isPipelining(), is(true));
+
+            var message = new Message("trillian@earth.planet", "arthur@earth.planet", "pipelined", "one write", null);
+            err.checkThat(sender.send(message), is(Optional.empty()));
+
+            // the session stays in order after a rejected recipient
+            var unknown = new Message("unknown@earth.planet", "arthur@earth.planet", "pipelined", "one write", null);
+            err.checkThat(sender.send(unknown), is(Optional.of("to")));
+
+            writer.println("quit");
+            writer.flush();
+            err.checkThat(reader.readLine(), is("ok bye"));
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void binaryMessage_withLineBreaks_isStored() throws Exception {
+        Config config = new Config(componentId);
+        try (SocketConnection connection = new SocketConnection(
+                SocketChannel.open(new InetSocketAddress("localhost", dmtpServerPort)), new BufferPool(config))) {
+            var sender = new DMTPSender(connection.getWriter(), connection::readLine, connection::writeFrame);
+
+            err.checkThat(sender.open(true, true), is(true));
+            err.checkThat(sender.isBinary(), is(true));
+
+            // line breaks cannot be sent as commands
+            var data = "first line\nsecond line";
+            var message = new Message("trillian@earth.planet", "arthur@earth.planet", "binary", data, null);
+            err.checkThat(sender.send(message), is(Optional.empty()));
+
+            var unknown = new Message("unknown@earth.planet", "arthur@earth.planet", "binary", data, null);
+            err.checkThat(sender.send(unknown), is(Optional.of("to")));
+
+            sender.quit();
+            err.checkThat(connection.readLine(), is("ok bye"));
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+
+            client.send("list");
+            err.checkThat(client.listen(), containsString("arthur@earth.planet binary"));
+
+            client.sendAndVerify("logout", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void compressedSessions_deflateLargeBodies() throws Exception {
+        Config config = new Config(componentId);
+        var data = "so long, and thanks for all the fish. ".repeat(100).trim();
+        try (SocketConnection connection = new SocketConnection(
+                SocketChannel.open(new InetSocketAddress("localhost", dmtpServerPort)), new BufferPool(config))) {
+            var sender = new DMTPSender(connection.getWriter(), connection::readLine, connection::writeFrame,
+                    new Compressor(config));
+
+            err.checkThat(sender.open(true, true), is(true));
+            err.checkThat(sender.isCompressing(), is(true));
+
+            var message = new Message("trillian@earth.planet", "arthur@earth.planet", "compressed", data, null);
+            err.checkThat(sender.send(message), is(Optional.empty()));
+            sender.quit();
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+
+            client.send("list");
+            String id = null;
+            for (String line : client.listen().split("\n")) {
+                if (line.endsWith("arthur@earth.planet compressed")) {
+                    id = line.split(" ")[0].replaceAll("\\D", "");
+                }
+            }
+
+            client.send("show " + id);
+            err.checkThat(client.listen(), containsString("data " + data + "\n"));
+
+            client.sendAndVerify("compress", "ok compress");
+            client.send("show " + id);
+            String zdata = null;
+            for (String line : client.listen().split("\n")) {
+                if (line.startsWith("zdata ")) {
+                    zdata = line;
+                }
+            }
+            err.checkThat(zdata != null, is(true));
+
+            var parts = zdata.split(" ");
+            var inflated = new Compressor(config).inflate(
+                    ByteBuffer.wrap(Base64.getDecoder().decode(parts[2])), Integer.parseInt(parts[1]));
+            err.checkThat(StandardCharsets.UTF_8.decode(inflated).toString(), is(data));
+
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        in.addLine("compression");
+        String compression = out.listen();
+        err.checkThat(compression, containsString("deflated 1 "));
+        err.checkThat(compression, containsString("inflated 1 "));
+    }
 }
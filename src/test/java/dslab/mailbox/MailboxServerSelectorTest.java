@@ -0,0 +1,141 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Optional;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.Constants;
+import dslab.JunitSocketClient;
+import dslab.Sockets;
+import dslab.TestBase;
+import dslab.util.Config;
+import dslab.util.DMTPSender;
+import dslab.util.Message;
+import dslab.util.handler.BufferPool;
+import dslab.util.handler.SocketConnection;
+
+/**
+ * Runs DMTP and DMAP interactions against a mailbox server whose listeners use the selector I/O model.
+ */
+public class MailboxServerSelectorTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(MailboxServerSelectorTest.class);
+
+    private String componentId = "mailbox-earth-planet";
+
+    private int dmapServerPort;
+    private int dmtpServerPort;
+
+    @Before
+    public void setUp() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("dmap.tcp.io", "selector");
+        config.setProperty("dmtp.tcp.io", "selector");
+        dmapServerPort = config.getInt("dmap.tcp.port");
+        dmtpServerPort = config.getInt("dmtp.tcp.port");
+
+        IMailboxServer component = new MailboxServer(componentId, config, in, out);
+        new Thread(component).start();
+
+        LOG.info("Waiting for server sockets to appear");
+        Sockets.waitForSocket("localhost", dmapServerPort, Constants.COMPONENT_STARTUP_WAIT);
+        Sockets.waitForSocket("localhost", dmtpServerPort, Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        in.addLine("shutdown"); // send "shutdown" command to command line
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+    }
+
+    @Test(timeout = 15000)
+    public void acceptDmtpMessage_listDmapMessage() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from arthur@earth.planet", "ok");
+            client.sendAndVerify("to trillian@earth.planet", "ok 1");
+            client.sendAndVerify("subject hello", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+
+            client.send("list");
+            String listResult = client.listen();
+            err.checkThat(listResult, containsString("arthur@earth.planet hello"));
+
+            client.sendAndVerify("logout", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void manyIdleConnections_doNotBlockNewSessions() throws Exception {
+        // far more idle sessions than the blocking listener has pool threads
+        JunitSocketClient[] idle = new JunitSocketClient[32];
+        try {
+            for (int i = 0; i < idle.length; i++) {
+                idle[i] = new JunitSocketClient(dmtpServerPort, err);
+                idle[i].verify("ok DMTP");
+            }
+
+            try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+                client.verify("ok DMTP");
+                client.sendAndVerify("begin", "ok");
+                client.sendAndVerify("quit", "ok bye");
+            }
+        } finally {
+            for (var client : idle) {
+                if (client != null) client.close();
+            }
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void binaryMessage_largerThanABuffer_isStored() throws Exception {
+        Config config = new Config(componentId);
+        try (SocketConnection connection = new SocketConnection(
+                SocketChannel.open(new InetSocketAddress("localhost", dmtpServerPort)), new BufferPool(config))) {
+            var sender = new DMTPSender(connection.getWriter(), connection::readLine, connection::writeFrame);
+
+            err.checkThat(sender.open(true, true), is(true));
+            err.checkThat(sender.isBinary(), is(true));
+
+            // the frame arrives in many reads
+            var data = "x".repeat(50000);
+            var message = new Message("trillian@earth.planet", "arthur@earth.planet", "binary", data, null);
+            err.checkThat(sender.send(message), is(Optional.empty()));
+
+            var unknown = new Message("unknown@earth.planet", "arthur@earth.planet", "binary", data, null);
+            err.checkThat(sender.send(unknown), is(Optional.of("to")));
+
+            sender.quit();
+            err.checkThat(connection.readLine(), is("ok bye"));
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+
+            client.send("list");
+            err.checkThat(client.listen(), containsString("arthur@earth.planet binary"));
+
+            client.sendAndVerify("logout", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+}
@@ -0,0 +1,758 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import dslab.Constants;
+import dslab.JunitSocketClient;
+import dslab.SimpleTcpServer;
+import dslab.Sockets;
+import dslab.TestBase;
+import dslab.TestInputStream;
+import dslab.TestOutputStream;
+import dslab.mailbox.MailboxServer;
+import dslab.util.Config;
+import dslab.util.DMTPSender;
+import dslab.util.Message;
+import dslab.util.handler.BufferPool;
+import dslab.util.handler.SocketConnection;
+
+/**
+ * Tests the session handling of the transfer server's DMTP listener.
+ */
+public class TransferServerListenerTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(TransferServerListenerTest.class);
+
+    private String componentId = "transfer-1";
+
+    private int serverPort;
+
+    private void startServer(Config config) throws Exception {
+        serverPort = config.getInt("tcp.port");
+        new Thread(new TransferServer(componentId, config, in, out)).start();
+
+        LOG.info("Waiting for server socket to appear");
+        Sockets.waitForSocket("localhost", serverPort, Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        in.addLine("shutdown"); // send "shutdown" command to command line
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+    }
+
+    @Test(timeout = 15000)
+    public void connectionsAboveSessionLimit_areRejected() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("tcp.sessions.max", 1);
+        startServer(config);
+        // give the session of the startup probe time to end
+        Thread.sleep(500);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+
+            try (JunitSocketClient rejected = new JunitSocketClient(serverPort, err)) {
+                rejected.verify("error server busy");
+            }
+
+            client.sendAndVerify("quit", "ok bye");
+        }
+        Thread.sleep(200);
+
+        in.addLine("listeners");
+        String listeners = out.listen();
+        err.checkThat(listeners, containsString("rejected 1"));
+        // finished sessions must not stay registered
+        err.checkThat(listeners, containsString("live 0"));
+    }
+
+    @Test(timeout = 15000)
+    public void idleClient_isDisconnectedAfterIdleTimeout() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("tcp.timeout.idle", 500);
+        startServer(config);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.verify("error timeout");
+        }
+
+        in.addLine("listeners");
+        err.checkThat(out.listen(), containsString("timed-out 1"));
+    }
+
+    @Test(timeout = 15000)
+    public void clientThatStopsReading_doesNotHoldUpOtherTimeouts() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("tcp.timeout.idle", 1000);
+        config.setProperty("tcp.sndbuf", 4096);
+        startServer(config);
+
+        // pipelines requests but never reads the responses, so the session blocks writing them
+        var stuck = SocketChannel.open();
+        stuck.socket().setReceiveBufferSize(4096);
+        stuck.connect(new InetSocketAddress("localhost", serverPort));
+        var flood = new Thread(() -> {
+            var requests = java.nio.ByteBuffer.wrap("begin\n".repeat(10000).getBytes());
+            try {
+                for (int i = 0; i < 100; i++) {
+                    stuck.write(requests.rewind());
+                }
+            } catch (Exception ignored) {
+                // closed by the server
+            }
+        });
+        flood.setDaemon(true);
+        flood.start();
+        Thread.sleep(1500);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            // the timeout of the stuck session must not keep the timer from expiring this one
+            client.verify("error timeout");
+        }
+
+        // the stuck session is cut off as well
+        flood.join(5000);
+        err.checkThat(flood.isAlive(), is(false));
+        stuck.close();
+        in.addLine("listeners");
+        err.checkThat(out.listen(), containsString("timed-out 2"));
+    }
+
+    @Test(timeout = 15000)
+    public void slowClient_isDisconnectedAfterReadTimeout() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("tcp.io", "selector");
+        config.setProperty("tcp.timeout.read", 500);
+        startServer(config);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            // start a line but never finish it
+            client.getWriter().print("beg");
+            client.getWriter().flush();
+            client.verify("error timeout");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void malformedRecipient_doesNotAffectOtherSessionsOnTheLoop() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("tcp.io", "selector");
+        config.setProperty("tcp.selector.threads", 1);
+        startServer(config);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err);
+             JunitSocketClient other = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            other.verify("ok DMTP");
+
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("to foo", "error wrong address format");
+
+            // both sessions are served by the same loop, which is still running
+            other.sendAndVerify("begin", "ok");
+            other.sendAndVerify("to arthur@earth.planet", "ok 1");
+            other.sendAndVerify("quit", "ok bye");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void multipleAcceptors_shareThePort() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("tcp.acceptors", 2);
+        startServer(config);
+
+        for (int i = 0; i < 8; i++) {
+            try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+                client.verify("ok DMTP");
+                client.sendAndVerify("quit", "ok bye");
+            }
+        }
+
+        in.addLine("listeners");
+        String listeners = out.listen();
+        err.checkThat(listeners, containsString("acceptor 0 accepted"));
+        err.checkThat(listeners, containsString("acceptor 1 accepted"));
+    }
+
+    @Test(timeout = 15000)
+    public void pipelinedCommands_areAnsweredInOrder() throws Exception {
+        startServer(new Config(componentId));
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            // a single write, the responses are coalesced on the way back
+            client.getWriter().print("begin\nfrom trillian@earth.planet\nto arthur@earth.planet\n");
+            client.getWriter().flush();
+            client.verify("ok");
+            client.verify("ok");
+            client.verify("ok 1");
+            client.sendAndVerify("quit", "ok bye");
+        }
+        Thread.sleep(200);
+
+        in.addLine("listeners");
+        err.checkThat(out.listen(), containsString("lines 4"));
+    }
+
+    @Test(timeout = 15000)
+    public void finishedSessions_returnTheirBuffers() throws Exception {
+        startServer(new Config(componentId));
+
+        for (int i = 0; i < 4; i++) {
+            try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+                client.verify("ok DMTP");
+                client.sendAndVerify("begin", "ok");
+                client.sendAndVerify("subject gr\u00fc\u00dfe \u263a", "ok");
+                client.sendAndVerify("quit", "ok bye");
+            }
+        }
+        Thread.sleep(200);
+
+        in.addLine("listeners");
+        String listeners = out.listen();
+        err.checkThat(listeners, containsString("outstanding 0"));
+        // later sessions reuse the buffers of the earlier ones
+        err.checkThat(listeners, not(containsString("hits 0 ")));
+    }
+
+    @Test(timeout = 15000)
+    public void adaptivePool_growsWhileSessionsWait() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("tcp.threads", 1);
+        config.setProperty("tcp.threads.max", 4);
+        config.setProperty("tcp.threads.interval", 200);
+        startServer(config);
+
+        // every session keeps its thread, the later ones are only served once the pool has grown
+        try (JunitSocketClient first = new JunitSocketClient(serverPort, err);
+             JunitSocketClient second = new JunitSocketClient(serverPort, err);
+             JunitSocketClient third = new JunitSocketClient(serverPort, err)) {
+            first.verify("ok DMTP");
+            second.verify("ok DMTP");
+            third.verify("ok DMTP");
+
+            in.addLine("pools");
+            String pools = out.listen();
+            err.checkThat(pools, containsString("(1..4)"));
+            err.checkThat(pools, containsString("wait p50"));
+            err.checkThat(pools, not(containsString("threads 1 ")));
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void shutdown_letsOpenTransactionFinish() throws Exception {
+        startServer(new Config(componentId));
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+
+            in.addLine("shutdown");
+            Thread.sleep(500);
+
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject hello", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+            client.verify("error server shutting down");
+        }
+
+        err.checkThat(out.listen(), containsString("0 sessions closed at deadline"));
+    }
+
+    private TestInputStream startMailboxServer(Config config) throws Exception {
+        TestInputStream mailboxIn = new TestInputStream();
+        new Thread(new MailboxServer("mailbox-earth-planet", config, mailboxIn, new TestOutputStream())).start();
+        Sockets.waitForSocket("localhost", config.getInt("dmtp.tcp.port"), Constants.COMPONENT_STARTUP_WAIT);
+        return mailboxIn;
+    }
+
+    private void sendMessage(String subject) throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject " + subject, "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void queuedMessages_shareOneMailboxSession() throws Exception {
+        TestInputStream mailboxIn = startMailboxServer(new Config("mailbox-earth-planet"));
+
+        Config config = new Config(componentId);
+        config.setProperty("delivery.batch.linger", 1000);
+        startServer(config);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            for (int i = 0; i < 3; i++) {
+                client.sendAndVerify("begin", "ok");
+                client.sendAndVerify("from trillian@earth.planet", "ok");
+                client.sendAndVerify("to arthur@earth.planet", "ok 1");
+                client.sendAndVerify("subject batch " + i, "ok");
+                client.sendAndVerify("data hello from junit", "ok");
+                client.sendAndVerify("send", "ok");
+            }
+            client.sendAndVerify("quit", "ok bye");
+        }
+        Thread.sleep(2000);
+
+        in.addLine("deliveries");
+        String deliveries = out.listen();
+        err.checkThat(deliveries, containsString("delivered 3"));
+        err.checkThat(deliveries, containsString("connections 1 messages 3"));
+
+        mailboxIn.addLine("shutdown");
+    }
+
+    @Test(timeout = 20000)
+    public void idleMailboxSession_isReusedForTheNextDelivery() throws Exception {
+        TestInputStream mailboxIn = startMailboxServer(new Config("mailbox-earth-planet"));
+        startServer(new Config(componentId));
+
+        sendMessage("first");
+        Thread.sleep(500);
+        sendMessage("second");
+        Thread.sleep(500);
+
+        in.addLine("deliveries");
+        String deliveries = out.listen();
+        err.checkThat(deliveries, containsString("connections 1 messages 2"));
+        err.checkThat(deliveries, containsString("hits 1 misses 1"));
+
+        mailboxIn.addLine("shutdown");
+    }
+
+    @Test(timeout = 20000)
+    public void mailboxSessionClosedByServer_isReplaced() throws Exception {
+        Config mailboxConfig = new Config("mailbox-earth-planet");
+        mailboxConfig.setProperty("dmtp.tcp.timeout.idle", 300);
+        TestInputStream mailboxIn = startMailboxServer(mailboxConfig);
+        startServer(new Config(componentId));
+
+        sendMessage("first");
+        // the mailbox server times the pooled session out
+        Thread.sleep(1000);
+        sendMessage("second");
+        Thread.sleep(500);
+
+        in.addLine("deliveries");
+        String deliveries = out.listen();
+        err.checkThat(deliveries, containsString("delivered 2 bounced 0"));
+        err.checkThat(deliveries, containsString("misses 2"));
+        err.checkThat(deliveries, containsString("evicted 1"));
+
+        mailboxIn.addLine("shutdown");
+    }
+
+    @Test(timeout = 15000)
+    public void dataAboveMaximumSize_isRejected() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("messages.size.max", 10);
+        startServer(config);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("data 0123456789", "ok");
+            client.sendAndVerify("data 0123456789x", "error message too large");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void spilledBody_isDeliveredAndShown() throws Exception {
+        Config mailboxConfig = new Config("mailbox-earth-planet");
+        mailboxConfig.setProperty("messages.spill.threshold", 16);
+        TestInputStream mailboxIn = startMailboxServer(mailboxConfig);
+        Config config = new Config(componentId);
+        config.setProperty("messages.spill.threshold", 16);
+        startServer(config);
+
+        String data = "spilled ".repeat(100).trim();
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject spilled", "ok");
+            client.sendAndVerify("data " + data, "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+        Thread.sleep(500);
+
+        err.checkThat(showMessage(mailboxConfig, "spilled"), containsString("data " + data + "\n"));
+
+        mailboxIn.addLine("shutdown");
+    }
+
+    @Test(timeout = 20000)
+    public void relayedFrame_isForwardedAsReceived() throws Exception {
+        Config mailboxConfig = new Config("mailbox-earth-planet");
+        TestInputStream mailboxIn = startMailboxServer(mailboxConfig);
+        startServer(new Config(componentId));
+
+        // line breaks can only reach the mailbox server in a frame
+        sendFrame(new Message("arthur@earth.planet", "trillian@earth.planet", "relayed", "first\nsecond", "aGFzaA=="));
+        Thread.sleep(500);
+
+        String shown = showMessage(mailboxConfig, "relayed");
+        err.checkThat(shown, containsString("data first\nsecond\n"));
+        err.checkThat(shown, containsString("hash aGFzaA=="));
+
+        in.addLine("deliveries");
+        err.checkThat(out.listen(), containsString("delivered 1 bounced 0 relayed 1"));
+
+        mailboxIn.addLine("shutdown");
+    }
+
+    @Test(timeout = 20000)
+    public void relayedFrameWithoutHash_isDeliveredOnce() throws Exception {
+        Config mailboxConfig = new Config("mailbox-earth-planet");
+        TestInputStream mailboxIn = startMailboxServer(mailboxConfig);
+        Config config = new Config(componentId);
+        config.setProperty("delivery.binary", "true");
+        // a response the delivery waits for in vain shows up as a failed attempt
+        config.setProperty("delivery.timeout.read", 1000);
+        startServer(config);
+
+        sendFrame(new Message("arthur@earth.planet", "trillian@earth.planet", "unhashed", "no hash", null));
+        Thread.sleep(1500);
+
+        in.addLine("deliveries");
+        String deliveries = out.listen();
+        err.checkThat(deliveries, containsString("delivered 1 bounced 0 relayed 1"));
+        err.checkThat(deliveries, containsString("retries waiting 0 scheduled 0"));
+        err.checkThat(showMessage(mailboxConfig, "unhashed"), containsString("data no hash\n"));
+
+        mailboxIn.addLine("shutdown");
+    }
+
+    @Test(timeout = 20000)
+    public void relayedFrame_isDecodedForLineSessions() throws Exception {
+        Config mailboxConfig = new Config("mailbox-earth-planet");
+        TestInputStream mailboxIn = startMailboxServer(mailboxConfig);
+        Config config = new Config(componentId);
+        config.setProperty("delivery.binary", "false");
+        startServer(config);
+
+        sendFrame(new Message("arthur@earth.planet", "trillian@earth.planet", "decoded", "hello in lines", null));
+        Thread.sleep(500);
+
+        err.checkThat(showMessage(mailboxConfig, "decoded"), containsString("data hello in lines\n"));
+
+        mailboxIn.addLine("shutdown");
+    }
+
+    private void sendFrame(Message message) throws Exception {
+        try (SocketConnection connection = new SocketConnection(
+                SocketChannel.open(new InetSocketAddress("localhost", serverPort)), new BufferPool(new Config(componentId)))) {
+            var sender = new DMTPSender(connection.getWriter(), connection::readLine, connection::writeFrame);
+            err.checkThat(sender.open(true, true), is(true));
+            err.checkThat(sender.isBinary(), is(true));
+            err.checkThat(sender.send(message), is(Optional.empty()));
+            sender.quit();
+        }
+    }
+
+    /**
+     * @return the response to "show" for arthur's message from trillian with the subject
+     */
+    private String showMessage(Config mailboxConfig, String subject) throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(mailboxConfig.getInt("dmap.tcp.port"), err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login arthur 23456", "ok");
+
+            client.send("list");
+            String id = null;
+            for (String line : client.listen().split("\n")) {
+                if (line.endsWith("trillian@earth.planet " + subject)) {
+                    id = line.split(" ")[0].replaceAll("\\D", "");
+                }
+            }
+            err.checkThat(id != null, is(true));
+
+            client.send("show " + id);
+            String shown = client.listen();
+            client.sendAndVerify("quit", "ok bye");
+            return shown;
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void largeBody_isDeliveredDeflated() throws Exception {
+        Config mailboxConfig = new Config("mailbox-earth-planet");
+        TestInputStream mailboxIn = startMailboxServer(mailboxConfig);
+        startServer(new Config(componentId));
+
+        String data = "so long, and thanks for all the fish. ".repeat(100).trim();
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject deflated", "ok");
+            client.sendAndVerify("data " + data, "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+        Thread.sleep(500);
+
+        err.checkThat(showMessage(mailboxConfig, "deflated"), containsString("data " + data + "\n"));
+
+        in.addLine("compression");
+        err.checkThat(out.listen(), containsString("deflated 1 skipped 0"));
+
+        mailboxIn.addLine("shutdown");
+    }
+
+    @Test(timeout = 20000)
+    public void recipientsOfOneServer_getOneDelivery() throws Exception {
+        Config mailboxConfig = new Config("mailbox-earth-planet");
+        TestInputStream mailboxIn = startMailboxServer(mailboxConfig);
+        startServer(new Config(componentId));
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from zaphod@univer.ze", "ok");
+            client.sendAndVerify("to arthur@earth.planet,trillian@earth.planet,arthur@earth.planet", "ok 3");
+            client.sendAndVerify("subject grouped", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+        Thread.sleep(500);
+
+        in.addLine("deliveries");
+        err.checkThat(out.listen(), containsString("delivered 1 bounced 0 relayed 0 recipients 3 connections 1 messages 1"));
+
+        for (String login : new String[]{"arthur 23456", "trillian 12345"}) {
+            try (JunitSocketClient client = new JunitSocketClient(mailboxConfig.getInt("dmap.tcp.port"), err)) {
+                client.verify("ok DMAP");
+                client.sendAndVerify("login " + login, "ok");
+
+                client.send("list");
+                long copies = client.listen().lines().filter(line -> line.endsWith("zaphod@univer.ze grouped")).count();
+                err.checkThat(login, copies, is(1L));
+                client.sendAndVerify("quit", "ok bye");
+            }
+        }
+
+        mailboxIn.addLine("shutdown");
+    }
+
+    @Test(timeout = 20000)
+    public void unresponsiveMailboxServer_doesNotDelayOtherDomains() throws Exception {
+        TestInputStream mailboxIn = startMailboxServer(new Config("mailbox-earth-planet"));
+        // accepts the connection but never greets
+        SimpleTcpServer silent = new SimpleTcpServer(new Config("mailbox-univer-ze").getInt("dmtp.tcp.port"));
+        new Thread(silent).start();
+
+        Config config = new Config(componentId);
+        config.setProperty("delivery.timeout.read", 2000);
+        config.setProperty("delivery.retry.attempts", 1);
+        startServer(config);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to zaphod@univer.ze", "ok 1");
+            client.sendAndVerify("subject stuck", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject through", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+        Thread.sleep(500);
+
+        in.addLine("deliveries");
+        String deliveries = out.listen();
+        err.checkThat(deliveries, containsString("delivered 1 bounced 0"));
+        err.checkThat(deliveries, containsString("pending 0 threads 1 taken 1"));
+
+        // the read timeout gives up on the silent server
+        Thread.sleep(2500);
+        in.addLine("deliveries");
+        deliveries = out.listen();
+        err.checkThat(deliveries, containsString("delivered 1 bounced 1"));
+        // the bounce is queued apart from the normal mail of the sender's server
+        err.checkThat(deliveries, containsString("bounce depth 0 senders 0 taken 1"));
+        err.checkThat(deliveries, containsString("normal depth 0 senders 0 taken 1"));
+
+        silent.close();
+        mailboxIn.addLine("shutdown");
+    }
+
+    @Test(timeout = 30000)
+    public void spooledMessage_isDeliveredAfterRestart() throws Exception {
+        Path spoolDir = Files.createTempDirectory("spool");
+        Config config = new Config(componentId);
+        config.setProperty("spool.dir", spoolDir.toString());
+        config.setProperty("shutdown.drain.timeout", 500);
+        config.setProperty("delivery.timeout.read", 0);
+
+        // keeps the delivery waiting until the shutdown gives up on it
+        Config mailboxConfig = new Config("mailbox-earth-planet");
+        SimpleTcpServer silent = new SimpleTcpServer(mailboxConfig.getInt("dmtp.tcp.port"));
+        new Thread(silent).start();
+        startServer(config);
+
+        sendMessage("spooled");
+        Thread.sleep(500);
+        in.addLine("shutdown");
+        // the delivery holds the shutdown up until the deadline and the grace period have passed
+        err.checkThat(out.listen(5, TimeUnit.SECONDS), containsString("spooled 1 abandoned 0"));
+        silent.close();
+
+        TestInputStream mailboxIn = startMailboxServer(mailboxConfig);
+        startServer(config);
+        Thread.sleep(1000);
+
+        in.addLine("deliveries");
+        String deliveries = out.listen();
+        err.checkThat(deliveries, containsString("delivered 1 bounced 0"));
+        err.checkThat(deliveries, containsString("spool pending 0"));
+
+        mailboxIn.addLine("shutdown");
+        in.addLine("shutdown");
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+        try (var files = Files.walk(spoolDir)) {
+            for (var path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void spooledSend_onEventLoop_answersPipelinedRequestsInOrder() throws Exception {
+        Path spoolDir = Files.createTempDirectory("spool");
+        Config config = new Config(componentId);
+        config.setProperty("tcp.io", "selector");
+        config.setProperty("spool.dir", spoolDir.toString());
+        startServer(config);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            // the requests after a send wait for its sync, they arrive in the same read
+            client.getWriter().print("begin\nfrom trillian@earth.planet\nto arthur@earth.planet\nsend\n".repeat(2)
+                    + "quit\n");
+            client.getWriter().flush();
+            for (int i = 0; i < 2; i++) {
+                client.verify("ok");
+                client.verify("ok");
+                client.verify("ok 1");
+                client.verify("ok");
+            }
+            client.verify("ok bye");
+        }
+        Thread.sleep(200);
+
+        in.addLine("deliveries");
+        err.checkThat(out.listen(), containsString("spool pending 2"));
+
+        in.addLine("shutdown");
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+        try (var files = Files.walk(spoolDir)) {
+            for (var path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void unreachableMailboxServer_isRetriedUntilItIsBack() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("delivery.retry.delay", 500);
+        config.setProperty("delivery.retry.jitter", "0");
+        startServer(config);
+
+        sendMessage("retried");
+        Thread.sleep(300);
+        in.addLine("deliveries");
+        String deliveries = out.listen();
+        err.checkThat(deliveries, containsString("delivered 0 bounced 0"));
+        err.checkThat(deliveries, containsString("retries waiting 1"));
+
+        // the mailbox server comes back before the attempts run out
+        TestInputStream mailboxIn = startMailboxServer(new Config("mailbox-earth-planet"));
+        Thread.sleep(2000);
+        in.addLine("deliveries");
+        deliveries = out.listen();
+        err.checkThat(deliveries, containsString("delivered 1 bounced 0"));
+        err.checkThat(deliveries, containsString("retries waiting 0"));
+
+        mailboxIn.addLine("shutdown");
+    }
+
+    @Test(timeout = 20000)
+    public void unreachableMailboxServer_opensItsBreaker() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("delivery.breaker.failures", 1);
+        config.setProperty("delivery.breaker.open", 1000);
+        startServer(config);
+
+        for (int i = 0; i < 3; i++) {
+            sendMessage("parked " + i);
+        }
+        Thread.sleep(300);
+
+        // only the first message tried to connect, the others wait for the probe
+        in.addLine("breakers");
+        String breakers = out.listen();
+        err.checkThat(breakers, containsString(" open failures 1 trips 1"));
+        err.checkThat(breakers, containsString("parked 3"));
+        in.addLine("deliveries");
+        err.checkThat(out.listen(), containsString("retries waiting 0 scheduled 0"));
+
+        TestInputStream mailboxIn = startMailboxServer(new Config("mailbox-earth-planet"));
+        // a probe before the server was up opens the breaker for twice the time
+        Thread.sleep(3000);
+
+        in.addLine("breakers");
+        breakers = out.listen();
+        err.checkThat(breakers, containsString(" closed failures 0"));
+        err.checkThat(breakers, containsString("parked 0"));
+        in.addLine("deliveries");
+        err.checkThat(out.listen(), containsString("delivered 3 bounced 0"));
+
+        mailboxIn.addLine("shutdown");
+    }
+}
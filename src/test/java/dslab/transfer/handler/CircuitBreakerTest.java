@@ -0,0 +1,69 @@
+package dslab.transfer.handler;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class CircuitBreakerTest extends TestBase {
+
+    @Test
+    public void failuresInARow_openTheBreaker() {
+        var breaker = new CircuitBreaker(3, 1000, 4000);
+
+        err.checkThat(breaker.failure(0), is(false));
+        err.checkThat(breaker.failure(0), is(false));
+        breaker.success();
+        err.checkThat(breaker.failure(0), is(false));
+        err.checkThat(breaker.failure(0), is(false));
+        err.checkThat(breaker.failure(0), is(true));
+
+        err.checkThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        err.checkThat(breaker.permits(10, 999), is(0));
+        err.checkThat(breaker.isDue(999), is(false));
+    }
+
+    @Test
+    public void openBreaker_letsOneProbeThrough() {
+        var breaker = new CircuitBreaker(1, 1000, 4000);
+        breaker.failure(0);
+
+        err.checkThat(breaker.isDue(1000), is(true));
+        err.checkThat(breaker.permits(10, 1000), is(1));
+        err.checkThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        // the probe is in progress
+        err.checkThat(breaker.permits(10, 1000), is(0));
+        err.checkThat(breaker.isDue(1000), is(false));
+
+        breaker.success();
+        err.checkThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+        err.checkThat(breaker.permits(10, 1000), is(10));
+    }
+
+    @Test
+    public void failedProbe_doublesTheOpenTime() {
+        var breaker = new CircuitBreaker(1, 1000, 3000);
+        breaker.failure(0);
+
+        breaker.permits(1, 1000);
+        err.checkThat(breaker.failure(1000), is(true));
+        err.checkThat(breaker.isDue(2999), is(false));
+        err.checkThat(breaker.isDue(3000), is(true));
+
+        breaker.permits(1, 3000);
+        breaker.failure(3000);
+        // capped at the maximum
+        err.checkThat(breaker.isDue(5999), is(false));
+        err.checkThat(breaker.isDue(6000), is(true));
+    }
+
+    @Test
+    public void zeroThreshold_neverOpens() {
+        var breaker = new CircuitBreaker(0, 1000, 4000);
+        for (int i = 0; i < 100; i++) {
+            err.checkThat(breaker.failure(0), is(false));
+        }
+        err.checkThat(breaker.isParking(), is(false));
+    }
+}
@@ -0,0 +1,91 @@
+package dslab.transfer.handler;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.transfer.handler.FairQueue.Priority;
+
+public class FairQueueTest extends TestBase {
+
+    @Test
+    public void senders_takeTurns() {
+        var queue = new FairQueue<String>(new int[]{1, 1, 1}, 1);
+        for (int i = 1; i <= 4; i++) {
+            queue.add("bulk" + i, Priority.NORMAL, "bulk@earth.planet");
+        }
+        queue.add("zaphod1", Priority.NORMAL, "zaphod@univer.ze");
+        queue.add("zaphod2", Priority.NORMAL, "zaphod@univer.ze");
+
+        err.checkThat(drain(queue), is(List.of("bulk1", "zaphod1", "bulk2", "zaphod2", "bulk3", "bulk4")));
+    }
+
+    @Test
+    public void quantum_isTakenInOneTurn() {
+        var queue = new FairQueue<String>(new int[]{1, 1, 1}, 2);
+        for (int i = 1; i <= 3; i++) {
+            queue.add("a" + i, Priority.NORMAL, "a");
+            queue.add("b" + i, Priority.NORMAL, "b");
+        }
+
+        err.checkThat(drain(queue), is(List.of("a1", "a2", "b1", "b2", "a3", "b3")));
+    }
+
+    @Test
+    public void priorities_takeTurnsByWeight() {
+        var queue = new FairQueue<String>(new int[]{2, 1, 3}, 100);
+        for (int i = 1; i <= 4; i++) {
+            queue.add("n" + i, Priority.NORMAL, "sender");
+            queue.add("r" + i, Priority.RETRY, "sender");
+            queue.add("b" + i, Priority.BOUNCE, "mailer");
+        }
+
+        err.checkThat(drain(queue),
+                is(List.of("b1", "b2", "r1", "n1", "n2", "n3", "b3", "b4", "r2", "n4", "r3", "r4")));
+    }
+
+    @Test
+    public void removeIf_dropsMatchingDeliveries() {
+        var queue = new FairQueue<String>(new int[]{1, 1, 1}, 1);
+        queue.add("old1", Priority.RETRY, "a");
+        queue.add("new1", Priority.RETRY, "b");
+        queue.add("old2", Priority.RETRY, "a");
+        queue.add("new2", Priority.NORMAL, "a");
+
+        queue.removeIf(delivery -> delivery.startsWith("old"));
+
+        err.checkThat(queue.size(), is(2));
+        err.checkThat(queue.getDepth(Priority.RETRY), is(1));
+        err.checkThat(queue.toString(), containsString("retry depth 1 senders 1"));
+        err.checkThat(drain(queue), is(List.of("new1", "new2")));
+        err.checkThat(queue.poll(), is((String) null));
+    }
+
+    @Test
+    public void metrics_countDepthAndTakenPerPriority() {
+        var queue = new FairQueue<String>(new int[]{1, 1, 1}, 1);
+        queue.add("b", Priority.BOUNCE, "mailer");
+        queue.add("n1", Priority.NORMAL, "a");
+        queue.add("n2", Priority.NORMAL, "b");
+        queue.poll();
+        queue.poll();
+
+        err.checkThat(queue.toString(), containsString("bounce depth 0 senders 0 taken 1"));
+        err.checkThat(queue.toString(), containsString("retry depth 0 senders 0 taken 0"));
+        err.checkThat(queue.toString(), containsString("normal depth 1 senders 1 taken 1"));
+    }
+
+    private static List<String> drain(FairQueue<String> queue) {
+        var result = new ArrayList<String>();
+        String delivery;
+        while ((delivery = queue.poll()) != null) {
+            result.add(delivery);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,61 @@
+package dslab.transfer.handler;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class RetrySchedulerTest extends TestBase {
+
+    @Test
+    public void delay_doublesUpToTheMaximum() {
+        var retries = new RetryScheduler<String>(100, 1000, 0, 10, 60000);
+
+        err.checkThat(retries.delay(1), is(100L));
+        err.checkThat(retries.delay(2), is(200L));
+        err.checkThat(retries.delay(4), is(800L));
+        err.checkThat(retries.delay(5), is(1000L));
+        err.checkThat(retries.delay(60), is(1000L));
+    }
+
+    @Test
+    public void jitter_staysWithinItsFraction() {
+        var retries = new RetryScheduler<String>(1000, 1000, 0.2, 10, 60000);
+
+        for (int i = 0; i < 100; i++) {
+            long delay = retries.delay(1);
+            err.checkThat(delay + " within 800..1200", delay >= 800 && delay <= 1200, is(true));
+        }
+    }
+
+    @Test
+    public void deliveries_areGivenUpAfterTheirAttemptsOrAge() {
+        var retries = new RetryScheduler<String>(100, 1000, 0, 3, 10000);
+        long now = System.currentTimeMillis();
+
+        err.checkThat(retries.schedule("second", 1, now), is(true));
+        err.checkThat(retries.schedule("fourth", 3, now), is(false));
+        err.checkThat(retries.schedule("old", 1, now - 10000), is(false));
+        err.checkThat(retries.getWaiting(), is(1));
+    }
+
+    @Test(timeout = 5000)
+    public void dueDeliveries_areHandedBackInOrder() throws Exception {
+        var retries = new RetryScheduler<String>(100, 1000, 0, 10, 60000);
+        var handedBack = new LinkedBlockingQueue<String>();
+        retries.start(handedBack::add);
+
+        long now = System.currentTimeMillis();
+        retries.schedule("later", 3, now);
+        retries.schedule("sooner", 1, now);
+
+        err.checkThat(handedBack.poll(50, TimeUnit.MILLISECONDS), is((String) null));
+        err.checkThat(handedBack.take(), is("sooner"));
+        err.checkThat(handedBack.take(), is("later"));
+        retries.stop();
+    }
+}
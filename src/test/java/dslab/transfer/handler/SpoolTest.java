@@ -0,0 +1,189 @@
+package dslab.transfer.handler;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.util.BodyStore;
+import dslab.util.Message;
+import dslab.util.RelayedMessage;
+import dslab.util.parser.DMTPFrame;
+
+public class SpoolTest extends TestBase {
+
+    private final BodyStore bodies = new BodyStore(1024 * 1024, 64, "");
+    private Path directory;
+    private Spool spool;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("spool");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (spool != null) {
+            spool.close();
+        }
+        try (var files = Files.walk(directory)) {
+            for (var path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private Spool open(long segmentSize, long compactInterval) throws IOException {
+        spool = new Spool(directory.toString(), bodies, segmentSize, compactInterval);
+        return spool;
+    }
+
+    private static Message message(String subject, String data) {
+        return new Message("arthur@earth.planet", "trillian@earth.planet", subject, data, null);
+    }
+
+    @Test
+    public void pendingMessages_areReplayedInOrder() throws Exception {
+        var first = message("first", "one");
+        var second = message("second", "x".repeat(200));
+        var third = message("third", "three");
+        third.setHash("aGFzaA==");
+
+        open(1024 * 1024, 60000).open();
+        spool.append(first).get();
+        spool.append(second).get();
+        spool.append(third).get();
+        spool.done(first);
+        spool.close();
+
+        var replayed = open(1024 * 1024, 60000).open();
+        err.checkThat(replayed.size(), is(2));
+        err.checkThat(replayed.get(0), is(second));
+        err.checkThat(replayed.get(0).getBody().isSpilled(), is(true));
+        err.checkThat(replayed.get(1), is(third));
+        err.checkThat(spool.getPending(), is(2));
+
+        // the replayed messages can be marked done like new ones
+        spool.done(replayed.get(0));
+        spool.close();
+        err.checkThat(open(1024 * 1024, 60000).open().size(), is(1));
+    }
+
+    @Test(timeout = 10000)
+    public void spilledBody_isStreamedThroughTheLog() throws Exception {
+        var data = "line\n".repeat(40000);
+        var spilled = message("spilled", "");
+        spilled.setBody(bodies.create(data));
+
+        // sealed after the first record, so the compactor copies the large one forward
+        open(1024, 50).open();
+        spool.append(spilled).get();
+        var delivered = message("delivered", "data");
+        spool.append(delivered).get();
+        spool.done(delivered);
+        while (!spool.toString().contains("compacted 1")) {
+            Thread.sleep(50);
+        }
+        spool.close();
+
+        var replayed = open(1024, 60000).open();
+        err.checkThat(replayed.size(), is(1));
+        err.checkThat(replayed.get(0).getBody().isSpilled(), is(true));
+        err.checkThat(replayed.get(0).getBody().hasLineBreak(), is(true));
+        err.checkThat(replayed.get(0), is(spilled));
+    }
+
+    @Test
+    public void relayedMessage_keepsItsFrame() throws Exception {
+        var frame = DMTPFrame.encode(message("relayed", "data"));
+        var relayed = new RelayedMessage("arthur@earth.planet", "trillian@earth.planet", null, frame);
+
+        open(1024 * 1024, 60000).open();
+        spool.append(relayed).get();
+        spool.close();
+
+        var replayed = open(1024 * 1024, 60000).open();
+        err.checkThat(replayed.get(0), instanceOf(RelayedMessage.class));
+        err.checkThat(replayed.get(0), is(relayed));
+        err.checkThat(replayed.get(0).getSubject(), is("relayed"));
+    }
+
+    @Test
+    public void tornRecord_isCutOff() throws Exception {
+        open(1024 * 1024, 60000).open();
+        spool.append(message("kept", "data")).get();
+        spool.close();
+
+        Path segment;
+        try (var files = Files.list(directory)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        long size = Files.size(segment);
+        // the length of a record that was not completely written
+        Files.write(segment, new byte[]{0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+        var replayed = open(1024 * 1024, 60000).open();
+        err.checkThat(replayed.size(), is(1));
+        err.checkThat(replayed.get(0).getSubject(), is("kept"));
+        err.checkThat(Files.size(segment), is(size));
+    }
+
+    @Test(timeout = 10000)
+    public void sealedSegments_areCompacted() throws Exception {
+        open(256, 50).open();
+        var pending = message("pending", "still waiting");
+        spool.append(pending).get();
+        for (int i = 0; i < 20; i++) {
+            var message = message("delivered " + i, "data");
+            spool.append(message).get();
+            spool.done(message);
+        }
+
+        // the pending message is moved forward until only the active segment is left
+        while (!spool.toString().contains("segments 1 ")) {
+            Thread.sleep(50);
+        }
+        err.checkThat(spool.toString(), containsString("pending 1"));
+        spool.close();
+
+        var replayed = open(256, 50).open();
+        err.checkThat(replayed.size(), is(1));
+        err.checkThat(replayed.get(0), is(pending));
+    }
+
+    @Test
+    public void concurrentAppends_shareCommits() throws Exception {
+        open(1024 * 1024, 60000).open();
+        var threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        spool.append(message("concurrent", "data")).get();
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        err.checkThat(spool.getPending(), is(400));
+        err.checkThat(spool.toString(), containsString("records 400"));
+    }
+}
@@ -0,0 +1,80 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class BodyStoreTest extends TestBase {
+
+    private final BodyStore bodies = new BodyStore(100, 10, "");
+
+    @Test
+    public void smallBody_staysInMemory() throws Exception {
+        var body = bodies.create("short");
+
+        err.checkThat(body.isSpilled(), is(false));
+        err.checkThat(body.toString(), is("short"));
+        err.checkThat(body.getLength(), is(5L));
+    }
+
+    @Test
+    public void largeBody_isSpilledAndReadBack() throws Exception {
+        String data = "grüße aus dem file";
+        var body = bodies.create(data);
+
+        err.checkThat(body.isSpilled(), is(true));
+        err.checkThat(body.getLength(), is((long) data.getBytes(StandardCharsets.UTF_8).length));
+        err.checkThat(body.hasLineBreak(), is(false));
+        err.checkThat(body.toString(), is(data));
+
+        var written = new StringWriter();
+        body.writeTo(written);
+        err.checkThat(written.toString(), is(data));
+
+        try (var in = body.openStream()) {
+            err.checkThat(new String(in.readAllBytes(), StandardCharsets.UTF_8), is(data));
+        }
+    }
+
+    @Test
+    public void spilledBody_remembersLineBreaks() throws Exception {
+        err.checkThat(bodies.create("first line\nsecond line").hasLineBreak(), is(true));
+    }
+
+    @Test
+    public void readBody_isSpilledAboveTheThreshold() throws Exception {
+        var in = new ByteArrayInputStream("short|grüße aus dem file|rest".getBytes(StandardCharsets.UTF_8));
+
+        var small = bodies.read(in, 5);
+        in.skip(1);
+        var large = bodies.read(in, "grüße aus dem file".getBytes(StandardCharsets.UTF_8).length);
+
+        err.checkThat(small.isSpilled(), is(false));
+        err.checkThat(small.toString(), is("short"));
+        err.checkThat(large.isSpilled(), is(true));
+        err.checkThat(large.toString(), is("grüße aus dem file"));
+        // the bytes after the body stay in the stream
+        err.checkThat(new String(in.readAllBytes(), StandardCharsets.UTF_8), is("|rest"));
+    }
+
+    @Test(expected = EOFException.class)
+    public void readBody_failsIfTheStreamEndsEarly() throws Exception {
+        bodies.read(new ByteArrayInputStream("x".repeat(20).getBytes(StandardCharsets.UTF_8)), 50);
+    }
+
+    @Test
+    public void maximumSize_isCountedInBytes() {
+        err.checkThat(bodies.isTooLarge("x".repeat(100)), is(false));
+        err.checkThat(bodies.isTooLarge("x".repeat(101)), is(true));
+        // 50 characters, but 100 bytes
+        err.checkThat(bodies.isTooLarge("ü".repeat(50)), is(false));
+        err.checkThat(bodies.isTooLarge("ü".repeat(51)), is(true));
+    }
+}
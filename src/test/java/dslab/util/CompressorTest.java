@@ -0,0 +1,60 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class CompressorTest extends TestBase {
+
+    private final Compressor compressor = new Compressor(100, 6);
+
+    @Test
+    public void largeText_isDeflatedAndInflatedAgain() throws Exception {
+        var raw = "so long, and thanks for all the fish. ".repeat(50).getBytes(StandardCharsets.UTF_8);
+
+        var deflated = compressor.deflate(raw);
+        err.checkThat(deflated, notNullValue());
+        err.checkThat(deflated.length < raw.length / 4, is(true));
+
+        var inflated = compressor.inflate(ByteBuffer.wrap(deflated), raw.length);
+        err.checkThat(inflated, is(ByteBuffer.wrap(raw)));
+        err.checkThat(compressor.toString(), containsString("deflated 1 skipped 0 bytes " + raw.length));
+        err.checkThat(compressor.toString(), containsString("inflated 1"));
+    }
+
+    @Test
+    public void smallOrIncompressibleBodies_areSkipped() {
+        err.checkThat(compressor.deflate("short".getBytes(StandardCharsets.UTF_8)), nullValue());
+
+        var random = new byte[1000];
+        new Random(42).nextBytes(random);
+        err.checkThat(compressor.deflate(random), nullValue());
+
+        // text that would only be worth it without the limit
+        var raw = "abcdefgh".repeat(20).getBytes(StandardCharsets.UTF_8);
+        err.checkThat(compressor.deflate(raw, 10), nullValue());
+
+        err.checkThat(compressor.toString(), containsString("deflated 0 skipped 3"));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void wrongDeclaredSize_isRejected() throws Exception {
+        var raw = "x".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        compressor.inflate(ByteBuffer.wrap(compressor.deflate(raw)), raw.length - 1);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void impossibleDeclaredSize_isRejectedUnallocated() throws Exception {
+        compressor.inflate(ByteBuffer.allocate(10), Integer.MAX_VALUE - 1);
+    }
+}
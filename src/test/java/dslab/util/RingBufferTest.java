@@ -0,0 +1,136 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class RingBufferTest extends TestBase {
+
+    private static final String[] STRATEGIES = {
+            RingBuffer.WAIT_BLOCKING, RingBuffer.WAIT_PARKING, RingBuffer.WAIT_YIELDING, RingBuffer.WAIT_SPINNING
+    };
+
+    @Test
+    public void capacity_isRoundedUpToAPowerOfTwo() {
+        err.checkThat(new RingBuffer<String>(5, RingBuffer.WaitStrategy.of("blocking")).capacity(), is(8));
+        err.checkThat(new RingBuffer<String>(8, RingBuffer.WaitStrategy.of("blocking")).capacity(), is(8));
+        err.checkThat(new RingBuffer<String>(1, RingBuffer.WaitStrategy.of("blocking")).capacity(), is(2));
+    }
+
+    @Test
+    public void elements_areTakenInOrderAcrossLaps() {
+        var buffer = new RingBuffer<Integer>(4, RingBuffer.WaitStrategy.of("blocking"));
+
+        for (int i = 0; i < 10; i++) {
+            err.checkThat(buffer.offer(i), is(true));
+            err.checkThat(buffer.offer(i + 100), is(true));
+            err.checkThat(buffer.poll(), is(i));
+            err.checkThat(buffer.poll(), is(i + 100));
+        }
+        err.checkThat(buffer.poll(), is((Integer) null));
+        err.checkThat(buffer.size(), is(0));
+    }
+
+    @Test(timeout = 5000)
+    public void fullBuffer_rejectsUntilTheTimeout() throws Exception {
+        var buffer = new RingBuffer<String>(2, RingBuffer.WaitStrategy.of("blocking"));
+
+        err.checkThat(buffer.offer("a"), is(true));
+        err.checkThat(buffer.offer("b"), is(true));
+        err.checkThat(buffer.offer("c"), is(false));
+        err.checkThat(buffer.offer("c", 50, TimeUnit.MILLISECONDS), is(false));
+        err.checkThat(buffer.size(), is(2));
+
+        err.checkThat(buffer.poll(), is("a"));
+        err.checkThat(buffer.offer("c"), is(true));
+    }
+
+    @Test(timeout = 5000)
+    public void emptyBuffer_returnsNullAfterTheTimeout() throws Exception {
+        var buffer = new RingBuffer<String>(2, RingBuffer.WaitStrategy.of("blocking"));
+
+        long start = System.nanoTime();
+        err.checkThat(buffer.poll(50, TimeUnit.MILLISECONDS), is((String) null));
+        err.checkThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50), is(true));
+    }
+
+    @Test
+    public void drainTo_takesAtMostTheGivenNumber() {
+        var buffer = new RingBuffer<Integer>(8, RingBuffer.WaitStrategy.of("blocking"));
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(i);
+        }
+
+        var drained = new ArrayList<Integer>();
+        err.checkThat(buffer.drainTo(drained, 3), is(3));
+        err.checkThat(buffer.drainTo(drained, 10), is(2));
+        err.checkThat(drained, is(List.of(0, 1, 2, 3, 4)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownStrategy_isRejected() {
+        RingBuffer.WaitStrategy.of("sleeping");
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentProducers_loseAndDuplicateNothing() throws Exception {
+        int producers = 4;
+        int perProducer = 20000;
+
+        for (var strategy : STRATEGIES) {
+            // small enough that the producers keep running into a full buffer
+            var buffer = new RingBuffer<Integer>(16, RingBuffer.WaitStrategy.of(strategy));
+            var started = new CountDownLatch(1);
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                new Thread(() -> {
+                    try {
+                        started.await();
+                        for (int i = 0; i < perProducer; i++) {
+                            buffer.put(producer * perProducer + i);
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                }).start();
+            }
+            started.countDown();
+
+            var seen = new boolean[producers * perProducer];
+            var last = new int[producers];
+            Arrays.fill(last, -1);
+            boolean ordered = true;
+            int duplicates = 0;
+            for (int taken = 0; taken < seen.length; taken++) {
+                Integer element = buffer.poll(5, TimeUnit.SECONDS);
+                if (element == null) {
+                    break;
+                }
+                if (seen[element]) {
+                    duplicates++;
+                }
+                seen[element] = true;
+                // every producer's elements arrive in the order it added them
+                int producer = element / perProducer;
+                ordered &= element % perProducer > last[producer];
+                last[producer] = element % perProducer;
+            }
+
+            int missing = 0;
+            for (var s : seen) {
+                missing += s ? 0 : 1;
+            }
+            err.checkThat(strategy + " missing", missing, is(0));
+            err.checkThat(strategy + " duplicates", duplicates, is(0));
+            err.checkThat(strategy + " ordered", ordered, is(true));
+            err.checkThat(strategy + " left", buffer.poll(), is((Integer) null));
+        }
+    }
+}
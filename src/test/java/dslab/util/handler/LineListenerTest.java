@@ -0,0 +1,48 @@
+package dslab.util.handler;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class LineListenerTest extends TestBase {
+
+    @Test(timeout = 5000)
+    public void failingLine_closesAndDeregistersTheSession() throws Exception {
+        try (var server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+             var client = SocketChannel.open(server.getLocalAddress())) {
+            var connection = new SocketConnection(server.accept(), new BufferPool(1024, 1));
+            var listener = new LineListener(connection) {
+                @Override
+                public void onOpen() {
+                }
+
+                @Override
+                public void onLine(String input) {
+                    throw new IllegalStateException("broken request");
+                }
+            };
+            var registry = new SessionRegistry();
+            registry.add(listener);
+
+            client.write(ByteBuffer.wrap("request\n".getBytes(StandardCharsets.UTF_8)));
+            try {
+                listener.serve(connection);
+            } catch (IllegalStateException expected) {
+                // the error still reaches the thread serving the session
+            }
+
+            err.checkThat(connection.isClosed(), is(true));
+            err.checkThat(registry.size(), is(0));
+            // the peer sees the connection closed
+            err.checkThat(client.read(ByteBuffer.allocate(16)), is(-1));
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package dslab.util.parser;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.util.Compressor;
+import dslab.util.DMTPState;
+import dslab.util.Message;
+import dslab.util.RelayedMessage;
+
+/**
+ * Feeds the same lines to the {@link DMTPParser} and the {@link ByteDMTPParser} and compares the callbacks, and
+ * checks the parsing of binary {@link DMTPFrame}s.
+ */
+public class ByteDMTPParserTest extends TestBase {
+
+    private static final String[] MESSAGE = {
+            "pipelining",
+            "binary",
+            "compress",
+            "begin",
+            "to trillian@earth.planet",
+            "to  trillian@earth.planet , arthur@earth.planet,zaphod@univer.ze  ",
+            "to a,,b",
+            "to ,a",
+            "to a, ,",
+            "to a,b,,,",
+            "to ,,,",
+            "to",
+            "tox",
+            "tomato@earth.planet",
+            "from arthur@earth.planet",
+            "from",
+            "fromX",
+            "subject hello",
+            "subject",
+            "subject   spaced   ",
+            "subject grüße ☺",
+            "subjectäx",
+            "\tdata some data\r",
+            "data",
+            "hash abc=",
+            "hash",
+            "begin",
+            "pipelining",
+            "unknown",
+            "",
+            "   ",
+            "send",
+            "send",
+            "quit",
+    };
+
+    @Test
+    public void byteParser_behavesLikeStringParser() {
+        var expected = new RecordingListener();
+        var actual = new RecordingListener();
+        var stringParser = new DMTPParser(expected);
+        var byteParser = new ByteDMTPParser(actual);
+
+        for (String line : MESSAGE) {
+            expected.record(() -> stringParser.parse(line));
+            // the line is surrounded by other bytes, like in a receive buffer
+            var bytes = ("xx" + line + "yy").getBytes(StandardCharsets.UTF_8);
+            int prefix = 2;
+            var buffer = ByteBuffer.wrap(bytes, prefix, bytes.length - 2 * prefix).slice();
+            actual.record(() -> byteParser.parse(buffer));
+
+            err.checkThat("state after '" + line + "'", byteParser.getState(), is(stringParser.getState()));
+        }
+
+        err.checkThat(actual.events, is(expected.events));
+    }
+
+    @Test
+    public void frame_isParsedLikeTheCommandsOfAMessage() {
+        var listener = new RecordingListener();
+        var parser = new ByteDMTPParser(listener);
+        var message = new Message("trillian@earth.planet, arthur@earth.planet", "zaphod@univer.ze", "grüße",
+                "first line\nsecond line", "abc=");
+
+        var frame = DMTPFrame.encode(message);
+        err.checkThat(frame.getInt(0), is(frame.remaining() - Integer.BYTES));
+        err.checkThat(frame.limit(), is(frame.capacity()));
+        listener.record(() -> parser.parseFrame(frame.position(Integer.BYTES).slice()));
+
+        err.checkThat(listener.events, is(List.of(
+                "begin",
+                "to [[trillian@earth.planet], [arthur@earth.planet]]",
+                "from [zaphod@univer.ze]",
+                "subject [grüße]",
+                "data [first line\nsecond line]",
+                "hash [abc=]",
+                "send")));
+        // a rejected frame does not leave a transaction open
+        err.checkThat(parser.getState(), is(DMTPState.WAITING));
+    }
+
+    @Test
+    public void decodedFrame_equalsTheEncodedMessage() throws Exception {
+        var message = new Message("trillian@earth.planet,arthur@earth.planet", "zaphod@univer.ze", "grüße",
+                "first line\nsecond line", "abc=");
+        var frame = DMTPFrame.encode(message);
+
+        err.checkThat(DMTPFrame.decode(frame.duplicate().position(Integer.BYTES).slice()), is(message));
+
+        // a relayed message decodes subject and data only when asked for them
+        var relayed = new RelayedMessage(message.getTo(), message.getFrom(), message.getHash(), frame);
+        err.checkThat(relayed.getSubject(), is("grüße"));
+        err.checkThat(relayed.getData(), is("first line\nsecond line"));
+        err.checkThat(relayed.getFrame(), is(frame));
+    }
+
+    @Test
+    public void deflatedData_isInflatedOnceAccepted() throws Exception {
+        var listener = new RecordingListener();
+        var parser = new ByteDMTPParser(listener);
+        var compressor = new Compressor(0, 6);
+        var message = new Message("trillian@earth.planet", "zaphod@univer.ze", "deflated", "x".repeat(1000), null);
+        var raw = message.getData().getBytes(StandardCharsets.UTF_8);
+        var data = DMTPFrame.deflatedData(raw.length, compressor.deflate(raw));
+        var head = DMTPFrame.encodeHead(message, DMTPFrame.DEFLATED_DATA, data.remaining());
+        var frame = ByteBuffer.allocate(head.remaining() + data.remaining()).put(head).put(data).flip();
+        var payload = frame.position(Integer.BYTES).slice();
+
+        // not before the session has switched
+        listener.record(() -> parser.parseFrame(payload));
+        // not larger than the maximum size
+        parser.acceptDeflatedData(compressor, raw.length - 1);
+        listener.record(() -> parser.parseFrame(payload));
+        parser.acceptDeflatedData(compressor, raw.length);
+        listener.record(() -> parser.parseFrame(payload));
+
+        err.checkThat(listener.events, is(List.of(
+                "protocol error",
+                "protocol error",
+                "begin",
+                "to [[trillian@earth.planet]]",
+                "from [zaphod@univer.ze]",
+                "subject [deflated]",
+                "data [" + message.getData() + "]",
+                "send")));
+        err.checkThat(DMTPFrame.hasDeflatedData(payload), is(true));
+        err.checkThat(DMTPFrame.decode(payload), is(message));
+    }
+
+    @Test
+    public void emptyFrame_quits() {
+        var listener = new RecordingListener();
+        var parser = new ByteDMTPParser(listener);
+
+        listener.record(() -> parser.parseFrame(ByteBuffer.allocate(0)));
+
+        err.checkThat(listener.events, is(List.of("quit")));
+    }
+
+    @Test
+    public void malformedFrames_areRejectedWithoutCallbacks() {
+        var listener = new RecordingListener();
+        var parser = new ByteDMTPParser(listener);
+
+        // unknown tag
+        listener.record(() -> parser.parseFrame(ByteBuffer.allocate(5).put((byte) 'x').putInt(0).flip()));
+        // value longer than the frame
+        listener.record(() -> parser.parseFrame(ByteBuffer.allocate(6).put(DMTPFrame.DATA).putInt(2).flip()));
+        // truncated field header
+        listener.record(() -> parser.parseFrame(ByteBuffer.allocate(3).put(DMTPFrame.DATA).flip()));
+
+        err.checkThat(listener.events, is(List.of("protocol error", "protocol error", "protocol error")));
+    }
+
+    private interface ParseAction {
+        void run() throws ParserException;
+    }
+
+    private static class RecordingListener implements IDMTPParserListener {
+
+        private final List<String> events = new ArrayList<>();
+        private boolean acceptSend = false;
+
+        void record(ParseAction action) {
+            try {
+                action.run();
+            } catch (ParserException e) {
+                events.add("protocol error");
+            }
+        }
+
+        @Override
+        public void onBeginCommand() {
+            events.add("begin");
+        }
+
+        @Override
+        public void onPipeliningCommand() {
+            events.add("pipelining");
+        }
+
+        @Override
+        public void onBinaryCommand() {
+            events.add("binary");
+        }
+
+        @Override
+        public void onCompressCommand() {
+            events.add("compress");
+        }
+
+        @Override
+        public void onQuitCommand() {
+            events.add("quit");
+        }
+
+        @Override
+        public void onToCommand(List<CharSequence> recipients) {
+            var copies = new ArrayList<String>();
+            for (var recipient : recipients) {
+                copies.add("[" + recipient + "]");
+            }
+            events.add("to " + copies);
+        }
+
+        @Override
+        public void onSubjectCommand(CharSequence subject) {
+            events.add("subject [" + subject + "]");
+        }
+
+        @Override
+        public void onFromCommand(CharSequence from) {
+            events.add("from [" + from + "]");
+        }
+
+        @Override
+        public void onDataCommand(CharSequence data) {
+            events.add("data [" + data + "]");
+        }
+
+        @Override
+        public void onHashCommand(CharSequence hash) {
+            events.add("hash [" + hash + "]");
+        }
+
+        @Override
+        public boolean onSendCommand() {
+            events.add("send");
+            // the first send fails, the second one finishes the message
+            acceptSend = !acceptSend;
+            return !acceptSend;
+        }
+    }
+}